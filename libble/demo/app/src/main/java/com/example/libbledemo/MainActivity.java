@@ -224,6 +224,8 @@ public class MainActivity extends AppCompatActivity {
 
     public void onServiceConnected(BleService service) {
         mBleService = service;
+        // The demo receives the events through the LibBleBroadcastReceiver
+        mBleService.setIntentBroadcastsEnabled(true);
         mButton.setText(R.string.button_service_connected);
         mButton.setEnabled(true);
     }
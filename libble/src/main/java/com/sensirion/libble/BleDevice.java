@@ -1,15 +1,32 @@
 package com.sensirion.libble;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 class BleDevice {
     private final BluetoothGatt mBluetoothGatt;
-    private int mConnectionState;
+    private DeviceState mState;
+    private volatile int mMtu;
+    private int mHighPriorityCount;
+    private boolean mHighPriorityGranted;
+
+    // Built once the services are discovered, replaced as a whole since lookups are not synchronized
+    private volatile Map<String, BluetoothGattCharacteristic> mCharacteristics;
+    private volatile Map<String, Map<String, BluetoothGattDescriptor>> mDescriptors;
 
-    public BleDevice(@NonNull final BluetoothGatt bluetoothGatt, final int connectionState) {
+    public BleDevice(@NonNull final BluetoothGatt bluetoothGatt) {
         mBluetoothGatt = bluetoothGatt;
-        mConnectionState = connectionState;
+        mState = DeviceState.CONNECTING;
+        mMtu = BleService.DEFAULT_MTU;
+        clearIndex();
     }
 
     @NonNull
@@ -17,11 +34,126 @@ class BleDevice {
         return mBluetoothGatt;
     }
 
-    public int getConnectionState() {
-        return mConnectionState;
+    @NonNull
+    public String getAddress() {
+        return mBluetoothGatt.getDevice().getAddress();
+    }
+
+    @NonNull
+    public synchronized DeviceState getState() {
+        return mState;
+    }
+
+    /**
+     * Moves the device to a later phase of the connection.
+     *
+     * @param state The phase the device entered.
+     * @return false if the device is in this or a later phase already.
+     */
+    public synchronized boolean advanceTo(@NonNull final DeviceState state) {
+        if (state.ordinal() <= mState.ordinal()) {
+            return false;
+        }
+        mState = state;
+        return true;
+    }
+
+    /**
+     * @return the ATT MTU negotiated with the device, {@link BleService#DEFAULT_MTU} until a larger
+     * one was negotiated.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public void setMtu(final int mtu) {
+        mMtu = mtu;
+    }
+
+    /**
+     * Switches the connection to {@code CONNECTION_PRIORITY_HIGH} unless it is already boosted.
+     * A request the stack rejected is issued again by the next call. Every call has to be balanced
+     * by {@link #releaseHighConnectionPriority(int)}.
+     *
+     * @return false if the stack rejected the request.
+     */
+    public synchronized boolean acquireHighConnectionPriority() {
+        mHighPriorityCount++;
+        if (!mHighPriorityGranted) {
+            mHighPriorityGranted =
+                    mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+        return mHighPriorityGranted;
+    }
+
+    /**
+     * Switches the connection back to the given priority once the last boost is released.
+     *
+     * @param idlePriority The priority of a connection which is not boosted.
+     */
+    public synchronized void releaseHighConnectionPriority(final int idlePriority) {
+        if (mHighPriorityCount == 0 || --mHighPriorityCount > 0) {
+            return;
+        }
+        if (mHighPriorityGranted) {
+            mHighPriorityGranted = false;
+            mBluetoothGatt.requestConnectionPriority(idlePriority);
+        }
+    }
+
+    /**
+     * Indexes the characteristics and descriptors of the discovered services by their UUID and
+     * assigns an id to every characteristic (see {@link UuidRegistry}). Has to be called every time
+     * the services were discovered.
+     */
+    public void indexServices() {
+        final Map<String, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+        final Map<String, Map<String, BluetoothGattDescriptor>> descriptors = new HashMap<>();
+        for (final BluetoothGattService service : mBluetoothGatt.getServices()) {
+            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                UuidRegistry.getId(characteristic.getUuid());
+                final String characteristicUuid = characteristic.getUuid().toString();
+                characteristics.put(characteristicUuid, characteristic);
+
+                final Map<String, BluetoothGattDescriptor> characteristicDescriptors = new HashMap<>();
+                for (final BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    characteristicDescriptors.put(descriptor.getUuid().toString(), descriptor);
+                }
+                descriptors.put(characteristicUuid, characteristicDescriptors);
+            }
+        }
+        mCharacteristics = characteristics;
+        mDescriptors = descriptors;
+    }
+
+    /**
+     * Drops the index, the characteristics of a disconnected device must not be used anymore.
+     */
+    public void clearIndex() {
+        mCharacteristics = Collections.emptyMap();
+        mDescriptors = Collections.emptyMap();
+    }
+
+    /**
+     * @param characteristicUuid The UUID of the characteristic in its string representation.
+     * @return the characteristic or null if the device has no such characteristic or its services
+     * were not discovered yet.
+     */
+    @Nullable
+    public BluetoothGattCharacteristic getCharacteristic(@NonNull final String characteristicUuid) {
+        return mCharacteristics.get(characteristicUuid);
     }
 
-    public void setConnectionState(final int connectionState) {
-        mConnectionState = connectionState;
+    /**
+     * @param characteristicUuid The UUID of the characteristic in its string representation.
+     * @param descriptorUuid     The UUID of the descriptor in its string representation.
+     * @return the descriptor or null if the characteristic has no such descriptor or the services
+     * were not discovered yet.
+     */
+    @Nullable
+    public BluetoothGattDescriptor getDescriptor(@NonNull final String characteristicUuid,
+                                                 @NonNull final String descriptorUuid) {
+        final Map<String, BluetoothGattDescriptor> descriptors = mDescriptors.get(characteristicUuid);
+        return (descriptors == null) ? null : descriptors.get(descriptorUuid);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.sensirion.libble;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Receives the events of the {@link BleService} in-process, see
+ * {@link BleService#addListener(BleListener, java.util.concurrent.Executor)}. The events
+ * correspond to the intent actions broadcast by the service. Characteristics are identified by
+ * the id assigned by the {@link UuidRegistry}. The values passed to the listener are only valid
+ * during the call, copy them to keep them.
+ */
+public interface BleListener {
+    /**
+     * See {@link BleService#ACTION_GATT_CONNECTED}.
+     */
+    void onDeviceConnected(@NonNull String deviceAddress);
+
+    /**
+     * See {@link BleService#ACTION_GATT_SERVICES_DISCOVERED}.
+     */
+    void onServicesDiscovered(@NonNull String deviceAddress);
+
+    /**
+     * See {@link BleService#ACTION_GATT_DISCONNECTED}.
+     */
+    void onDeviceDisconnected(@NonNull String deviceAddress);
+
+    /**
+     * A characteristic was read or notified, see {@link BleService#ACTION_DATA_AVAILABLE}.
+     *
+     * @param value a copy of the value of the characteristic, reused once the call returned.
+     */
+    void onDataAvailable(@NonNull String deviceAddress, int characteristicId, @Nullable byte[] value);
+
+    /**
+     * See {@link BleService#ACTION_DID_WRITE_CHARACTERISTIC}.
+     */
+    void onCharacteristicWritten(@NonNull String deviceAddress, int characteristicId);
+
+    /**
+     * A read or write failed, see {@link BleService#ACTION_DID_FAIL}.
+     *
+     * @param value          a copy of the value of the characteristic, reused once the call
+     *                       returned.
+     * @param isWriteFailure true if a write failed, false if a read failed.
+     */
+    void onFailure(@NonNull String deviceAddress, int characteristicId, @Nullable byte[] value,
+                   boolean isWriteFailure);
+}
@@ -0,0 +1,171 @@
+package com.sensirion.libble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import com.sensirion.libble.log.Log;
+
+/**
+ * The settings of a scan running until it is stopped, see
+ * {@link BleService#startScan(BleScanCallback, BleScanSettings, String[], String[])}. The defaults
+ * scan in {@code SCAN_MODE_LOW_POWER} and report every advertisement right away, use a report
+ * delay to receive the results in batches via {@code onBatchScanResults} instead.
+ * <p/>
+ * The callback type, match mode and number of matches require API level 23 and are ignored on
+ * older devices. Features the controller does not support (filtering or batching in hardware) are
+ * disabled as well, instead of failing the scan.
+ */
+public class BleScanSettings {
+    private static final String TAG = BleScanSettings.class.getSimpleName();
+
+    private final int mScanMode;
+    private final int mCallbackType;
+    private final int mMatchMode;
+    private final int mNumOfMatches;
+    private final long mReportDelayMs;
+
+    private BleScanSettings(@NonNull final Builder builder) {
+        mScanMode = builder.mScanMode;
+        mCallbackType = builder.mCallbackType;
+        mMatchMode = builder.mMatchMode;
+        mNumOfMatches = builder.mNumOfMatches;
+        mReportDelayMs = builder.mReportDelayMs;
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public int getCallbackType() {
+        return mCallbackType;
+    }
+
+    public int getMatchMode() {
+        return mMatchMode;
+    }
+
+    public int getNumOfMatches() {
+        return mNumOfMatches;
+    }
+
+    public long getReportDelay() {
+        return mReportDelayMs;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BleScanSettings)) return false;
+        final BleScanSettings other = (BleScanSettings) o;
+        return mScanMode == other.mScanMode && mCallbackType == other.mCallbackType
+                && mMatchMode == other.mMatchMode && mNumOfMatches == other.mNumOfMatches
+                && mReportDelayMs == other.mReportDelayMs;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mScanMode;
+        result = 31 * result + mCallbackType;
+        result = 31 * result + mMatchMode;
+        result = 31 * result + mNumOfMatches;
+        result = 31 * result + (int) (mReportDelayMs ^ (mReportDelayMs >>> 32));
+        return result;
+    }
+
+    /**
+     * Translates the settings to the ones supported by the device.
+     *
+     * @param adapter The adapter scanning.
+     * @return the settings to start the scan with.
+     */
+    @NonNull
+    ScanSettings toScanSettings(@NonNull final BluetoothAdapter adapter) {
+        final ScanSettings.Builder builder = new ScanSettings.Builder();
+        builder.setScanMode(mScanMode);
+
+        long reportDelayMs = mReportDelayMs;
+        if (reportDelayMs > 0 && !adapter.isOffloadedScanBatchingSupported()) {
+            Log.w(TAG, "Batched scan results not supported, reporting every result");
+            reportDelayMs = 0;
+        }
+        builder.setReportDelay(reportDelayMs);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            int callbackType = mCallbackType;
+            // First match and match lost are only reported for filters evaluated in hardware
+            if (callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                    && (reportDelayMs > 0 || !adapter.isOffloadedFilteringSupported())) {
+                Log.w(TAG, "Callback type %d not supported, reporting all matches", callbackType);
+                callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+            }
+            builder.setCallbackType(callbackType);
+            builder.setMatchMode(mMatchMode);
+            builder.setNumOfMatches(mNumOfMatches);
+        }
+        return builder.build();
+    }
+
+    public static class Builder {
+        private int mScanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        private int mCallbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+        private int mMatchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        private int mNumOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+        private long mReportDelayMs = 0;
+
+        /**
+         * @param scanMode One of the {@code ScanSettings.SCAN_MODE_*} constants,
+         *                 {@code SCAN_MODE_LOW_POWER} by default.
+         */
+        public Builder setScanMode(final int scanMode) {
+            mScanMode = scanMode;
+            return this;
+        }
+
+        /**
+         * @param callbackType {@code ScanSettings.CALLBACK_TYPE_ALL_MATCHES} (default) or a
+         *                     combination of {@code CALLBACK_TYPE_FIRST_MATCH} and
+         *                     {@code CALLBACK_TYPE_MATCH_LOST}.
+         */
+        public Builder setCallbackType(final int callbackType) {
+            mCallbackType = callbackType;
+            return this;
+        }
+
+        /**
+         * @param matchMode One of the {@code ScanSettings.MATCH_MODE_*} constants,
+         *                  {@code MATCH_MODE_AGGRESSIVE} by default.
+         */
+        public Builder setMatchMode(final int matchMode) {
+            mMatchMode = matchMode;
+            return this;
+        }
+
+        /**
+         * @param numOfMatches One of the {@code ScanSettings.MATCH_NUM_*} constants,
+         *                     {@code MATCH_NUM_MAX_ADVERTISEMENT} by default.
+         */
+        public Builder setNumOfMatches(final int numOfMatches) {
+            mNumOfMatches = numOfMatches;
+            return this;
+        }
+
+        /**
+         * @param reportDelayMs The time the controller collects results before they are reported
+         *                      in a batch, 0 (default) to report every result right away.
+         */
+        public Builder setReportDelay(final long reportDelayMs) {
+            if (reportDelayMs < 0) {
+                throw new IllegalArgumentException("The report delay must not be negative");
+            }
+            mReportDelayMs = reportDelayMs;
+            return this;
+        }
+
+        @NonNull
+        public BleScanSettings build() {
+            return new BleScanSettings(this);
+        }
+    }
+}
@@ -11,7 +11,6 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
@@ -21,21 +20,34 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import com.sensirion.libble.action.ActionBatch;
 import com.sensirion.libble.action.ActionFailureCallback;
+import com.sensirion.libble.action.ActionPriority;
 import com.sensirion.libble.action.ActionReadCharacteristic;
+import com.sensirion.libble.action.ActionRequestMtu;
 import com.sensirion.libble.action.ActionScheduler;
 import com.sensirion.libble.action.ActionWriteCharacteristic;
 import com.sensirion.libble.action.ActionWriteDescriptor;
+import com.sensirion.libble.action.ActionWriteWithoutResponse;
 import com.sensirion.libble.action.GattAction;
+import com.sensirion.libble.action.GattException;
+import com.sensirion.libble.action.GattFuture;
 import com.sensirion.libble.log.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 public class BleService extends Service implements ActionFailureCallback {
     public final static String ACTION_GATT_CONNECTED =
@@ -60,19 +72,45 @@ public class BleService extends Service implements ActionFailureCallback {
             "com.sensirion.libble.EXTRA_CHARACTERISTIC_UUID";
     public static final String EXTRA_DESCRIPTOR_UUID =
             "com.sensirion.libble.EXTRA_CHARACTERISTIC_UUID";
+    public static final int DEFAULT_WRITE_CREDIT_WINDOW = 1;
+    // The ATT MTU every device supports, before a larger one is negotiated.
+    public static final int DEFAULT_MTU = 23;
+    // Fits 244 bytes of payload, which the data length extension transfers in a single packet.
+    public static final int PREFERRED_MTU = 247;
     private static final int MIN_SCAN_DURATION_MS = 1000;
+    // The opcode and handle preceding the payload of a write or notification.
+    private static final int ATT_HEADER_SIZE = 3;
+    public static final int DEFAULT_MAX_CONNECTION_ATTEMPTS = 2;
+    // Shorter than the timeout of the stack, which reports status 133 after about 30 s.
+    public static final long DEFAULT_CONNECTION_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_DISCOVERY_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_DISCONNECT_TIMEOUT_MS = 5000;
 
     private final static String TAG = BleService.class.getSimpleName();
 
     private final IBinder mBinder = new LocalBinder();
-    private final Map<String, BleDevice> mDevices = Collections.synchronizedMap(new HashMap<String, BleDevice>());
+    private final ConcurrentMap<String, BleDevice> mDevices = new ConcurrentHashMap<>();
+    // The devices in state READY, kept up to date on every state change.
+    private final Set<String> mReadyDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private final BluetoothGattCallback mGattCallback = new BleCallback();
     private final Handler mScanHandler = new Handler();
+    private final Handler mConnectionHandler = new Handler();
+    // Replaced on every change, the events are dispatched on a snapshot without an iterator
+    private volatile ListenerRegistration[] mListeners = new ListenerRegistration[0];
+    private final ConnectionScheduler mConnectionScheduler = new ConnectionScheduler(
+            new GattConnector(), mConnectionHandler, DEFAULT_MAX_CONNECTION_ATTEMPTS,
+            DEFAULT_CONNECTION_TIMEOUT_MS);
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private ActionScheduler mActionScheduler;
-    private Runnable mStopScanningRunnable;
+    private ScanMultiplexer mScanMultiplexer;
+    private final Map<BleScanCallback, Runnable> mStopScanningRunnables = new ConcurrentHashMap<>();
+    private volatile boolean mIntentBroadcastsEnabled;
+    private volatile long mDiscoveryTimeoutMs = DEFAULT_DISCOVERY_TIMEOUT_MS;
+    private volatile long mDisconnectTimeoutMs = DEFAULT_DISCONNECT_TIMEOUT_MS;
+    private volatile int mPreferredMtu = PREFERRED_MTU;
+    private volatile int mIdleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
 
     public class LocalBinder extends Binder {
         public BleService getService() {
@@ -120,12 +158,58 @@ public class BleService extends Service implements ActionFailureCallback {
         if (mActionScheduler == null) {
             mActionScheduler = new ActionScheduler(this, new Handler());
         }
+        if (mScanMultiplexer == null) {
+            mScanMultiplexer = new ScanMultiplexer(mBluetoothAdapter, mScanHandler);
+        }
 
         return true;
     }
 
     /**
-     * Starts a BLE Scan. Discovered devices are reported via the delivered callback.
+     * Registers a listener receiving the connection, data, write and failure events of all
+     * devices. The events are delivered in-process on the given executor, use a serial executor
+     * (e.g. one posting to a {@code Handler}) to receive them in order. The events are recycled
+     * once delivered, hence the values passed to the listener are only valid during the call.
+     *
+     * @param listener The listener to register.
+     * @param executor The executor the listener is called on.
+     */
+    public synchronized void addListener(@NonNull final BleListener listener,
+                                         @NonNull final Executor executor) {
+        final ListenerRegistration[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+        listeners[listeners.length - 1] = new ListenerRegistration(listener, executor);
+        mListeners = listeners;
+    }
+
+    /**
+     * Unregisters a listener registered with {@link #addListener(BleListener, Executor)}.
+     *
+     * @param listener The listener to unregister.
+     */
+    public synchronized void removeListener(@NonNull final BleListener listener) {
+        final List<ListenerRegistration> listeners = new ArrayList<>();
+        for (final ListenerRegistration registration : mListeners) {
+            if (registration.mListener != listener) {
+                listeners.add(registration);
+            }
+        }
+        mListeners = listeners.toArray(new ListenerRegistration[listeners.size()]);
+    }
+
+    /**
+     * Enables the system wide intent broadcasts of all events (see {@code ACTION_GATT_CONNECTED}
+     * and the other intent actions) for applications relying on a {@code BroadcastReceiver}.
+     * Disabled by default, register a {@link BleListener} instead.
+     *
+     * @param enabled True to broadcast every event as intent.
+     */
+    public void setIntentBroadcastsEnabled(final boolean enabled) {
+        mIntentBroadcastsEnabled = enabled;
+    }
+
+    /**
+     * Starts a BLE Scan. Discovered devices are reported via the delivered callback. Scans of
+     * different callbacks run concurrently, sharing a single scan of the controller.
      *
      * @param callback                    An instance of the BleScanCallback, used to receive scan results.
      * @param durationMs                  The duration in milliseconds, how long the scan should last. This parameter
@@ -134,51 +218,62 @@ public class BleService extends Service implements ActionFailureCallback {
      *                                    names are reported to the callback.
      * @param advertisedServiceUuidFilter An Array of advertised service UUIDs to also deliver results for.
      * @return true if a scan was triggered and false, if it was not possible to trigger a scan or
-     * if there is already an ongoing scan running.
+     * if there is already an ongoing scan running for this callback.
      */
     public boolean startScan(@NonNull final BleScanCallback callback, final long durationMs,
                              final String[] deviceNameFilter, final String[] advertisedServiceUuidFilter) {
-        if (mBluetoothAdapter == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
-            return false;
-        }
-
         if (durationMs < MIN_SCAN_DURATION_MS) {
             Log.w(TAG, "The scan duration must be longer than 1 second");
             return false;
         }
 
-        if (mStopScanningRunnable != null) {
-            Log.w(TAG, "Already a scan running");
-            return false;
-        }
-
-        final BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-        if (bluetoothLeScanner == null) {
-            Log.w(TAG, "Failed to scan. Bluetooth appears to be unavailable");
-            return false;
-        }
-        final ScanSettings settings = new ScanSettings.Builder()
+        final BleScanSettings settings = new BleScanSettings.Builder()
                 .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
                 .build();
-
-        final List<ScanFilter> filters = getScanFilters(deviceNameFilter, advertisedServiceUuidFilter);
+        if (!startScan(callback, settings, deviceNameFilter, advertisedServiceUuidFilter)) {
+            return false;
+        }
 
         // Stops scanning after a pre-defined scan period.
-        mStopScanningRunnable = new Runnable() {
+        final Runnable stopScanningRunnable = new Runnable() {
             @Override
             public void run() {
                 stopScan(callback);
             }
         };
-        mScanHandler.postDelayed(mStopScanningRunnable, durationMs);
-
-        bluetoothLeScanner.startScan(filters, settings, callback);
+        mStopScanningRunnables.put(callback, stopScanningRunnable);
+        mScanHandler.postDelayed(stopScanningRunnable, durationMs);
         return true;
     }
 
     /**
-     * Stops an ongoing BLE Scan for the given callback.
+     * Starts a BLE Scan running until it is stopped using {@link #stopScan(BleScanCallback)}, e.g.
+     * a duty-cycled background discovery. Discovered devices are reported via the delivered
+     * callback, in batches if the settings define a report delay. All scans share the controller,
+     * the report delay and callback type of each scan are kept by delivering the results accordingly.
+     *
+     * @param callback                    An instance of the BleScanCallback, used to receive scan results.
+     * @param settings                    The scan mode, callback type and reporting of the scan.
+     * @param deviceNameFilter            A array of device names to filter for. Only BLE devices with these
+     *                                    names are reported to the callback.
+     * @param advertisedServiceUuidFilter An Array of advertised service UUIDs to also deliver results for.
+     * @return true if a scan was triggered and false, if it was not possible to trigger a scan or
+     * if there is already an ongoing scan running for this callback.
+     */
+    public boolean startScan(@NonNull final BleScanCallback callback,
+                             @NonNull final BleScanSettings settings, final String[] deviceNameFilter,
+                             final String[] advertisedServiceUuidFilter) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+
+        final List<ScanFilter> filters = getScanFilters(deviceNameFilter, advertisedServiceUuidFilter);
+        return mScanMultiplexer.addClient(callback, filters, settings);
+    }
+
+    /**
+     * Stops an ongoing BLE Scan for the given callback. The scans of other callbacks keep running.
      *
      * @param callback An instance of the BleScanCallback, used to start the scan.
      */
@@ -188,30 +283,40 @@ public class BleService extends Service implements ActionFailureCallback {
             return;
         }
 
-        if (mStopScanningRunnable == null) return;
+        final Runnable stopScanningRunnable = mStopScanningRunnables.remove(callback);
+        if (stopScanningRunnable != null) {
+            mScanHandler.removeCallbacks(stopScanningRunnable);
+        }
+        if (mScanMultiplexer.removeClient(callback)) {
+            callback.onScanStopped();
+        }
+    }
 
-        mScanHandler.removeCallbacks(mStopScanningRunnable);
-        final BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-        bluetoothLeScanner.stopScan(callback);
-        mStopScanningRunnable = null;
-        callback.onScanStopped();
+    /**
+     * Returns the number of scans which can be started right now. Android silently throttles apps
+     * starting more than 5 scans within 30 seconds, hence a scan requiring a new start of the
+     * controller scan is deferred until the budget allows it. Scans joining a running scan which
+     * covers their filters do not need a start, the controller scan keeps running for a few
+     * seconds after the last scan stopped for this purpose.
+     *
+     * @return the number of scan starts left in the current 30 second window.
+     */
+    public int getScanStartBudget() {
+        if (mScanMultiplexer == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized.");
+            return 0;
+        }
+        return mScanMultiplexer.getAvailableScanStarts();
     }
 
     /**
-     * Retrieve a list of device addresses of all the connected devices.
+     * Retrieve a list of device addresses of all the connected devices whose services are
+     * discovered, hence which are ready to be used.
      *
      * @return List of all device addresses of the BLE devices currently connected.
      */
     public List<String> getConnectedDevices() {
-        final ArrayList<String> result = new ArrayList<>();
-        synchronized (mDevices) {
-            for (final BleDevice device : mDevices.values()) {
-                if (device.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
-                    result.add(device.getBluetoothGatt().getDevice().getAddress());
-                }
-            }
-        }
-        return result;
+        return new ArrayList<>(mReadyDevices);
     }
 
     /**
@@ -238,12 +343,10 @@ public class BleService extends Service implements ActionFailureCallback {
             return result;
         }
 
-        for (BluetoothGattService service : getSupportedGattServices(deviceAddress)) {
-            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                final String uuid = characteristic.getUuid().toString();
-                if (uuids.contains(uuid)) {
-                    result.put(uuid, characteristic);
-                }
+        for (final String uuid : uuids) {
+            final BluetoothGattCharacteristic characteristic = bleDevice.getCharacteristic(uuid);
+            if (characteristic != null) {
+                result.put(uuid, characteristic);
             }
         }
 
@@ -251,7 +354,56 @@ public class BleService extends Service implements ActionFailureCallback {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Looks up a characteristic of the device by its UUID. The characteristics are indexed once the
+     * services are discovered, the lookup does not allocate.
+     *
+     * @param deviceAddress      The device address identifying this device.
+     * @param characteristicUuid The UUID of the characteristic.
+     * @return the characteristic or null if the device is unknown, its services were not discovered
+     * yet or it has no such characteristic.
+     */
+    @Nullable
+    public BluetoothGattCharacteristic getCharacteristic(@NonNull final String deviceAddress,
+                                                        @NonNull final String characteristicUuid) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return null;
+        }
+        return bleDevice.getCharacteristic(characteristicUuid);
+    }
+
+    /**
+     * Looks up a descriptor of a characteristic of the device by their UUIDs. See
+     * {@link #getCharacteristic(String, String)}.
+     *
+     * @param deviceAddress      The device address identifying this device.
+     * @param characteristicUuid The UUID of the characteristic.
+     * @param descriptorUuid     The UUID of the descriptor.
+     * @return the descriptor or null if the device is unknown, its services were not discovered
+     * yet or it has no such descriptor.
+     */
+    @Nullable
+    public BluetoothGattDescriptor getDescriptor(@NonNull final String deviceAddress,
+                                                 @NonNull final String characteristicUuid,
+                                                 @NonNull final String descriptorUuid) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return null;
+        }
+        return bleDevice.getDescriptor(characteristicUuid, descriptorUuid);
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Only a limited number of
+     * connection attempts is in flight at the same time (see
+     * {@link #setMaxConnectionAttempts(int)}), further attempts are started in the order they were
+     * requested. An attempt which does not succeed within the connection timeout (see
+     * {@link #setConnectionTimeout(long)}) is aborted and reported as disconnect.
+     *
+     * A device connected already is reported connected and discovered again, so callers waiting
+     * for these events do not depend on whether the device was connected before.
      *
      * @param deviceAddress The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The connection result
@@ -263,22 +415,72 @@ public class BleService extends Service implements ActionFailureCallback {
             return false;
         }
 
-        // Don't reuse gatt of previously connected device. Always try fresh connect.
+        final BleDevice connectedDevice = mDevices.get(deviceAddress);
+        if (connectedDevice != null && connectedDevice.getState() == DeviceState.READY) {
+            Log.d(TAG, "Device %s is connected already.", deviceAddress);
+            notifyConnectionEvent(deviceAddress, ACTION_GATT_CONNECTED);
+            notifyConnectionEvent(deviceAddress, ACTION_GATT_SERVICES_DISCOVERED);
+            return true;
+        }
+
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
         if (device == null) {
             Log.w(TAG, "Device not found. Unable to connect.");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        final BluetoothGatt bluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
 
-        mDevices.put(deviceAddress, new BleDevice(bluetoothGatt,
-                BluetoothProfile.STATE_CONNECTING));
+        mConnectionScheduler.connect(deviceAddress);
         return true;
     }
 
+    /**
+     * Sets the maximum number of connection attempts in flight at the same time,
+     * {@link #DEFAULT_MAX_CONNECTION_ATTEMPTS} by default.
+     *
+     * @param maxConnectionAttempts The number of attempts, at least 1.
+     */
+    public void setMaxConnectionAttempts(final int maxConnectionAttempts) {
+        mConnectionScheduler.setMaxInFlight(maxConnectionAttempts);
+    }
+
+    /**
+     * Sets the time a connection attempt may take until the device is connected,
+     * {@link #DEFAULT_CONNECTION_TIMEOUT_MS} by default.
+     *
+     * @param timeoutMs The timeout in milliseconds.
+     */
+    public void setConnectionTimeout(final long timeoutMs) {
+        mConnectionScheduler.setTimeout(timeoutMs);
+    }
+
+    /**
+     * Sets the time the service discovery may take once a device is connected,
+     * {@link #DEFAULT_DISCOVERY_TIMEOUT_MS} by default. The device is disconnected if its services
+     * are not discovered in time.
+     *
+     * @param timeoutMs The timeout in milliseconds.
+     */
+    public void setDiscoveryTimeout(final long timeoutMs) {
+        mDiscoveryTimeoutMs = checkTimeout(timeoutMs);
+    }
+
+    /**
+     * Sets the time the stack may take to confirm a disconnect, {@link #DEFAULT_DISCONNECT_TIMEOUT_MS}
+     * by default. The connection is closed and reported as disconnected once it is over.
+     *
+     * @param timeoutMs The timeout in milliseconds.
+     */
+    public void setDisconnectTimeout(final long timeoutMs) {
+        mDisconnectTimeoutMs = checkTimeout(timeoutMs);
+    }
+
+    private static long checkTimeout(final long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("The timeout must be greater than 0 ms");
+        }
+        return timeoutMs;
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the intent action {@code ACTION_GATT_DISCONNECTED}
@@ -293,11 +495,90 @@ public class BleService extends Service implements ActionFailureCallback {
 
         final BleDevice bleDevice = mDevices.get(deviceAddress);
         if (bleDevice == null) {
-            Log.w(TAG, "Unknown BLE Device");
+            if (mConnectionScheduler.isPending(deviceAddress)) {
+                // Still waiting for a free connection attempt
+                mConnectionScheduler.cancel(deviceAddress);
+                notifyConnectionEvent(deviceAddress, ACTION_GATT_DISCONNECTED);
+            } else {
+                Log.w(TAG, "Unknown BLE Device");
+            }
+            return;
+        }
+
+        if (bleDevice.getState() == DeviceState.CONNECTING) {
+            mConnectionScheduler.cancel(deviceAddress);
+            abortConnection(deviceAddress);
             return;
         }
+        if (enterState(bleDevice, DeviceState.DISCONNECTING)) {
+            bleDevice.getBluetoothGatt().disconnect();
+        }
+    }
 
+    /**
+     * Closes the gatt of a device which is not connected yet, the stack does not report the
+     * disconnect of such a device reliably.
+     */
+    private void abortConnection(@NonNull final String deviceAddress) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            return;
+        }
         bleDevice.getBluetoothGatt().disconnect();
+        releaseDevice(bleDevice);
+    }
+
+    /**
+     * Moves the device to the given phase and arms the deadline of the phase.
+     *
+     * @return false if the device is in this or a later phase already.
+     */
+    private boolean enterState(@NonNull final BleDevice bleDevice, @NonNull final DeviceState state) {
+        if (!bleDevice.advanceTo(state)) {
+            return false;
+        }
+        Log.d(TAG, "Device %s entered state %s", bleDevice.getAddress(), state);
+        if (state == DeviceState.READY) {
+            mReadyDevices.add(bleDevice.getAddress());
+        } else {
+            mReadyDevices.remove(bleDevice.getAddress());
+        }
+
+        // The deadline of the previous phase is obsolete, the connecting one is kept by the scheduler
+        mConnectionHandler.removeCallbacksAndMessages(bleDevice);
+        final long timeoutMs;
+        if (state == DeviceState.DISCOVERING) {
+            timeoutMs = mDiscoveryTimeoutMs;
+        } else if (state == DeviceState.DISCONNECTING) {
+            timeoutMs = mDisconnectTimeoutMs;
+        } else {
+            return true;
+        }
+        mConnectionHandler.postAtTime(new PhaseTimeout(bleDevice, state), bleDevice,
+                SystemClock.uptimeMillis() + timeoutMs);
+        return true;
+    }
+
+    /**
+     * Closes the gatt of the device and forgets about the device.
+     */
+    private void releaseDevice(@NonNull final BleDevice bleDevice) {
+        final String deviceAddress = bleDevice.getAddress();
+        if (!mDevices.remove(deviceAddress, bleDevice)) {
+            return;
+        }
+        mReadyDevices.remove(deviceAddress);
+        mConnectionHandler.removeCallbacksAndMessages(bleDevice);
+
+        // After using a given device, you should make sure that BluetoothGatt.close() is called
+        // such that resources are cleaned up properly.
+        bleDevice.getBluetoothGatt().close();
+        bleDevice.clearIndex();
+        mActionScheduler.clear(deviceAddress);
+
+        Log.i(TAG, "Disconnected from GATT server.");
+
+        notifyConnectionEvent(deviceAddress, ACTION_GATT_DISCONNECTED);
     }
 
     /**
@@ -307,12 +588,27 @@ public class BleService extends Service implements ActionFailureCallback {
      *
      * @param deviceAddress      The device address of the destination device.
      * @param characteristicUuid The uuid of the characteristic to read from.
+     * @return the future completing with the value read.
+     */
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final String characteristicUuid) {
+        return readCharacteristic(deviceAddress, characteristicUuid, ActionPriority.CONTROL);
+    }
+
+    /**
+     * Convenience method to request a read on a given {@code BluetoothGattCharacteristic} in the
+     * given priority lane. See {@code readCharacteristic} for more details.
+     *
+     * @param deviceAddress      The device address of the destination device.
+     * @param characteristicUuid The uuid of the characteristic to read from.
+     * @param priority           The lane of the device queue the read is scheduled in.
+     * @return the future completing with the value read.
      */
-    public void readCharacteristic(@NonNull final String deviceAddress,
-                                   final String characteristicUuid) {
-        final BluetoothGattCharacteristic characteristic = getCharacteristics(deviceAddress,
-                Collections.singletonList(characteristicUuid)).get(characteristicUuid);
-        readCharacteristic(deviceAddress, characteristic);
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final String characteristicUuid,
+                                         @NonNull final ActionPriority priority) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(deviceAddress, characteristicUuid);
+        return readCharacteristic(deviceAddress, characteristic, priority);
     }
 
     /**
@@ -321,26 +617,79 @@ public class BleService extends Service implements ActionFailureCallback {
      *
      * @param deviceAddress  The device address of the destination device.
      * @param characteristic The characteristic to read from.
+     * @return the future completing with the value read.
+     */
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final BluetoothGattCharacteristic characteristic) {
+        return readCharacteristic(deviceAddress, characteristic, ActionReadCharacteristic.DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic} with a custom timeout. The read
+     * is executed again if the device does not answer within the timeout.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to read from.
+     * @param timeoutMs      The time in milliseconds to wait for the read result.
+     * @return the future completing with the value read.
+     */
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         final long timeoutMs) {
+        return readCharacteristic(deviceAddress, characteristic, timeoutMs, ActionPriority.CONTROL);
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic} in the given priority lane.
+     * Reads with {@link ActionPriority#INTERACTIVE} are executed before pending bulk transfers.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to read from.
+     * @param priority       The lane of the device queue the read is scheduled in.
+     * @return the future completing with the value read.
      */
-    public void readCharacteristic(@NonNull final String deviceAddress,
-                                   final BluetoothGattCharacteristic characteristic) {
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         @NonNull final ActionPriority priority) {
+        return readCharacteristic(deviceAddress, characteristic, ActionReadCharacteristic.DEFAULT_TIMEOUT_MS, priority);
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic} with a custom timeout in the
+     * given priority lane.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to read from.
+     * @param timeoutMs      The time in milliseconds to wait for the read result.
+     * @param priority       The lane of the device queue the read is scheduled in.
+     * @return the future completing with the value read.
+     */
+    public GattFuture readCharacteristic(@NonNull final String deviceAddress,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         final long timeoutMs,
+                                         @NonNull final ActionPriority priority) {
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized.");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
         final BleDevice bleDevice = mDevices.get(deviceAddress);
         if (bleDevice == null) {
             Log.w(TAG, "Unknown BLE Device");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
         if (characteristic == null) {
             Log.w(TAG, "Invalid characteristic");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
-        mActionScheduler.schedule(new ActionReadCharacteristic(bleDevice.getBluetoothGatt(), characteristic));
+        final ActionReadCharacteristic action =
+                new ActionReadCharacteristic(bleDevice.getBluetoothGatt(), characteristic);
+        action.setTimeout(timeoutMs);
+        action.setPriority(priority);
+        mActionScheduler.schedule(action);
+        return action.getFuture();
     }
 
     /**
@@ -348,21 +697,262 @@ public class BleService extends Service implements ActionFailureCallback {
      *
      * @param deviceAddress  The device address of the destination device.
      * @param characteristic The characteristic to write to.
+     * @return the future completing with the value written.
+     */
+    public GattFuture writeCharacteristic(@NonNull final String deviceAddress,
+                                          final BluetoothGattCharacteristic characteristic) {
+        return writeCharacteristic(deviceAddress, characteristic, ActionWriteCharacteristic.DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Request a write on a given {@code BluetoothGattCharacteristic} with a custom timeout. The
+     * write is executed again if the device does not confirm it within the timeout.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to write to.
+     * @param timeoutMs      The time in milliseconds to wait for the write confirmation.
+     * @return the future completing with the value written.
+     */
+    public GattFuture writeCharacteristic(@NonNull final String deviceAddress,
+                                          final BluetoothGattCharacteristic characteristic,
+                                          final long timeoutMs) {
+        return writeCharacteristic(deviceAddress, characteristic, timeoutMs, ActionPriority.CONTROL);
+    }
+
+    /**
+     * Request a write on a given {@code BluetoothGattCharacteristic} in the given priority lane.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to write to.
+     * @param priority       The lane of the device queue the write is scheduled in.
+     * @return the future completing with the value written.
+     */
+    public GattFuture writeCharacteristic(@NonNull final String deviceAddress,
+                                          final BluetoothGattCharacteristic characteristic,
+                                          @NonNull final ActionPriority priority) {
+        return writeCharacteristic(deviceAddress, characteristic, ActionWriteCharacteristic.DEFAULT_TIMEOUT_MS, priority);
+    }
+
+    /**
+     * Request a write on a given {@code BluetoothGattCharacteristic} with a custom timeout in the
+     * given priority lane.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to write to.
+     * @param timeoutMs      The time in milliseconds to wait for the write confirmation.
+     * @param priority       The lane of the device queue the write is scheduled in.
+     * @return the future completing with the value written.
      */
-    public void writeCharacteristic(@NonNull final String deviceAddress,
-                                    final BluetoothGattCharacteristic characteristic) {
+    public GattFuture writeCharacteristic(@NonNull final String deviceAddress,
+                                          final BluetoothGattCharacteristic characteristic,
+                                          final long timeoutMs,
+                                          @NonNull final ActionPriority priority) {
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized.");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
         final BleDevice bleDevice = mDevices.get(deviceAddress);
         if (bleDevice == null) {
             Log.w(TAG, "Unknown BLE Device");
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
+        }
+
+        final ActionWriteCharacteristic action =
+                new ActionWriteCharacteristic(bleDevice.getBluetoothGatt(), characteristic);
+        action.setTimeout(timeoutMs);
+        action.setPriority(priority);
+        mActionScheduler.schedule(action);
+        return action.getFuture();
+    }
+
+    /**
+     * Convenience method to stream a payload to a given {@code BluetoothGattCharacteristic} with
+     * the default credit window. See {@code writeCharacteristicStream} for more details.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to write to.
+     * @param payload        The data to write.
+     * @return the batch of the packet writes or null if the stream could not be scheduled.
+     */
+    public ActionBatch writeCharacteristicStream(@NonNull final String deviceAddress,
+                                                 final BluetoothGattCharacteristic characteristic,
+                                                 @NonNull final byte[] payload) {
+        return writeCharacteristicStream(deviceAddress, characteristic, payload, DEFAULT_WRITE_CREDIT_WINDOW);
+    }
+
+    /**
+     * Streams a payload to a given {@code BluetoothGattCharacteristic} supporting writes without
+     * response. The payload is split into packets as large as the negotiated MTU allows (see
+     * {@link #getMtu(String)}), which are written in order, keeping up to {@code creditWindow}
+     * writes in flight. A packet the stack refuses while others are in flight waits for the next
+     * confirmation, without counting as a failed attempt. Any other packet the stack did not
+     * accept is written again; a packet not reported as written in time is reported through the intent action
+     * {@code ACTION_DID_FAIL} and fails the stream - the remaining packets are not written.
+     *
+     * @param deviceAddress  The device address of the destination device.
+     * @param characteristic The characteristic to write to.
+     * @param payload        The data to write.
+     * @param creditWindow   The maximum number of packets in flight, at least 1.
+     * @return the batch of the packet writes or null if the stream could not be scheduled.
+     */
+    public ActionBatch writeCharacteristicStream(@NonNull final String deviceAddress,
+                                                 final BluetoothGattCharacteristic characteristic,
+                                                 @NonNull final byte[] payload,
+                                                 final int creditWindow) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized.");
+            return null;
+        }
+
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return null;
+        }
+
+        if (characteristic == null ||
+                (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            Log.w(TAG, "Invalid characteristic - writes without response are not supported");
+            return null;
+        }
+
+        // A negotiation in progress only increases the MTU, the current one is safe to use
+        final int chunkSize = bleDevice.getMtu() - ATT_HEADER_SIZE;
+        final List<GattAction> actions = new ArrayList<>();
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+            final byte[] chunk = Arrays.copyOfRange(payload, offset,
+                    Math.min(offset + chunkSize, payload.length));
+            final ActionWriteWithoutResponse action = new ActionWriteWithoutResponse(
+                    bleDevice.getBluetoothGatt(), characteristic, chunk, creditWindow);
+            action.setPriority(ActionPriority.BULK);
+            actions.add(action);
+        }
+        return mActionScheduler.scheduleBatch(bleDevice.getBluetoothGatt(), actions);
+    }
+
+    /**
+     * Requests a larger ATT MTU from the device, which allows larger reads, writes and
+     * notifications. The preferred MTU (see {@link #setPreferredMtu(int)}) is requested
+     * automatically once the services of a device are discovered.
+     *
+     * @param deviceAddress The device address of the destination device.
+     * @param mtu           The requested MTU, between {@link #DEFAULT_MTU} and 517 bytes.
+     * @return the future completing once the MTU was negotiated, see {@link #getMtu(String)}.
+     */
+    public GattFuture requestMtu(@NonNull final String deviceAddress, final int mtu) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized.");
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
+        }
+
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
+        }
+
+        final ActionRequestMtu action = new ActionRequestMtu(bleDevice.getBluetoothGatt(), mtu);
+        mActionScheduler.schedule(action);
+        return action.getFuture();
+    }
+
+    /**
+     * @param deviceAddress The device address of the destination device.
+     * @return the ATT MTU negotiated with the device, or {@link #DEFAULT_MTU} if none was negotiated
+     * yet. Reads and notifications carry up to 3 bytes less than the MTU.
+     */
+    public int getMtu(@NonNull final String deviceAddress) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        return (bleDevice == null) ? DEFAULT_MTU : bleDevice.getMtu();
+    }
+
+    /**
+     * Sets the MTU requested automatically once the services of a device are discovered,
+     * {@link #PREFERRED_MTU} by default.
+     *
+     * @param mtu The MTU to request, or {@link #DEFAULT_MTU} to keep the default MTU.
+     */
+    public void setPreferredMtu(final int mtu) {
+        if (mtu < DEFAULT_MTU) {
+            throw new IllegalArgumentException("The MTU must be at least " + DEFAULT_MTU + " bytes");
+        }
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * Switches the connection to a device to {@code CONNECTION_PRIORITY_HIGH}, the shortest
+     * connection interval, for the duration of a bulk transfer. Boosts are reference counted: the
+     * connection returns to the idle priority (see {@link #setIdleConnectionPriority(int)}) once
+     * every boost was released using {@link #releaseHighConnectionPriority(String)}, hence
+     * overlapping transfers do not interfere. A disconnect drops all boosts of the device.
+     *
+     * @param deviceAddress The device address of the destination device.
+     * @return true if the connection is boosted, false if the device is unknown or the stack
+     * rejected the request - the boost has to be released nevertheless. A rejected request is
+     * issued again by the next call for the device.
+     */
+    public boolean acquireHighConnectionPriority(@NonNull final String deviceAddress) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return false;
+        }
+        return bleDevice.acquireHighConnectionPriority();
+    }
+
+    /**
+     * Releases a boost acquired using {@link #acquireHighConnectionPriority(String)}.
+     *
+     * @param deviceAddress The device address of the destination device.
+     */
+    public void releaseHighConnectionPriority(@NonNull final String deviceAddress) {
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
             return;
         }
+        bleDevice.releaseHighConnectionPriority(mIdleConnectionPriority);
+    }
+
+    /**
+     * Sets the priority a connection returns to when its last boost is released.
+     *
+     * @param priority {@code BluetoothGatt.CONNECTION_PRIORITY_BALANCED} (default) or
+     *                 {@code BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER}.
+     */
+    public void setIdleConnectionPriority(final int priority) {
+        if (priority != BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+                && priority != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            throw new IllegalArgumentException("The idle priority must be balanced or low power");
+        }
+        mIdleConnectionPriority = priority;
+    }
+
+    /**
+     * Schedules a batch of actions for a device. The actions are executed contiguously in the
+     * given order, unless actions of a higher priority are scheduled in the meantime. The returned
+     * handle completes with the values of all actions, or with the first action which failed; the
+     * remaining actions of a failed batch are not executed. The individual results are reported
+     * through the intent actions as usual.
+     *
+     * @param deviceAddress The device address of the destination device.
+     * @param actions       The actions to execute, usually created without a gatt instance.
+     * @return the handle of the batch or null if the device is unknown.
+     */
+    public ActionBatch scheduleBatch(@NonNull final String deviceAddress,
+                                     @NonNull final List<GattAction> actions) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized.");
+            return null;
+        }
+
+        final BleDevice bleDevice = mDevices.get(deviceAddress);
+        if (bleDevice == null) {
+            Log.w(TAG, "Unknown BLE Device");
+            return null;
+        }
 
-        mActionScheduler.schedule(new ActionWriteCharacteristic(bleDevice.getBluetoothGatt(), characteristic));
+        return mActionScheduler.scheduleBatch(bleDevice.getBluetoothGatt(), actions);
     }
 
     /**
@@ -372,28 +962,32 @@ public class BleService extends Service implements ActionFailureCallback {
      * @param characteristic Characteristic to act on.
      * @param descriptor     if there is a descriptor to write, else provide null.
      * @param enabled        If true, enable notification.  False otherwise.
+     * @return the future completing once the descriptor was written.
      */
-    public void setCharacteristicNotification(@NonNull final String deviceAddress,
-                                              final BluetoothGattCharacteristic characteristic,
-                                              final BluetoothGattDescriptor descriptor,
-                                              final boolean enabled) {
+    public GattFuture setCharacteristicNotification(@NonNull final String deviceAddress,
+                                                    final BluetoothGattCharacteristic characteristic,
+                                                    final BluetoothGattDescriptor descriptor,
+                                                    final boolean enabled) {
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized.");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
         final BleDevice bleDevice = mDevices.get(deviceAddress);
         if (bleDevice == null) {
             Log.w(TAG, "Unknown BLE Device");
-            return;
+            return GattFuture.failed(new GattException(GattException.Reason.UNAVAILABLE));
         }
 
         Log.d(TAG, "setCharacteristicNotification " + ((enabled) ? "TRUE" : "FALSE"));
         bleDevice.getBluetoothGatt().setCharacteristicNotification(characteristic, enabled);
 
-        if (descriptor != null) {
-            mActionScheduler.schedule(new ActionWriteDescriptor(bleDevice.getBluetoothGatt(), descriptor));
+        if (descriptor == null) {
+            return GattFuture.completed(new byte[0]);
         }
+        final ActionWriteDescriptor action = new ActionWriteDescriptor(bleDevice.getBluetoothGatt(), descriptor);
+        mActionScheduler.schedule(action);
+        return action.getFuture();
     }
 
     /**
@@ -425,15 +1019,15 @@ public class BleService extends Service implements ActionFailureCallback {
         if (action instanceof ActionReadCharacteristic) {
             final ActionReadCharacteristic actionRead = (ActionReadCharacteristic) action;
             final BluetoothGattCharacteristic characteristic = actionRead.getCharacteristic();
-            broadcastFailure(action.getDeviceAddress(), characteristic, false);
+            notifyFailure(action.getDeviceAddress(), characteristic, false);
         } else if (action instanceof ActionWriteCharacteristic) {
             final ActionWriteCharacteristic actionWrite = (ActionWriteCharacteristic) action;
             final BluetoothGattCharacteristic characteristic = actionWrite.getCharacteristic();
-            broadcastFailure(action.getDeviceAddress(), characteristic, true);
+            notifyFailure(action.getDeviceAddress(), characteristic, true);
         } else if (action instanceof ActionWriteDescriptor) {
             final ActionWriteDescriptor actionWrite = (ActionWriteDescriptor) action;
             final BluetoothGattDescriptor descriptor = actionWrite.getGattDescriptor();
-            broadcastFailure(action.getDeviceAddress(), descriptor.getCharacteristic(), true);
+            notifyFailure(action.getDeviceAddress(), descriptor.getCharacteristic(), true);
         }
     }
 
@@ -461,6 +1055,47 @@ public class BleService extends Service implements ActionFailureCallback {
         return filters;
     }
 
+    private void notifyConnectionEvent(final String deviceAddress, final String action) {
+        final ListenerRegistration[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].obtainEvent(action, deviceAddress).dispatch();
+        }
+        if (mIntentBroadcastsEnabled) {
+            broadcastUpdate(deviceAddress, action);
+        }
+    }
+
+    private void notifyCharacteristicEvent(final String deviceAddress, final String action,
+                                           final BluetoothGattCharacteristic characteristic) {
+        final int characteristicId = UuidRegistry.getId(characteristic.getUuid());
+        final ListenerRegistration[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            final ListenerEvent event = listeners[i].obtainEvent(action, deviceAddress);
+            event.mCharacteristicId = characteristicId;
+            event.setValue(characteristic.getValue());
+            event.dispatch();
+        }
+        if (mIntentBroadcastsEnabled) {
+            broadcastUpdate(deviceAddress, action, characteristic);
+        }
+    }
+
+    private void notifyFailure(final String deviceAddress, final BluetoothGattCharacteristic characteristic,
+                               final boolean isWriteFailure) {
+        final int characteristicId = UuidRegistry.getId(characteristic.getUuid());
+        final ListenerRegistration[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            final ListenerEvent event = listeners[i].obtainEvent(ACTION_DID_FAIL, deviceAddress);
+            event.mCharacteristicId = characteristicId;
+            event.mIsWriteFailure = isWriteFailure;
+            event.setValue(characteristic.getValue());
+            event.dispatch();
+        }
+        if (mIntentBroadcastsEnabled) {
+            broadcastFailure(deviceAddress, characteristic, isWriteFailure);
+        }
+    }
+
     private void broadcastUpdate(final String deviceAddress, final String action) {
         sendBroadcast(createBaseIntent(deviceAddress, action));
     }
@@ -497,34 +1132,208 @@ public class BleService extends Service implements ActionFailureCallback {
         return intent;
     }
 
+    /**
+     * A listener and the events on their way to it. The events are recycled once delivered, so
+     * notifying the listener does not allocate as long as it keeps up with the events.
+     */
+    private static class ListenerRegistration {
+        private static final int RECYCLED_EVENTS = 16;
+
+        final BleListener mListener;
+        final Executor mExecutor;
+        private final ListenerEvent[] mEvents;
+        private int mNextEvent;
+
+        ListenerRegistration(@NonNull final BleListener listener, @NonNull final Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+            mEvents = new ListenerEvent[RECYCLED_EVENTS];
+            for (int i = 0; i < mEvents.length; i++) {
+                mEvents[i] = new ListenerEvent(this);
+            }
+        }
+
+        @NonNull
+        ListenerEvent obtainEvent(@NonNull final String action, @NonNull final String deviceAddress) {
+            ListenerEvent event = null;
+            synchronized (this) {
+                for (int i = 0; i < mEvents.length && event == null; i++) {
+                    final ListenerEvent candidate = mEvents[mNextEvent];
+                    mNextEvent = (mNextEvent + 1) % mEvents.length;
+                    if (!candidate.mInUse) {
+                        candidate.mInUse = true;
+                        event = candidate;
+                    }
+                }
+            }
+            if (event == null) {
+                // The listener falls behind, this event is not recycled
+                event = new ListenerEvent(this);
+            }
+            event.mAction = action;
+            event.mDeviceAddress = deviceAddress;
+            return event;
+        }
+    }
+
+    private static class ListenerEvent implements Runnable {
+        private final ListenerRegistration mRegistration;
+        volatile boolean mInUse;
+        String mAction;
+        String mDeviceAddress;
+        int mCharacteristicId;
+        boolean mIsWriteFailure;
+        private byte[] mValue;
+        private boolean mHasValue;
+
+        ListenerEvent(@NonNull final ListenerRegistration registration) {
+            mRegistration = registration;
+        }
+
+        /**
+         * Copies the value, since the stack reuses its array while the listener is called later.
+         * The array of the event is reused as long as the values have the same length.
+         */
+        void setValue(@Nullable final byte[] value) {
+            mHasValue = (value != null);
+            if (value == null) {
+                return;
+            }
+            if (mValue == null || mValue.length != value.length) {
+                mValue = new byte[value.length];
+            }
+            System.arraycopy(value, 0, mValue, 0, value.length);
+        }
+
+        void dispatch() {
+            mRegistration.mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                deliver(mRegistration.mListener);
+            } finally {
+                mInUse = false;
+            }
+        }
+
+        private void deliver(@NonNull final BleListener listener) {
+            final byte[] value = (mHasValue) ? mValue : null;
+            switch (mAction) {
+                case ACTION_GATT_CONNECTED:
+                    listener.onDeviceConnected(mDeviceAddress);
+                    break;
+                case ACTION_GATT_SERVICES_DISCOVERED:
+                    listener.onServicesDiscovered(mDeviceAddress);
+                    break;
+                case ACTION_GATT_DISCONNECTED:
+                    listener.onDeviceDisconnected(mDeviceAddress);
+                    break;
+                case ACTION_DATA_AVAILABLE:
+                    listener.onDataAvailable(mDeviceAddress, mCharacteristicId, value);
+                    break;
+                case ACTION_DID_WRITE_CHARACTERISTIC:
+                    listener.onCharacteristicWritten(mDeviceAddress, mCharacteristicId);
+                    break;
+                case ACTION_DID_FAIL:
+                    listener.onFailure(mDeviceAddress, mCharacteristicId, value, mIsWriteFailure);
+                    break;
+            }
+        }
+    }
+
+    private class GattConnector implements ConnectionScheduler.Connector {
+        @Override
+        public boolean startConnection(@NonNull final String deviceAddress) {
+            final BleDevice previousDevice = mDevices.get(deviceAddress);
+            if (previousDevice != null) {
+                if (previousDevice.getState() != DeviceState.DISCONNECTING) {
+                    Log.d(TAG, "Device %s is already connected or connecting.", deviceAddress);
+                    return false;
+                }
+                // The disconnect is not confirmed yet, its gatt has to be closed before it is replaced.
+                releaseDevice(previousDevice);
+            }
+            // Don't reuse gatt of previously connected device. Always try fresh connect.
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
+            // We want to directly connect to the device, so we are setting the autoConnect
+            // parameter to false.
+            final BluetoothGatt bluetoothGatt = device.connectGatt(BleService.this, false, mGattCallback);
+            if (bluetoothGatt == null) {
+                Log.w(TAG, "Unable to create a connection to %s.", deviceAddress);
+                notifyConnectionEvent(deviceAddress, ACTION_GATT_DISCONNECTED);
+                return false;
+            }
+            Log.d(TAG, "Trying to create a new connection.");
+
+            if (mDevices.putIfAbsent(deviceAddress, new BleDevice(bluetoothGatt)) != null) {
+                Log.w(TAG, "Device %s was connected concurrently.", deviceAddress);
+                bluetoothGatt.close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void abortConnection(@NonNull final String deviceAddress) {
+            BleService.this.abortConnection(deviceAddress);
+        }
+    }
+
+    /**
+     * Gives up on a device which did not leave a phase in time.
+     */
+    private class PhaseTimeout implements Runnable {
+        private final BleDevice mBleDevice;
+        private final DeviceState mState;
+
+        PhaseTimeout(@NonNull final BleDevice bleDevice, @NonNull final DeviceState state) {
+            mBleDevice = bleDevice;
+            mState = state;
+        }
+
+        @Override
+        public void run() {
+            if (mBleDevice.getState() != mState) {
+                return;
+            }
+            Log.w(TAG, "Device %s timed out in state %s", mBleDevice.getAddress(), mState);
+            if (mState == DeviceState.DISCOVERING) {
+                disconnect(mBleDevice.getAddress());
+            } else {
+                releaseDevice(mBleDevice);
+            }
+        }
+    }
+
     class BleCallback extends BluetoothGattCallback {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             final String deviceAddress = gatt.getDevice().getAddress();
             final BleDevice bleDevice = mDevices.get(deviceAddress);
-            if (bleDevice == null) return;
+            // Late callbacks of an aborted connection must not affect a new one
+            if (bleDevice == null || bleDevice.getBluetoothGatt() != gatt) return;
 
+            if (newState == BluetoothProfile.STATE_CONNECTED
+                    || newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // Either way the attempt is over, the next one may start
+                mConnectionScheduler.onAttemptFinished(deviceAddress);
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                bleDevice.setConnectionState(newState);
+                if (!enterState(bleDevice, DeviceState.DISCOVERING)) return;
 
                 Log.i(TAG, "Connected to GATT server.");
-                Log.i(TAG, "Attempting to start service discovery: " +
-                        bleDevice.getBluetoothGatt().discoverServices());
+                final boolean discoveryStarted = bleDevice.getBluetoothGatt().discoverServices();
+                Log.i(TAG, "Attempting to start service discovery: " + discoveryStarted);
 
-                broadcastUpdate(deviceAddress, ACTION_GATT_CONNECTED);
+                notifyConnectionEvent(deviceAddress, ACTION_GATT_CONNECTED);
+                if (!discoveryStarted) {
+                    disconnect(deviceAddress);
+                }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                bleDevice.setConnectionState(newState);
-
-                // After using a given device, you should make sure that BluetoothGatt.close() is called
-                // such that resources are cleaned up properly.
-                bleDevice.getBluetoothGatt().close();
-                mDevices.remove(deviceAddress);
-                mActionScheduler.clear(deviceAddress);
-
-                Log.i(TAG, "Disconnected from GATT server.");
-
-                broadcastUpdate(deviceAddress, ACTION_GATT_DISCONNECTED);
+                releaseDevice(bleDevice);
             }
         }
 
@@ -534,7 +1343,21 @@ public class BleService extends Service implements ActionFailureCallback {
             Log.i(TAG, "onServicesDiscovered for device %s with status %d", deviceAddress, status);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(deviceAddress, ACTION_GATT_SERVICES_DISCOVERED);
+                final BleDevice bleDevice = mDevices.get(deviceAddress);
+                if (bleDevice == null || bleDevice.getState() != DeviceState.DISCOVERING) {
+                    // Disconnecting already, e.g. after the discovery timed out
+                    return;
+                }
+                bleDevice.indexServices();
+                enterState(bleDevice, DeviceState.READY);
+                // Scheduled ahead of the requests of the listeners, which then use the larger MTU
+                if (mPreferredMtu > DEFAULT_MTU) {
+                    final ActionRequestMtu action = new ActionRequestMtu(gatt, mPreferredMtu);
+                    // Devices not answering keep the default MTU instead of stalling the queue
+                    action.failsTillDropOut = 1;
+                    mActionScheduler.schedule(action);
+                }
+                notifyConnectionEvent(deviceAddress, ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 disconnect(deviceAddress);
             }
@@ -543,10 +1366,9 @@ public class BleService extends Service implements ActionFailureCallback {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            final String deviceAddress = gatt.getDevice().getAddress();
-            Log.i(TAG, "onCharacteristicChanged for device %s", deviceAddress);
-
-            broadcastUpdate(deviceAddress, ACTION_DATA_AVAILABLE, characteristic);
+            // Not logged, the arguments of the log call would be allocated for every notification
+            notifyCharacteristicEvent(gatt.getDevice().getAddress(), ACTION_DATA_AVAILABLE,
+                    characteristic);
         }
 
         @Override
@@ -555,12 +1377,12 @@ public class BleService extends Service implements ActionFailureCallback {
                                          int status) {
             final String deviceAddress = gatt.getDevice().getAddress();
             Log.i(TAG, "onCharacteristicRead for device %s with status %d", deviceAddress, status);
-            mActionScheduler.confirm(deviceAddress);
+            mActionScheduler.confirm(deviceAddress, status, characteristic.getValue());
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(deviceAddress, ACTION_DATA_AVAILABLE, characteristic);
+                notifyCharacteristicEvent(deviceAddress, ACTION_DATA_AVAILABLE, characteristic);
             } else {
-                broadcastFailure(deviceAddress, characteristic, false);
+                notifyFailure(deviceAddress, characteristic, false);
             }
         }
 
@@ -568,12 +1390,12 @@ public class BleService extends Service implements ActionFailureCallback {
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             final String deviceAddress = gatt.getDevice().getAddress();
             Log.i(TAG, "onCharacteristicWrite for device %s with status %d", deviceAddress, status);
-            mActionScheduler.confirm(deviceAddress);
+            mActionScheduler.confirm(deviceAddress, status, characteristic.getValue());
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(deviceAddress, ACTION_DID_WRITE_CHARACTERISTIC, characteristic);
+                notifyCharacteristicEvent(deviceAddress, ACTION_DID_WRITE_CHARACTERISTIC, characteristic);
             } else {
-                broadcastFailure(deviceAddress, characteristic, true);
+                notifyFailure(deviceAddress, characteristic, true);
             }
         }
 
@@ -581,14 +1403,26 @@ public class BleService extends Service implements ActionFailureCallback {
         public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             final String deviceAddress = gatt.getDevice().getAddress();
             Log.i(TAG, "onDescriptorRead for device %s with status %d", deviceAddress, status);
-            mActionScheduler.confirm(deviceAddress);
+            mActionScheduler.confirm(deviceAddress, status, descriptor.getValue());
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             final String deviceAddress = gatt.getDevice().getAddress();
             Log.i(TAG, "onDescriptorWrite for device %s with status %d", deviceAddress, status);
-            mActionScheduler.confirm(deviceAddress);
+            mActionScheduler.confirm(deviceAddress, status, descriptor.getValue());
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            final String deviceAddress = gatt.getDevice().getAddress();
+            Log.i(TAG, "onMtuChanged for device %s to %d with status %d", deviceAddress, mtu, status);
+            final BleDevice bleDevice = mDevices.get(deviceAddress);
+            if (bleDevice != null && status == BluetoothGatt.GATT_SUCCESS) {
+                bleDevice.setMtu(mtu);
+            }
+            // The remote device may change the MTU on its own, which must not confirm another action
+            mActionScheduler.confirm(deviceAddress, ActionRequestMtu.class, status, null);
         }
     }
 }
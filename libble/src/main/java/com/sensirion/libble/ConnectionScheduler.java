@@ -0,0 +1,159 @@
+package com.sensirion.libble;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.sensirion.libble.log.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Limits the number of connection attempts in flight. Further connects wait in FIFO order until an
+ * attempt finished, since the stack serializes the attempts anyway and times out the ones waiting
+ * too long, which ends in a storm of failed connections (status 133) when many devices reconnect
+ * at once. Every attempt is aborted if it does not finish within the connection timeout.
+ * <p/>
+ * The connector is never called while holding the lock of the scheduler.
+ */
+class ConnectionScheduler {
+    private static final String TAG = ConnectionScheduler.class.getSimpleName();
+
+    /**
+     * Establishes the connections on behalf of the scheduler.
+     */
+    interface Connector {
+        /**
+         * @return false if the attempt could not be started, it is considered finished then.
+         */
+        boolean startConnection(@NonNull String deviceAddress);
+
+        /**
+         * Aborts an attempt which did not finish within the timeout.
+         */
+        void abortConnection(@NonNull String deviceAddress);
+    }
+
+    private final Connector mConnector;
+    private final Handler mHandler;
+    private final Queue<String> mPending;
+    private final Map<String, Runnable> mInFlight;
+    private int mMaxInFlight;
+    private long mTimeoutMs;
+
+    /**
+     * @param connector   The connector starting and aborting the attempts.
+     * @param handler     The handler the timeouts are posted to.
+     * @param maxInFlight The maximum number of attempts in flight.
+     * @param timeoutMs   The time an attempt may take.
+     */
+    ConnectionScheduler(@NonNull final Connector connector, @NonNull final Handler handler,
+                        final int maxInFlight, final long timeoutMs) {
+        mConnector = connector;
+        mHandler = handler;
+        mPending = new LinkedList<>();
+        mInFlight = new HashMap<>();
+        setMaxInFlight(maxInFlight);
+        setTimeout(timeoutMs);
+    }
+
+    synchronized void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one connection attempt must be allowed");
+        }
+        mMaxInFlight = maxInFlight;
+    }
+
+    synchronized void setTimeout(final long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("The timeout must be greater than 0 ms");
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Queues a connection attempt. Has no effect if an attempt for the device is pending already.
+     */
+    void connect(@NonNull final String deviceAddress) {
+        synchronized (this) {
+            if (mInFlight.containsKey(deviceAddress) || mPending.contains(deviceAddress)) {
+                Log.d(TAG, "Connection attempt to %s is pending already", deviceAddress);
+                return;
+            }
+            mPending.add(deviceAddress);
+        }
+        startPendingAttempts();
+    }
+
+    /**
+     * Called once the attempt for the device finished, either connected or failed.
+     */
+    void onAttemptFinished(@NonNull final String deviceAddress) {
+        synchronized (this) {
+            final Runnable timeout = mInFlight.remove(deviceAddress);
+            if (timeout == null) {
+                return;
+            }
+            mHandler.removeCallbacks(timeout);
+        }
+        startPendingAttempts();
+    }
+
+    /**
+     * Drops the attempt for the device, whether it is waiting or in flight. The caller takes care
+     * of an attempt in flight.
+     */
+    void cancel(@NonNull final String deviceAddress) {
+        synchronized (this) {
+            mPending.remove(deviceAddress);
+        }
+        onAttemptFinished(deviceAddress);
+    }
+
+    synchronized boolean isPending(@NonNull final String deviceAddress) {
+        return mInFlight.containsKey(deviceAddress) || mPending.contains(deviceAddress);
+    }
+
+    private void startPendingAttempts() {
+        while (true) {
+            final String deviceAddress;
+            synchronized (this) {
+                if (mPending.isEmpty() || mInFlight.size() >= mMaxInFlight) {
+                    return;
+                }
+                deviceAddress = mPending.remove();
+                final Runnable timeout = new AttemptTimeout(deviceAddress);
+                mInFlight.put(deviceAddress, timeout);
+                mHandler.postDelayed(timeout, mTimeoutMs);
+            }
+            Log.d(TAG, "Starting connection attempt to %s", deviceAddress);
+            if (!mConnector.startConnection(deviceAddress)) {
+                onAttemptFinished(deviceAddress);
+            }
+        }
+    }
+
+    private class AttemptTimeout implements Runnable {
+        private final String mDeviceAddress;
+
+        AttemptTimeout(@NonNull final String deviceAddress) {
+            mDeviceAddress = deviceAddress;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ConnectionScheduler.this) {
+                if (mInFlight.get(mDeviceAddress) != this) {
+                    return;
+                }
+                // A late answer of the device does not finish the attempt a second time
+                mInFlight.remove(mDeviceAddress);
+            }
+            Log.w(TAG, "Connection attempt to %s timed out", mDeviceAddress);
+            mConnector.abortConnection(mDeviceAddress);
+            startPendingAttempts();
+        }
+    }
+}
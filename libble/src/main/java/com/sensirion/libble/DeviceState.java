@@ -0,0 +1,24 @@
+package com.sensirion.libble;
+
+/**
+ * The phases a connection to a device passes, in this order. A device never returns to an earlier
+ * phase, a reconnect starts over with a new {@link BleDevice}.
+ */
+enum DeviceState {
+    /**
+     * Waiting for the connection, bounded by the connection timeout.
+     */
+    CONNECTING,
+    /**
+     * Connected, waiting for the services to be discovered, bounded by the discovery timeout.
+     */
+    DISCOVERING,
+    /**
+     * The services are discovered, the device can be used.
+     */
+    READY,
+    /**
+     * Waiting for the disconnect to be confirmed by the stack, bounded by the disconnect timeout.
+     */
+    DISCONNECTING
+}
@@ -0,0 +1,489 @@
+package com.sensirion.libble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.sensirion.libble.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serves any number of scan clients with a single scan of the controller. The filters of all
+ * clients are merged, a client without filters makes the scan unfiltered. The merged settings
+ * satisfy the most demanding client: the highest scan mode, the shortest report delay and the
+ * most matches. The results are delivered to the clients whose filters match them, in the form
+ * each client asked for: Results reported one by one are collected for a batched client and
+ * delivered once its report delay passed, batches are split into single results for the others.
+ * If the clients ask for different callback types, the scan reports all matches and the first
+ * match and match lost callbacks are emulated per client, see {@link #MATCH_LOST_TIMEOUT_MS}.
+ * <p/>
+ * The scan is restarted only if it does not cover the merged filters or the merged settings
+ * change, which is neither the case for a client scanning for a subset of the devices scanned for
+ * already nor for a client leaving with the same settings as the others. Every start is charged to the
+ * {@link ScanStartBudget}: once it is exhausted, the running scan keeps serving the clients (the
+ * results are filtered for each client anyway) and the restart is deferred until the budget allows
+ * it, instead of starting a scan which is throttled silently. For the same reason the scan keeps
+ * running for {@link #SCAN_STOP_GRACE_MS} after the last client left, a client returning meanwhile
+ * reuses it instead of starting another one.
+ */
+class ScanMultiplexer extends ScanCallback {
+    private static final String TAG = ScanMultiplexer.class.getSimpleName();
+    // A device not seen for this long is reported lost to clients emulating CALLBACK_TYPE_MATCH_LOST
+    static final long MATCH_LOST_TIMEOUT_MS = 10000;
+    static final long SCAN_STOP_GRACE_MS = 5000;
+    private static final int NO_CALLBACK = 0;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler;
+    private final Map<BleScanCallback, ScanClient> mClients;
+    private final ScanStartBudget mBudget;
+    private final Runnable mDeferredUpdate;
+    private final Runnable mStopIdleScan;
+    private final Runnable mExpireSightings;
+    private boolean mExpiryScheduled;
+    // The filters and settings of the running scan, null if not scanning
+    private Set<ScanFilter> mScanFilters;
+    private BleScanSettings mScanSettings;
+
+    /**
+     * @param bluetoothAdapter The adapter scanning.
+     * @param handler          The handler deferred restarts are posted to.
+     */
+    ScanMultiplexer(@NonNull final BluetoothAdapter bluetoothAdapter, @NonNull final Handler handler) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mHandler = handler;
+        mClients = new LinkedHashMap<>();
+        mBudget = new ScanStartBudget();
+        mDeferredUpdate = new Runnable() {
+            @Override
+            public void run() {
+                final boolean started;
+                synchronized (ScanMultiplexer.this) {
+                    started = updateScan();
+                }
+                if (!started) {
+                    onScanFailed(SCAN_FAILED_INTERNAL_ERROR);
+                }
+            }
+        };
+        mStopIdleScan = new Runnable() {
+            @Override
+            public void run() {
+                stopIdleScan();
+            }
+        };
+        mExpireSightings = new Runnable() {
+            @Override
+            public void run() {
+                expireSightings(SystemClock.elapsedRealtime());
+            }
+        };
+    }
+
+    /**
+     * @return the number of scans which can be started right now without being throttled.
+     */
+    synchronized int getAvailableScanStarts() {
+        return mBudget.getAvailableStarts(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Adds a client to the scan, which is restarted if the client extends the filters or
+     * settings.
+     *
+     * @param callback The callback receiving the results of the client.
+     * @param filters  The filters of the client, empty to receive all results.
+     * @param settings The settings the client needs.
+     * @return false if the client is scanning already or the scan could not be started.
+     */
+    synchronized boolean addClient(@NonNull final BleScanCallback callback,
+                                   @NonNull final List<ScanFilter> filters,
+                                   @NonNull final BleScanSettings settings) {
+        if (mClients.containsKey(callback)) {
+            Log.w(TAG, "Already a scan running for this callback");
+            return false;
+        }
+        mClients.put(callback, new ScanClient(callback, filters, settings));
+        if (!updateScan()) {
+            mClients.remove(callback);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a client from the scan, which is stopped {@link #SCAN_STOP_GRACE_MS} after the last
+     * client left.
+     *
+     * @return false if the client was not scanning.
+     */
+    synchronized boolean removeClient(@NonNull final BleScanCallback callback) {
+        final ScanClient client = mClients.remove(callback);
+        if (client == null) {
+            return false;
+        }
+        mHandler.removeCallbacks(client.mFlush);
+        updateScan();
+        return true;
+    }
+
+    /**
+     * Restarts the scan with the merged filters and settings of the clients if they changed.
+     *
+     * @return false if the scan could not be started.
+     */
+    private boolean updateScan() {
+        if (mClients.isEmpty()) {
+            mHandler.removeCallbacks(mDeferredUpdate);
+            if (mScanFilters != null) {
+                mHandler.removeCallbacks(mStopIdleScan);
+                mHandler.postDelayed(mStopIdleScan, SCAN_STOP_GRACE_MS);
+            }
+            return true;
+        }
+        mHandler.removeCallbacks(mStopIdleScan);
+
+        final Set<ScanFilter> filters = mergeFilters();
+        final BleScanSettings settings = mergeSettings();
+        if (isCoveredByScan(filters) && settings.equals(mScanSettings)) {
+            return true;
+        }
+
+        mHandler.removeCallbacks(mDeferredUpdate);
+        final long nowMs = SystemClock.elapsedRealtime();
+        final long startTimeMs = mBudget.getNextStartTime(nowMs);
+        if (startTimeMs > nowMs) {
+            Log.w(TAG, "Scan start budget exhausted, deferring the scan by %d ms", startTimeMs - nowMs);
+            mHandler.postDelayed(mDeferredUpdate, startTimeMs - nowMs);
+            return true;
+        }
+
+        final BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mScanFilters != null && bluetoothLeScanner != null) {
+            bluetoothLeScanner.stopScan(this);
+        }
+        mScanFilters = null;
+        mScanSettings = null;
+        if (bluetoothLeScanner == null) {
+            Log.w(TAG, "Failed to scan. Bluetooth appears to be unavailable");
+            return false;
+        }
+
+        Log.d(TAG, "Starting scan for %d clients with %d filters", mClients.size(), filters.size());
+        bluetoothLeScanner.startScan(new ArrayList<>(filters),
+                settings.toScanSettings(mBluetoothAdapter), this);
+        mBudget.onScanStarted(nowMs);
+        mScanFilters = filters;
+        mScanSettings = settings;
+        return true;
+    }
+
+    /**
+     * Stops the scan if no client returned during the grace period.
+     */
+    private synchronized void stopIdleScan() {
+        if (!mClients.isEmpty() || mScanFilters == null) {
+            return;
+        }
+        final BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (bluetoothLeScanner != null) {
+            bluetoothLeScanner.stopScan(this);
+        }
+        mScanFilters = null;
+        mScanSettings = null;
+    }
+
+    /**
+     * @return true if the running scan reports every device matching one of the filters, hence
+     * there is no need to restart it for clients leaving.
+     */
+    private boolean isCoveredByScan(@NonNull final Set<ScanFilter> filters) {
+        if (mScanFilters == null) {
+            return false;
+        }
+        if (mScanFilters.isEmpty()) {
+            return true;
+        }
+        return !filters.isEmpty() && mScanFilters.containsAll(filters);
+    }
+
+    /**
+     * @return the filters of all clients, empty if a client receives all results.
+     */
+    @NonNull
+    private Set<ScanFilter> mergeFilters() {
+        final Set<ScanFilter> filters = new HashSet<>();
+        for (final ScanClient client : mClients.values()) {
+            if (client.mFilters.isEmpty()) {
+                return new HashSet<>();
+            }
+            filters.addAll(client.mFilters);
+        }
+        return filters;
+    }
+
+    @NonNull
+    private BleScanSettings mergeSettings() {
+        BleScanSettings merged = null;
+        for (final ScanClient client : mClients.values()) {
+            final BleScanSettings settings = client.mSettings;
+            if (merged == null) {
+                merged = settings;
+                continue;
+            }
+            merged = new BleScanSettings.Builder()
+                    .setScanMode(Math.max(merged.getScanMode(), settings.getScanMode()))
+                    .setReportDelay(Math.min(merged.getReportDelay(), settings.getReportDelay()))
+                    // The callback types of the clients are emulated on the reports of all matches
+                    .setCallbackType((merged.getCallbackType() == settings.getCallbackType()) ?
+                            settings.getCallbackType() : ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                    .setMatchMode((merged.getMatchMode() == settings.getMatchMode()) ?
+                            settings.getMatchMode() : ScanSettings.MATCH_MODE_AGGRESSIVE)
+                    .setNumOfMatches(Math.max(merged.getNumOfMatches(), settings.getNumOfMatches()))
+                    .build();
+        }
+        return (merged == null) ? new BleScanSettings.Builder().build() : merged;
+    }
+
+    @NonNull
+    private synchronized List<ScanClient> getClients() {
+        return new ArrayList<>(mClients.values());
+    }
+
+    @Override
+    public void onScanResult(final int callbackType, final ScanResult result) {
+        final long nowMs = SystemClock.elapsedRealtime();
+        for (final ScanClient client : getClients()) {
+            if (client.matches(result)) {
+                deliver(client, callbackType, result, nowMs);
+            }
+        }
+    }
+
+    @Override
+    public void onBatchScanResults(final List<ScanResult> results) {
+        final long nowMs = SystemClock.elapsedRealtime();
+        for (final ScanClient client : getClients()) {
+            final List<ScanResult> matchingResults = new ArrayList<>();
+            for (final ScanResult result : results) {
+                if (client.matches(result)) {
+                    matchingResults.add(result);
+                }
+            }
+            if (matchingResults.isEmpty()) {
+                continue;
+            }
+            if (client.isBatched()) {
+                client.mCallback.onBatchScanResults(matchingResults);
+            } else {
+                // A client without report delay only expects single results
+                for (final ScanResult result : matchingResults) {
+                    deliver(client, ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result, nowMs);
+                }
+            }
+        }
+    }
+
+    private void deliver(@NonNull final ScanClient client, final int callbackType,
+                         @NonNull final ScanResult result, final long nowMs) {
+        if (client.isBatched()) {
+            client.collect(result);
+            return;
+        }
+        final int clientCallbackType = client.toClientCallbackType(callbackType, result, nowMs);
+        if (clientCallbackType != NO_CALLBACK) {
+            client.mCallback.onScanResult(clientCallbackType, result);
+        }
+    }
+
+    private synchronized void scheduleSightingsExpiry() {
+        if (!mExpiryScheduled) {
+            mExpiryScheduled = true;
+            mHandler.postDelayed(mExpireSightings, MATCH_LOST_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Reports the devices not seen for {@link #MATCH_LOST_TIMEOUT_MS} as lost to the clients
+     * emulating {@code CALLBACK_TYPE_MATCH_LOST}.
+     *
+     * @param nowMs The current time in milliseconds of the elapsed realtime clock.
+     */
+    void expireSightings(final long nowMs) {
+        boolean sightingsLeft = false;
+        for (final ScanClient client : getClients()) {
+            final List<ScanResult> lostResults = client.removeSightingsBefore(nowMs - MATCH_LOST_TIMEOUT_MS);
+            if (client.wantsCallbackType(ScanSettings.CALLBACK_TYPE_MATCH_LOST)) {
+                for (final ScanResult result : lostResults) {
+                    client.mCallback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, result);
+                }
+            }
+            sightingsLeft |= client.hasSightings();
+        }
+        synchronized (this) {
+            mExpiryScheduled = false;
+        }
+        if (sightingsLeft) {
+            scheduleSightingsExpiry();
+        }
+    }
+
+    @Override
+    public void onScanFailed(final int errorCode) {
+        final List<ScanClient> clients;
+        synchronized (this) {
+            clients = new ArrayList<>(mClients.values());
+            mClients.clear();
+            mScanFilters = null;
+            mScanSettings = null;
+        }
+        for (final ScanClient client : clients) {
+            client.mCallback.onScanFailed(errorCode);
+        }
+    }
+
+    private class ScanClient {
+        final BleScanCallback mCallback;
+        final List<ScanFilter> mFilters;
+        final BleScanSettings mSettings;
+        // Delivers the results collected for a batched client
+        final Runnable mFlush;
+        private List<ScanResult> mCollectedResults;
+        // The last sighting per device address, if the callback type is emulated
+        private final Map<String, Sighting> mSightings;
+
+        ScanClient(@NonNull final BleScanCallback callback, @NonNull final List<ScanFilter> filters,
+                   @NonNull final BleScanSettings settings) {
+            mCallback = callback;
+            mFilters = filters;
+            mSettings = settings;
+            mFlush = new Runnable() {
+                @Override
+                public void run() {
+                    final List<ScanResult> results;
+                    synchronized (ScanClient.this) {
+                        results = mCollectedResults;
+                        mCollectedResults = null;
+                    }
+                    if (results != null) {
+                        mCallback.onBatchScanResults(results);
+                    }
+                }
+            };
+            mSightings = new HashMap<>();
+        }
+
+        boolean matches(@NonNull final ScanResult result) {
+            if (mFilters.isEmpty()) {
+                return true;
+            }
+            for (final ScanFilter filter : mFilters) {
+                if (filter.matches(result)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isBatched() {
+            return mSettings.getReportDelay() > 0;
+        }
+
+        boolean wantsCallbackType(final int callbackType) {
+            return (mSettings.getCallbackType() & callbackType) != 0;
+        }
+
+        /**
+         * Collects a result reported on its own, the collected results are delivered as batch
+         * once the report delay of the client passed.
+         */
+        void collect(@NonNull final ScanResult result) {
+            synchronized (this) {
+                if (mCollectedResults != null) {
+                    mCollectedResults.add(result);
+                    return;
+                }
+                mCollectedResults = new ArrayList<>();
+                mCollectedResults.add(result);
+            }
+            mHandler.postDelayed(mFlush, mSettings.getReportDelay());
+        }
+
+        /**
+         * Emulates the callback type of the client on a scan reporting all matches.
+         *
+         * @return the callback type to report the result with, or {@link #NO_CALLBACK} if the
+         * client does not get the result.
+         */
+        int toClientCallbackType(final int callbackType, @NonNull final ScanResult result,
+                                 final long nowMs) {
+            if (callbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                    || wantsCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) {
+                return callbackType;
+            }
+            final String address = result.getDevice().getAddress();
+            final boolean firstMatch;
+            synchronized (this) {
+                final Sighting sighting = mSightings.get(address);
+                firstMatch = (sighting == null);
+                if (firstMatch) {
+                    mSightings.put(address, new Sighting(result, nowMs));
+                } else {
+                    sighting.mResult = result;
+                    sighting.mLastSeenMs = nowMs;
+                }
+            }
+            if (!firstMatch) {
+                return NO_CALLBACK;
+            }
+            scheduleSightingsExpiry();
+            return wantsCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH) ?
+                    ScanSettings.CALLBACK_TYPE_FIRST_MATCH : NO_CALLBACK;
+        }
+
+        /**
+         * @return the last results of the devices not seen since the given time.
+         */
+        @NonNull
+        synchronized List<ScanResult> removeSightingsBefore(final long timeMs) {
+            final List<ScanResult> lostResults = new ArrayList<>();
+            final Iterator<Sighting> sightings = mSightings.values().iterator();
+            while (sightings.hasNext()) {
+                final Sighting sighting = sightings.next();
+                if (sighting.mLastSeenMs <= timeMs) {
+                    lostResults.add(sighting.mResult);
+                    sightings.remove();
+                }
+            }
+            return lostResults;
+        }
+
+        synchronized boolean hasSightings() {
+            return !mSightings.isEmpty();
+        }
+    }
+
+    private static class Sighting {
+        ScanResult mResult;
+        long mLastSeenMs;
+
+        Sighting(@NonNull final ScanResult result, final long lastSeenMs) {
+            mResult = result;
+            mLastSeenMs = lastSeenMs;
+        }
+    }
+}
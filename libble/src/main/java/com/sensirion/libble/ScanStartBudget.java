@@ -0,0 +1,50 @@
+package com.sensirion.libble;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Tracks the scan starts in a sliding window. Android silently drops the results of an app which
+ * starts more than {@link #MAX_SCAN_STARTS} scans within {@link #WINDOW_MS}, the scan appears to be
+ * running but never reports a device.
+ * <p/>
+ * NOTE:
+ * This Class is not thread safe! you have to take care of this outside of this class.
+ */
+class ScanStartBudget {
+    static final int MAX_SCAN_STARTS = 5;
+    static final long WINDOW_MS = 30000;
+
+    private final Queue<Long> mStartTimesMs = new LinkedList<>();
+
+    /**
+     * @param nowMs The current time in milliseconds of a monotonic clock.
+     * @return the number of scans which can be started right now.
+     */
+    int getAvailableStarts(final long nowMs) {
+        evictExpiredStarts(nowMs);
+        return MAX_SCAN_STARTS - mStartTimesMs.size();
+    }
+
+    /**
+     * @param nowMs The current time in milliseconds of a monotonic clock.
+     * @return the earliest time a scan can be started, nowMs if the budget is not exhausted.
+     */
+    long getNextStartTime(final long nowMs) {
+        if (getAvailableStarts(nowMs) > 0) {
+            return nowMs;
+        }
+        return mStartTimesMs.peek() + WINDOW_MS;
+    }
+
+    void onScanStarted(final long nowMs) {
+        evictExpiredStarts(nowMs);
+        mStartTimesMs.add(nowMs);
+    }
+
+    private void evictExpiredStarts(final long nowMs) {
+        while (!mStartTimesMs.isEmpty() && mStartTimesMs.peek() + WINDOW_MS <= nowMs) {
+            mStartTimesMs.remove();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.sensirion.libble;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps every UUID seen by the library to a compact id, valid for the lifetime of the process.
+ * The ids are assigned in ascending order starting at 0, hence they can be used as index of
+ * arrays or bit sets. Events carry the id of the characteristic instead of its UUID string, so
+ * dispatching them compares primitives instead of strings.
+ * <p/>
+ * The id of a known UUID is looked up without allocation.
+ */
+public final class UuidRegistry {
+    private static final ConcurrentMap<UUID, Integer> sIds = new ConcurrentHashMap<>();
+    private static final Object sLock = new Object();
+    private static volatile UUID[] sUuids = new UUID[32];
+    private static int sSize;
+
+    private UuidRegistry() {
+    }
+
+    /**
+     * Returns the id of the given UUID, a new id is assigned if the UUID is not known yet.
+     *
+     * @param uuid The UUID to look up.
+     * @return the id of the UUID.
+     */
+    public static int getId(@NonNull final UUID uuid) {
+        final Integer id = sIds.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        synchronized (sLock) {
+            final Integer registeredId = sIds.get(uuid);
+            if (registeredId != null) {
+                return registeredId;
+            }
+            if (sSize == sUuids.length) {
+                sUuids = Arrays.copyOf(sUuids, 2 * sSize);
+            }
+            // The array is published before the id, readers knowing the id find the UUID
+            final int newId = sSize++;
+            final UUID[] uuids = sUuids;
+            uuids[newId] = uuid;
+            sUuids = uuids;
+            sIds.put(uuid, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Returns the id of the given UUID, see {@link #getId(UUID)}. Meant to initialize constants,
+     * since the string is parsed on every call.
+     *
+     * @param uuid The UUID in its string representation.
+     * @return the id of the UUID.
+     * @throws IllegalArgumentException if the string is not a valid UUID.
+     */
+    public static int getId(@NonNull final String uuid) {
+        return getId(UUID.fromString(uuid));
+    }
+
+    /**
+     * @param id An id returned by {@link #getId(UUID)}.
+     * @return the UUID of the id.
+     * @throws IllegalArgumentException if the id was never assigned.
+     */
+    @NonNull
+    public static UUID getUuid(final int id) {
+        final UUID[] uuids = sUuids;
+        final UUID uuid = (id >= 0 && id < uuids.length) ? uuids[id] : null;
+        if (uuid == null) {
+            throw new IllegalArgumentException("Unknown UUID id " + id);
+        }
+        return uuid;
+    }
+}
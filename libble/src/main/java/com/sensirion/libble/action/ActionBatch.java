@@ -0,0 +1,118 @@
+package com.sensirion.libble.action;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Handle of a batch of actions scheduled contiguously for one device. The batch completes as soon
+ * as all of its actions were answered successfully, or fails with the first action which failed.
+ * The remaining actions of a failed batch are not executed.
+ */
+public class ActionBatch {
+    private final List<GattAction> mActions;
+    private final byte[][] mResults;
+
+    private int mNrOfSucceededActions;
+    private GattAction mFailedAction;
+    private BatchCallback mCallback;
+
+    ActionBatch(@NonNull final List<GattAction> actions) {
+        mActions = Collections.unmodifiableList(new ArrayList<>(actions));
+        mResults = new byte[mActions.size()][];
+        for (final GattAction action : mActions) {
+            action.setBatch(this);
+        }
+    }
+
+    @NonNull
+    public List<GattAction> getActions() {
+        return mActions;
+    }
+
+    public synchronized boolean isDone() {
+        return mFailedAction != null || mNrOfSucceededActions == mActions.size();
+    }
+
+    public synchronized boolean isSuccessful() {
+        return mFailedAction == null && mNrOfSucceededActions == mActions.size();
+    }
+
+    /**
+     * Returns the values read or written by the actions of the batch, in the order of the actions.
+     *
+     * @return the results, with null entries for actions not answered (yet).
+     */
+    @NonNull
+    public synchronized List<byte[]> getResults() {
+        return Arrays.asList(mResults.clone());
+    }
+
+    @Nullable
+    public synchronized GattAction getFailedAction() {
+        return mFailedAction;
+    }
+
+    /**
+     * Sets the callback notified when the batch is done. It is notified immediately if the batch
+     * is done already, otherwise on the thread which processed the last answer of the device.
+     *
+     * @param callback the callback to notify or null.
+     */
+    public void setCallback(@Nullable final BatchCallback callback) {
+        final boolean done;
+        synchronized (this) {
+            mCallback = callback;
+            done = isDone();
+        }
+        if (done && callback != null) {
+            notifyCallback(callback);
+        }
+    }
+
+    void onActionSucceeded(@NonNull final GattAction action, @Nullable final byte[] value) {
+        final BatchCallback callback;
+        synchronized (this) {
+            final int index = mActions.indexOf(action);
+            if (isDone() || index < 0 || mResults[index] != null) {
+                return;
+            }
+            mResults[index] = (value == null) ? new byte[0] : value;
+            mNrOfSucceededActions++;
+            if (!isDone()) {
+                return;
+            }
+            callback = mCallback;
+        }
+        if (callback != null) {
+            notifyCallback(callback);
+        }
+    }
+
+    void onActionFailed(@NonNull final GattAction action) {
+        final BatchCallback callback;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mFailedAction = action;
+            callback = mCallback;
+        }
+        if (callback != null) {
+            notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(@NonNull final BatchCallback callback) {
+        final GattAction failedAction = getFailedAction();
+        if (failedAction == null) {
+            callback.onBatchCompleted(this);
+        } else {
+            callback.onBatchFailed(this, failedAction);
+        }
+    }
+}
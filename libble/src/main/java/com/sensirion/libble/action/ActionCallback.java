@@ -0,0 +1,19 @@
+package com.sensirion.libble.action;
+
+import android.support.annotation.NonNull;
+
+public interface ActionCallback {
+    /**
+     * Called when the device answered the action.
+     *
+     * @param value the value read or written.
+     */
+    void onSuccess(@NonNull byte[] value);
+
+    /**
+     * Called when the action failed.
+     *
+     * @param failure the reason of the failure.
+     */
+    void onFailure(@NonNull GattException failure);
+}
@@ -0,0 +1,21 @@
+package com.sensirion.libble.action;
+
+/**
+ * The lane of the {@link ActionQueue} an action is scheduled in. Actions of a higher lane are
+ * executed before the ones of a lower lane, actions of the same lane in the order they were
+ * scheduled.
+ */
+public enum ActionPriority {
+    /**
+     * Actions triggered by the user waiting for the result, e.g. refreshing the displayed values.
+     */
+    INTERACTIVE,
+    /**
+     * Actions configuring the device, e.g. subscribing to notifications. This is the default.
+     */
+    CONTROL,
+    /**
+     * Long running transfers of many actions, e.g. downloading the logged history of a device.
+     */
+    BULK
+}
@@ -1,90 +1,272 @@
 package com.sensirion.libble.action;
 
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.sensirion.libble.log.Log;
 
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 /**
+ * Keeps one lane per {@link ActionPriority}. The next action is taken from the highest non-empty
+ * lane, unless a lower lane was passed over {@link #MAX_SKIPS} times in a row - then this lane is
+ * served once, so bulk transfers keep progressing while interactive actions are scheduled.
+ * The action being executed is never preempted, it stays current until it is confirmed or dropped.
+ * <p/>
+ * A new action is coalesced with the most recently queued pending action on the same target if
+ * both are of the same type: Identical reads are executed once, since the result is reported to every listener
+ * anyway. Successive writes collapse to one, which writes the latest value of the characteristic.
+ * An action of a batch is only coalesced with a pending action of the same batch.
+ * <p/>
+ * Pipelined actions (see {@link GattAction#getCreditWindow()}) do not block the queue: They are
+ * kept in flight until confirmed, while the next ones are executed as long as credits are left.
+ * A pipelined action the stack refuses while others are in flight waits for the next confirmation
+ * instead of counting as a failed attempt.
+ * Any other action waits until all pipelined actions in flight are confirmed.
+ * <p/>
  * NOTE:
  * This Class is not thread safe! you have to take care of this outside of this class.
  */
 class ActionQueue {
     private final static String TAG = ActionQueue.class.getSimpleName();
+    static final long NO_DEADLINE = -1;
+    static final int MAX_SKIPS = 8;
 
-    private final int mDefaultIterationsUntilTimeout;
-    private final Queue<GattAction> mQueue;
+    private final long mRetryDelayMs;
+    private final Lane[] mLanes;
+    private final Queue<GattAction> mInFlight;
+    // The most recently queued pending action per target, regardless of its lane
+    private final Map<Object, GattAction> mNewestPending;
 
     private ActionFailureCallback mFailureCallback;
     private ActionState mActionState;
-    private int mIterationsUntilTimeout;
+    private GattAction mCurrentAction;
+    private long mRetryTimeMs;
 
-    public ActionQueue(final ActionFailureCallback callback, final int iterationsUntilTimeout) {
-        mQueue = new LinkedList<>();
+    /**
+     * @param callback     Callback notified about actions dropped after too many failures.
+     * @param retryDelayMs Time to wait before a failed action is executed again.
+     */
+    public ActionQueue(final ActionFailureCallback callback, final long retryDelayMs) {
+        mLanes = new Lane[ActionPriority.values().length];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane();
+        }
+        mInFlight = new LinkedList<>();
+        mNewestPending = new IdentityHashMap<>();
         mFailureCallback = callback;
-        mDefaultIterationsUntilTimeout = iterationsUntilTimeout;
+        mRetryDelayMs = retryDelayMs;
 
         resetState();
     }
 
     public void add(final GattAction action) {
-        mQueue.add(action);
-        Log.d(TAG, "Adding action ot type: %s - current queue size = %d",
-                action.toString(), mQueue.size());
+        if (coalesce(action)) {
+            return;
+        }
+        final Queue<GattAction> lane = mLanes[action.getPriority().ordinal()].mActions;
+        lane.add(action);
+        if (action.getTarget() != null) {
+            mNewestPending.put(action.getTarget(), action);
+        }
+        Log.d(TAG, "Adding action ot type: %s with priority %s - current lane size = %d",
+                action.toString(), action.getPriority(), lane.size());
+    }
+
+    /**
+     * Merges the given action into the most recently queued pending action on the same target, if
+     * it is of the same type. The pending action is moved to the lane of the new one if that lane
+     * is higher.
+     *
+     * @return true if the action was coalesced and must not be added.
+     */
+    private boolean coalesce(final GattAction action) {
+        final Object target = action.getTarget();
+        if (target == null) {
+            return false;
+        }
+
+        final GattAction pendingAction = mNewestPending.get(target);
+        if (pendingAction == null || pendingAction.mGatt != action.mGatt
+                || pendingAction.getClass() != action.getClass() || pendingAction.isCancelled()) {
+            return false;
+        }
+        if (action.getBatch() != null && action.getBatch() != pendingAction.getBatch()) {
+            // Executing it with an older action would reorder the batch
+            return false;
+        }
+
+        pendingAction.addCoalescedAction(action);
+        if (action.getPriority().ordinal() < pendingAction.getPriority().ordinal()) {
+            mLanes[pendingAction.getPriority().ordinal()].mActions.remove(pendingAction);
+            pendingAction.setPriority(action.getPriority());
+            mLanes[action.getPriority().ordinal()].mActions.add(pendingAction);
+        }
+        Log.d(TAG, "Coalesced action %s with a pending one", action.toString());
+        return true;
     }
 
     public void confirmAction(final String deviceAddress) {
+        confirmAction(deviceAddress, BluetoothGatt.GATT_SUCCESS, null);
+    }
+
+    /**
+     * Confirms the action waiting for an answer of the device.
+     *
+     * @param deviceAddress The address of the device which answered.
+     * @param status        The gatt status of the answer.
+     * @param value         The value read or written.
+     */
+    public void confirmAction(final String deviceAddress, final int status, @Nullable final byte[] value) {
+        // Nothing else is executed while pipelined actions are in flight.
+        if (!mInFlight.isEmpty()) {
+            Log.d(TAG, "Confirming pipelined action for Device %s", deviceAddress);
+            mInFlight.remove().onConfirmed(status, value);
+            return;
+        }
         if (mActionState == ActionState.PENDING_CONFIRMATION) {
             Log.d(TAG, "Confirming action for Device %s", deviceAddress);
+            final GattAction action = mCurrentAction;
             dismissCurrentAction();
+            action.onConfirmed(status, value);
         }
     }
 
+    /**
+     * @param actionType The type of the action expected to be answered.
+     * @return true if the current action is of the given type and waits for its confirmation.
+     */
+    public boolean isAwaitingConfirmation(@NonNull final Class<? extends GattAction> actionType) {
+        return mInFlight.isEmpty() && mActionState == ActionState.PENDING_CONFIRMATION
+                && actionType.isInstance(mCurrentAction);
+    }
+
     public void clear() {
-        mQueue.clear();
+        final List<GattAction> droppedActions = new LinkedList<>(mInFlight);
+        if (mCurrentAction != null) {
+            droppedActions.add(mCurrentAction);
+        }
+        for (final Lane lane : mLanes) {
+            droppedActions.addAll(lane.mActions);
+            lane.mActions.clear();
+            lane.mSkips = 0;
+        }
+        mNewestPending.clear();
+        mInFlight.clear();
+        mCurrentAction = null;
         resetState();
+
+        for (final GattAction action : droppedActions) {
+            action.onDropped(GattException.Reason.DISCONNECTED);
+        }
     }
 
     public boolean isEmpty() {
-        return mQueue.isEmpty();
+        return mInFlight.isEmpty() && !hasPendingActions();
+    }
+
+    private boolean hasPendingActions() {
+        if (mCurrentAction != null) {
+            return true;
+        }
+        for (final Lane lane : mLanes) {
+            if (!lane.mActions.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public void processAction() {
-        final GattAction currentAction = checkPreconditionsAndGetNextAction();
-        if (currentAction == null) return;
+    /**
+     * Advances the queue as far as possible at the given point in time. Executes the next action
+     * if the queue is idle, fails the current action if its deadline has passed and drops actions
+     * which failed too often. See {@link GattAction#getTimeout()} for the deadline of an action.
+     *
+     * @param nowMs The current time in milliseconds of a monotonic clock.
+     * @return The time in milliseconds at which the queue has to be processed again if no
+     * confirmation arrives in the meantime, or {@link #NO_DEADLINE} if the queue is empty.
+     */
+    public long processAction(final long nowMs) {
+        failExpiredInFlightActions(nowMs);
 
-        if (currentAction.failsTillDropOut <= 0) {
-            onActionFailed(currentAction);
-            return;
+        while (hasPendingActions()) {
+            final GattAction currentAction = checkPreconditionsAndGetNextAction();
+            if (currentAction == null) continue;
+
+            if (mActionState == ActionState.IDLE && currentAction.isCancelled()) {
+                Log.d(TAG, "Skipping action %s of a failed batch", currentAction.toString());
+                dismissCurrentAction();
+                currentAction.onDropped(GattException.Reason.CANCELLED);
+                continue;
+            }
+
+            if (currentAction.failsTillDropOut <= 0) {
+                onActionFailed(currentAction);
+                continue;
+            }
+
+            switch (mActionState) {
+                case IDLE:
+                    if (nowMs < mRetryTimeMs) {
+                        return mRetryTimeMs;
+                    }
+                    if (!mInFlight.isEmpty() && mInFlight.size() >= currentAction.getCreditWindow()) {
+                        // Waiting for a credit
+                        return mInFlight.peek().getDeadline();
+                    }
+                    if (execute(currentAction)) {
+                        onExecuteSucceeded(currentAction, nowMs);
+                    } else if (!mInFlight.isEmpty() && currentAction.getCreditWindow() > 0) {
+                        // The stack refuses a write while another one is outstanding: No credit
+                        // is available after all, the next confirmation returns one.
+                        Log.d(TAG, "Action %s refused while pipelined actions are in flight",
+                                currentAction.toString());
+                        return mInFlight.peek().getDeadline();
+                    } else {
+                        onExecuteFailed(currentAction, nowMs);
+                    }
+                    break;
+                case PENDING_CONFIRMATION:
+                    if (nowMs < currentAction.getDeadline()) {
+                        return currentAction.getDeadline();
+                    }
+                    Log.d(TAG, "Deadline of action %s reached", currentAction.toString());
+                    onExecuteFailed(currentAction, nowMs);
+                    break;
+            }
         }
 
-        switch (mActionState) {
-            case IDLE:
-                if (execute(currentAction)) {
-                    onExecuteSucceeded(currentAction);
-                } else {
-                    onExecuteFailed(currentAction);
-                }
-                break;
-            case PENDING_CONFIRMATION:
-                if (--mIterationsUntilTimeout <= 0) {
-                    onExecuteFailed(currentAction);
-                }
-                break;
+        resetState();
+        if (!mInFlight.isEmpty()) {
+            return mInFlight.peek().getDeadline();
+        }
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Pipelined actions are not executed again - a write without response might have been sent
+     * already - but dropped as soon as their deadline has passed.
+     */
+    private void failExpiredInFlightActions(final long nowMs) {
+        while (!mInFlight.isEmpty() && nowMs >= mInFlight.peek().getDeadline()) {
+            final GattAction action = mInFlight.remove();
+            Log.d(TAG, "Deadline of pipelined action %s reached", action.toString());
+            if (mFailureCallback != null) mFailureCallback.onActionFailed(action);
+            action.onDropped(GattException.Reason.TIMEOUT);
         }
     }
 
     @Nullable
     private GattAction checkPreconditionsAndGetNextAction() {
-        if (mQueue.size() == 0) {
-            // Action Queue is empty
-            resetState();
-            return null;
+        if (mCurrentAction == null) {
+            mCurrentAction = pollNextAction();
         }
-
-        final GattAction currentAction = mQueue.peek();
+        final GattAction currentAction = mCurrentAction;
         if (currentAction == null || currentAction.mGatt == null) {
             Log.w(TAG, "Can not execute action - Action or Gatt is null.");
             dismissCurrentAction();
@@ -94,18 +276,55 @@ class ActionQueue {
         return currentAction;
     }
 
+    @Nullable
+    private GattAction pollNextAction() {
+        Lane selectedLane = null;
+        for (final Lane lane : mLanes) {
+            if (lane.mActions.isEmpty()) continue;
+            if (selectedLane == null || lane.mSkips >= MAX_SKIPS) {
+                selectedLane = lane;
+            }
+            if (lane.mSkips >= MAX_SKIPS) break;
+        }
+        if (selectedLane == null) {
+            return null;
+        }
+
+        for (final Lane lane : mLanes) {
+            if (lane == selectedLane) {
+                lane.mSkips = 0;
+            } else if (!lane.mActions.isEmpty()) {
+                lane.mSkips++;
+            }
+        }
+        final GattAction action = selectedLane.mActions.poll();
+        final Object target = action.getTarget();
+        if (target != null && mNewestPending.get(target) == action) {
+            mNewestPending.remove(target);
+        }
+        return action;
+    }
+
     private boolean execute(final GattAction currentAction) {
         return currentAction.execute();
     }
 
-    private void onExecuteSucceeded(final GattAction action) {
-        mActionState = ActionState.PENDING_CONFIRMATION;
+    private void onExecuteSucceeded(final GattAction action, final long nowMs) {
+        action.startDeadline(nowMs);
+        if (action.getCreditWindow() > 0) {
+            mInFlight.add(action);
+            mCurrentAction = null;
+        } else {
+            mActionState = ActionState.PENDING_CONFIRMATION;
+        }
         Log.d(TAG, "Executing action %s for device %s - %s",
                 action.toString(), action.mGatt.getDevice().getAddress(), " - success");
     }
 
-    private void onExecuteFailed(final GattAction action) {
-        resetState();
+    private void onExecuteFailed(final GattAction action, final long nowMs) {
+        mActionState = ActionState.IDLE;
+        mRetryTimeMs = nowMs + mRetryDelayMs;
+        action.clearDeadline();
         action.failsTillDropOut--;
         Log.d(TAG, "Executing action %s for device %s - %s",
                 action.toString(), action.mGatt.getDevice().getAddress(), " - failed");
@@ -115,15 +334,21 @@ class ActionQueue {
         Log.d(TAG, "Action timeout reached - drop action %s in action queue", action.toString());
         if (mFailureCallback != null) mFailureCallback.onActionFailed(action);
         dismissCurrentAction();
+        action.onDropped(GattException.Reason.TIMEOUT);
     }
 
     private void dismissCurrentAction() {
-        mQueue.remove();
+        mCurrentAction = null;
         resetState();
     }
 
     private void resetState() {
         mActionState = ActionState.IDLE;
-        mIterationsUntilTimeout = mDefaultIterationsUntilTimeout;
+        mRetryTimeMs = 0;
+    }
+
+    private static class Lane {
+        final Queue<GattAction> mActions = new LinkedList<>();
+        int mSkips;
     }
-}
\ No newline at end of file
+}
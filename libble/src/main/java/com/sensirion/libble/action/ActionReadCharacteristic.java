@@ -4,10 +4,21 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 
 public class ActionReadCharacteristic extends GattAction {
+    // Reads are answered within a few connection intervals, even long reads need only a few more.
+    public static final long DEFAULT_TIMEOUT_MS = 3000;
+
     private final BluetoothGattCharacteristic mCharacteristic;
 
+    /**
+     * Creates an action which is bound to the gatt of the device when scheduled using
+     * {@code BleService#scheduleBatch}.
+     */
+    public ActionReadCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        this(null, characteristic);
+    }
+
     public ActionReadCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-        super(gatt);
+        super(gatt, DEFAULT_TIMEOUT_MS);
         mCharacteristic = characteristic;
     }
 
@@ -16,6 +27,11 @@ public class ActionReadCharacteristic extends GattAction {
         return mGatt.readCharacteristic(mCharacteristic);
     }
 
+    @Override
+    Object getTarget() {
+        return mCharacteristic;
+    }
+
     public BluetoothGattCharacteristic getCharacteristic() {
         return mCharacteristic;
     }
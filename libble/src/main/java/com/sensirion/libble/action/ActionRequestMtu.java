@@ -0,0 +1,36 @@
+package com.sensirion.libble.action;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Requests the given ATT MTU from the remote device. The action is confirmed once the stack reports
+ * the negotiated MTU, which might be smaller than the requested one.
+ */
+public class ActionRequestMtu extends GattAction {
+    // The exchange takes a few connection intervals.
+    public static final long DEFAULT_TIMEOUT_MS = 3000;
+
+    private final int mMtu;
+
+    /**
+     * Creates an action which is bound to the gatt of the device when scheduled using
+     * {@code BleService#scheduleBatch}.
+     */
+    public ActionRequestMtu(final int mtu) {
+        this(null, mtu);
+    }
+
+    public ActionRequestMtu(final BluetoothGatt gatt, final int mtu) {
+        super(gatt, DEFAULT_TIMEOUT_MS);
+        mMtu = mtu;
+    }
+
+    @Override
+    boolean execute() {
+        return mGatt.requestMtu(mMtu);
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+}
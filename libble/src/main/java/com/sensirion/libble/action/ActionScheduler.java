@@ -1,15 +1,32 @@
 package com.sensirion.libble.action;
 
+import android.bluetooth.BluetoothGatt;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.sensirion.libble.log.Log;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Executes the scheduled actions of every device one after the other. The next action of a device
+ * is executed as soon as the current one is confirmed. The handler is only used to wake up a queue
+ * when the deadline of its current action has passed. See {@link GattAction#setTimeout(long)}.
+ * <p/>
+ * Every device owns its queue exclusively (see {@link DeviceQueue}), there is no lock shared
+ * between devices. Hence, callbacks of different devices are processed in parallel while the
+ * actions of one device keep their order.
+ * <p/>
  * NOTE:
  * There should be one ActionQueue per {@code BluetoothGatt}, hence only Actions with the same Gatt
  * instance belong into the same queue. It's considered a programming error if not applied and might
@@ -17,95 +34,237 @@ import java.util.Map;
  */
 public class ActionScheduler {
     private final static String TAG = ActionScheduler.class.getSimpleName();
-    private final static long ACTION_LOOP_INTERVAL_MS = 50;
-    private final static int ITERATIONS_UNTIL_ACTION_TIMEOUT = 100;
+    private final static long ACTION_RETRY_DELAY_MS = 50;
 
     private final ActionFailureCallback mActionFailureCallback;
-    private final Map<String, ActionQueue> mActions;
+    private final ConcurrentMap<String, DeviceQueue> mActions;
     private final Handler mActionHandler;
-    private final Runnable mActionLoopRunnable;
 
     public ActionScheduler(final ActionFailureCallback callback, @NonNull final Handler handler) {
         mActionFailureCallback = callback;
-        mActions = new HashMap<>();
+        mActions = new ConcurrentHashMap<>();
         mActionHandler = handler;
-        mActionLoopRunnable = new ActionIterator();
     }
 
-    private synchronized void touch() {
-        mActionHandler.removeCallbacks(mActionLoopRunnable);
-        mActionHandler.post(mActionLoopRunnable);
-    }
-
-    private synchronized void pause() {
-        mActionHandler.removeCallbacks(mActionLoopRunnable);
-        Log.d(TAG, "Pausing Action Scheduler");
+    public void schedule(@NonNull final GattAction action) {
+        getQueue(action.getDeviceAddress()).schedule(Collections.singletonList(action));
     }
 
-    public void schedule(@NonNull final GattAction action) {
-        synchronized (mActions) {
-            ActionQueue queue = mActions.get(action.getDeviceAddress());
-            if (queue == null) {
-                queue = new ActionQueue(mActionFailureCallback, ITERATIONS_UNTIL_ACTION_TIMEOUT);
-                mActions.put(action.getDeviceAddress(), queue);
+    /**
+     * Schedules the given actions contiguously: No other action scheduled for the device is
+     * inserted in between the actions of the batch in their lane. All actions are validated before
+     * any of them is bound, a rejected batch leaves the actions unchanged.
+     *
+     * @param gatt    The gatt of the device, actions created without a gatt are bound to it.
+     * @param actions The actions to execute in the given order.
+     * @return the handle of the batch.
+     * @throws IllegalArgumentException if an action belongs to another device or is given twice.
+     * @throws IllegalStateException    if an action belongs to another batch already.
+     */
+    @NonNull
+    public ActionBatch scheduleBatch(@NonNull final BluetoothGatt gatt,
+                                     @NonNull final List<GattAction> actions) {
+        // Validate all actions first, a rejected batch must not leave any of them bound
+        final Set<GattAction> checkedActions =
+                Collections.newSetFromMap(new IdentityHashMap<GattAction, Boolean>());
+        for (final GattAction action : actions) {
+            action.checkBatchable(gatt);
+            if (!checkedActions.add(action)) {
+                throw new IllegalArgumentException("The action is part of the batch twice");
             }
-            queue.add(action);
         }
-        touch();
+        for (final GattAction action : actions) {
+            action.bind(gatt);
+        }
+        final ActionBatch batch = new ActionBatch(actions);
+        getQueue(gatt.getDevice().getAddress()).schedule(batch.getActions());
+        return batch;
     }
 
     public void confirm(@NonNull final String deviceAddress) {
-        synchronized (mActions) {
-            ActionQueue queue = mActions.get(deviceAddress);
-            if (queue == null) {
-                return;
-            }
-            queue.confirmAction(deviceAddress);
+        confirm(deviceAddress, BluetoothGatt.GATT_SUCCESS, null);
+    }
+
+    /**
+     * Confirms the action the device answered.
+     *
+     * @param deviceAddress The address of the device which answered.
+     * @param status        The gatt status of the answer.
+     * @param value         The value read or written.
+     */
+    public void confirm(@NonNull final String deviceAddress, final int status,
+                        @Nullable final byte[] value) {
+        confirm(deviceAddress, null, status, value);
+    }
+
+    /**
+     * Confirms the action the device answered, if it is of the given type. Used for answers the
+     * stack also reports unsolicited, which must not confirm an unrelated action.
+     *
+     * @param deviceAddress The address of the device which answered.
+     * @param actionType    The type of the action answered, or null to confirm any action.
+     * @param status        The gatt status of the answer.
+     * @param value         The value read or written.
+     */
+    public void confirm(@NonNull final String deviceAddress,
+                        @Nullable final Class<? extends GattAction> actionType, final int status,
+                        @Nullable final byte[] value) {
+        final DeviceQueue queue = mActions.get(deviceAddress);
+        if (queue == null) {
+            return;
         }
+        queue.confirm(actionType, status, value);
     }
 
     public boolean isEmpty() {
-        synchronized (mActions) {
-            return mActions.isEmpty();
+        for (final DeviceQueue queue : mActions.values()) {
+            if (!queue.isIdle()) {
+                return false;
+            }
         }
+        return true;
     }
 
     public void clear(@NonNull final String deviceAddress) {
-        synchronized (mActions) {
-            mActions.remove(deviceAddress);
+        final DeviceQueue queue = mActions.remove(deviceAddress);
+        if (queue != null) {
+            queue.release();
         }
     }
 
     public void clearAll() {
-        synchronized (mActions) {
-            for (ActionQueue queue : mActions.values()) {
-                queue.clear();
+        for (final String deviceAddress : mActions.keySet()) {
+            clear(deviceAddress);
+        }
+    }
+
+    @NonNull
+    private DeviceQueue getQueue(@NonNull final String deviceAddress) {
+        DeviceQueue queue = mActions.get(deviceAddress);
+        if (queue == null) {
+            final DeviceQueue newQueue = new DeviceQueue(deviceAddress);
+            queue = mActions.putIfAbsent(deviceAddress, newQueue);
+            if (queue == null) {
+                queue = newQueue;
             }
-            mActions.clear();
         }
+        return queue;
     }
 
-    class ActionIterator implements Runnable {
+    /**
+     * The action queue of a single device, confined to an actor: Every access to the queue is
+     * posted to the mailbox of the device, which is drained by one thread at a time - the thread
+     * which found the mailbox idle. Messages of the same device are therefore processed in the order
+     * they were posted, and never concurrently.
+     */
+    class DeviceQueue implements Runnable {
+        private final String mDeviceAddress;
+        private final ActionQueue mQueue;
+        private final Queue<Runnable> mMailbox;
+        private final AtomicBoolean mDraining;
+        private volatile boolean mIdle;
+        private boolean mReleased;
+
+        DeviceQueue(@NonNull final String deviceAddress) {
+            mDeviceAddress = deviceAddress;
+            mQueue = new ActionQueue(mActionFailureCallback, ACTION_RETRY_DELAY_MS);
+            mMailbox = new ConcurrentLinkedQueue<>();
+            mDraining = new AtomicBoolean(false);
+            mIdle = true;
+        }
 
+        void schedule(@NonNull final List<GattAction> actions) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mIdle = false;
+                    for (final GattAction action : actions) {
+                        mQueue.add(action);
+                    }
+                    process();
+                }
+            });
+        }
+
+        void confirm(@Nullable final Class<? extends GattAction> actionType, final int status,
+                     @Nullable final byte[] value) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (actionType != null && !mQueue.isAwaitingConfirmation(actionType)) {
+                        Log.d(TAG, "Ignoring unsolicited answer for %s", actionType.getSimpleName());
+                        return;
+                    }
+                    mQueue.confirmAction(mDeviceAddress, status, value);
+                    process();
+                }
+            });
+        }
+
+        void release() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mReleased = true;
+                    mActionHandler.removeCallbacks(DeviceQueue.this);
+                    mQueue.clear();
+                    mIdle = true;
+                }
+            });
+        }
+
+        boolean isIdle() {
+            return mIdle;
+        }
+
+        /**
+         * Called by the handler when the deadline of the current action has passed.
+         */
         @Override
         public void run() {
-            synchronized (mActions) {
-                for (final String key : new HashSet<>(mActions.keySet())) {
-                    final ActionQueue queue = mActions.get(key);
-                    queue.processAction();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    process();
+                }
+            });
+        }
 
-                    if (queue.isEmpty()) {
-                        mActions.remove(key);
+        private void post(@NonNull final Runnable message) {
+            mMailbox.offer(message);
+            drain();
+        }
+
+        private void drain() {
+            // A message posted while another thread finishes draining is picked up by the loop.
+            while (!mMailbox.isEmpty() && mDraining.compareAndSet(false, true)) {
+                try {
+                    Runnable message;
+                    while ((message = mMailbox.poll()) != null) {
+                        message.run();
                     }
+                } finally {
+                    mDraining.set(false);
                 }
+            }
+        }
 
-                if (mActions.isEmpty()) {
-                    pause();
-                    return;
-                }
+        private void process() {
+            if (mReleased) {
+                return;
+            }
+            mActionHandler.removeCallbacks(this);
 
-                mActionHandler.postDelayed(mActionLoopRunnable, ACTION_LOOP_INTERVAL_MS);
+            // Deadlines keep running while the device sleeps, the handler delay does not.
+            final long nowMs = SystemClock.elapsedRealtime();
+            final long deadlineMs = mQueue.processAction(nowMs);
+            if (deadlineMs == ActionQueue.NO_DEADLINE) {
+                Log.d(TAG, "No more actions for device %s", mDeviceAddress);
+                mIdle = true;
+                return;
             }
+            mIdle = false;
+            mActionHandler.postDelayed(this, deadlineMs - nowMs);
         }
     }
 }
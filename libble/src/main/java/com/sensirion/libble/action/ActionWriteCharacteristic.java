@@ -4,10 +4,21 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 
 public class ActionWriteCharacteristic extends GattAction {
+    // Writes with response are acknowledged within a few connection intervals.
+    public static final long DEFAULT_TIMEOUT_MS = 3000;
+
     private final BluetoothGattCharacteristic mCharacteristic;
 
+    /**
+     * Creates an action which is bound to the gatt of the device when scheduled using
+     * {@code BleService#scheduleBatch}.
+     */
+    public ActionWriteCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        this(null, characteristic);
+    }
+
     public ActionWriteCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-        super(gatt);
+        super(gatt, DEFAULT_TIMEOUT_MS);
         mCharacteristic = characteristic;
     }
 
@@ -16,6 +27,11 @@ public class ActionWriteCharacteristic extends GattAction {
         return mGatt.writeCharacteristic(mCharacteristic);
     }
 
+    @Override
+    Object getTarget() {
+        return mCharacteristic;
+    }
+
     public BluetoothGattCharacteristic getCharacteristic() {
         return mCharacteristic;
     }
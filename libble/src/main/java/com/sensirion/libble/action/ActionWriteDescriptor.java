@@ -4,10 +4,21 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattDescriptor;
 
 public class ActionWriteDescriptor extends GattAction {
+    // Writing a client configuration descriptor might make the remote device persist it in flash.
+    public static final long DEFAULT_TIMEOUT_MS = 8000;
+
     private final BluetoothGattDescriptor mGattDescriptor;
 
+    /**
+     * Creates an action which is bound to the gatt of the device when scheduled using
+     * {@code BleService#scheduleBatch}.
+     */
+    public ActionWriteDescriptor(final BluetoothGattDescriptor descriptor) {
+        this(null, descriptor);
+    }
+
     public ActionWriteDescriptor(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor) {
-        super(gatt);
+        super(gatt, DEFAULT_TIMEOUT_MS);
         mGattDescriptor = descriptor;
     }
 
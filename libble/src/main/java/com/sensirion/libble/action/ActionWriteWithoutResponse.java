@@ -0,0 +1,60 @@
+package com.sensirion.libble.action;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
+
+/**
+ * Writes a value to a characteristic without requesting a response from the remote device. The
+ * stack still reports every write as soon as the packet was handed to the controller, these
+ * callbacks pace the writes: Up to the credit window writes are kept in flight.
+ * <p/>
+ * The stack may still refuse a write while another one is outstanding. Such a write waits for the
+ * next confirmation, see {@link ActionQueue}.
+ */
+public class ActionWriteWithoutResponse extends ActionWriteCharacteristic {
+    private final byte[] mValue;
+    private final int mCreditWindow;
+
+    /**
+     * @param gatt           The gatt instance the action is executed on.
+     * @param characteristic The characteristic to write to.
+     * @param value          The value to write, the characteristic keeps its own value.
+     * @param creditWindow   The maximum number of writes in flight, at least 1.
+     */
+    public ActionWriteWithoutResponse(final BluetoothGatt gatt,
+                                      final BluetoothGattCharacteristic characteristic,
+                                      @NonNull final byte[] value, final int creditWindow) {
+        super(gatt, characteristic);
+        if (creditWindow < 1) {
+            throw new IllegalArgumentException("The credit window must be at least 1");
+        }
+        mValue = value;
+        mCreditWindow = creditWindow;
+    }
+
+    @Override
+    boolean execute() {
+        // The stack reads the value and the write type when the write is issued.
+        final BluetoothGattCharacteristic characteristic = getCharacteristic();
+        final int writeType = characteristic.getWriteType();
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(mValue);
+        try {
+            return super.execute();
+        } finally {
+            characteristic.setWriteType(writeType);
+        }
+    }
+
+    @Override
+    int getCreditWindow() {
+        return mCreditWindow;
+    }
+
+    @Override
+    Object getTarget() {
+        // Every write carries its own part of the payload.
+        return null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.sensirion.libble.action;
+
+import android.support.annotation.NonNull;
+
+public interface BatchCallback {
+    /**
+     * Called when all actions of the batch were answered successfully.
+     *
+     * @param batch the completed batch, see {@link ActionBatch#getResults()}.
+     */
+    void onBatchCompleted(@NonNull ActionBatch batch);
+
+    /**
+     * Called when the first action of the batch failed.
+     *
+     * @param batch        the failed batch.
+     * @param failedAction the action which failed.
+     */
+    void onBatchFailed(@NonNull ActionBatch batch, @NonNull GattAction failedAction);
+}
@@ -1,24 +1,244 @@
 package com.sensirion.libble.action;
 
 import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedList;
+import java.util.List;
 
 public abstract class GattAction {
     BluetoothGatt mGatt;
 
     public int failsTillDropOut = 10;
 
-    GattAction(final BluetoothGatt gatt) {
+    private long mTimeoutMs;
+    private long mDeadlineMs;
+    private ActionPriority mPriority;
+    private ActionBatch mBatch;
+    private List<GattAction> mCoalescedActions;
+    private final GattFuture mFuture;
+
+    /**
+     * @param gatt             The gatt instance the action is executed on.
+     * @param defaultTimeoutMs The time the action may wait for its confirmation after it was
+     *                         executed, unless overridden using {@link #setTimeout(long)}.
+     */
+    GattAction(final BluetoothGatt gatt, final long defaultTimeoutMs) {
         mGatt = gatt;
+        mTimeoutMs = defaultTimeoutMs;
+        mDeadlineMs = ActionQueue.NO_DEADLINE;
+        mPriority = ActionPriority.CONTROL;
+        mFuture = new GattFuture();
+    }
+
+    /**
+     * Binds an action created without a gatt instance to the gatt of the device it is scheduled
+     * for.
+     *
+     * @throws IllegalArgumentException if the action is bound to another gatt instance already.
+     */
+    void bind(@NonNull final BluetoothGatt gatt) {
+        if (mGatt == null) {
+            mGatt = gatt;
+        } else if (mGatt != gatt) {
+            throw new IllegalArgumentException("The action belongs to another device");
+        }
+    }
+
+    /**
+     * Checks that the action can be bound to the given gatt and added to a batch, without
+     * changing the action. Used to validate a whole batch before any of its actions is bound.
+     *
+     * @throws IllegalArgumentException if the action is bound to another gatt instance already.
+     * @throws IllegalStateException    if the action belongs to a batch already.
+     */
+    void checkBatchable(@NonNull final BluetoothGatt gatt) {
+        if (mGatt != null && mGatt != gatt) {
+            throw new IllegalArgumentException("The action belongs to another device");
+        }
+        if (mBatch != null) {
+            throw new IllegalStateException("The action belongs to another batch already");
+        }
     }
 
     public String getDeviceAddress() {
         return mGatt.getDevice().getAddress();
     }
 
+    /**
+     * Returns the time this action may wait for its confirmation after it was executed before the
+     * execution is considered failed.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getTimeout() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * Overrides the default timeout of this action. Use a longer timeout for operations known to
+     * take long on the remote device and a shorter one to detect unresponsive devices faster.
+     *
+     * @param timeoutMs the time in milliseconds the action may wait for its confirmation.
+     */
+    public void setTimeout(final long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("The timeout must be greater than 0 ms");
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    public ActionPriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the lane this action is scheduled in. Has no effect once the action was scheduled.
+     *
+     * @param priority the priority of the action, {@link ActionPriority#CONTROL} by default.
+     */
+    public void setPriority(@NonNull final ActionPriority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * @return the future completing with the answer of the device to this action.
+     */
+    @NonNull
+    public GattFuture getFuture() {
+        return mFuture;
+    }
+
     abstract boolean execute();
 
+    /**
+     * Returns the number of actions of this type which may be in flight at the same time. Such
+     * actions are pipelined: the next one is executed without waiting for the confirmation of the
+     * previous one as long as there are credits left, every confirmation returns one credit.
+     *
+     * @return the size of the credit window, or 0 if the action has to be confirmed before any
+     * other action is executed.
+     */
+    int getCreditWindow() {
+        return 0;
+    }
+
+    /**
+     * Returns the attribute of the remote device this action operates on. Pending actions of the
+     * same type and target are coalesced by the {@link ActionQueue}.
+     *
+     * @return the characteristic or descriptor, or null if the action must never be coalesced.
+     */
+    @Nullable
+    Object getTarget() {
+        return null;
+    }
+
+    /**
+     * Starts the deadline of the current execution.
+     *
+     * @param nowMs The current time in milliseconds of a monotonic clock.
+     * @return The time at which the execution times out if not confirmed.
+     */
+    long startDeadline(final long nowMs) {
+        mDeadlineMs = nowMs + mTimeoutMs;
+        return mDeadlineMs;
+    }
+
+    long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    void clearDeadline() {
+        mDeadlineMs = ActionQueue.NO_DEADLINE;
+    }
+
+    void setBatch(@NonNull final ActionBatch batch) {
+        if (mBatch != null) {
+            throw new IllegalStateException("The action belongs to another batch already");
+        }
+        mBatch = batch;
+    }
+
+    @Nullable
+    ActionBatch getBatch() {
+        return mBatch;
+    }
+
+    /**
+     * @return true if the action or its batch was cancelled and so were all the actions coalesced
+     * with it, hence it must not be executed. As long as one of them is still waiting for the
+     * result, the action is executed on its behalf.
+     */
+    boolean isCancelled() {
+        if (!mFuture.isCancelled() && (mBatch == null || !mBatch.isDone() || mBatch.isSuccessful())) {
+            return false;
+        }
+        if (mCoalescedActions != null) {
+            for (final GattAction action : mCoalescedActions) {
+                if (!action.isCancelled()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps an action which was coalesced with this one, to complete it together with this one.
+     */
+    void addCoalescedAction(@NonNull final GattAction action) {
+        if (mCoalescedActions == null) {
+            mCoalescedActions = new LinkedList<>();
+        }
+        mCoalescedActions.add(action);
+    }
+
+    /**
+     * Called once the remote device answered the action.
+     *
+     * @param status The gatt status reported by the stack.
+     * @param value  The value read or written, might be reused by the stack.
+     */
+    void onConfirmed(final int status, @Nullable final byte[] value) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            complete(value, null);
+        } else {
+            complete(null, new GattException(GattException.Reason.STATUS, status));
+        }
+    }
+
+    /**
+     * Called if the action was dropped without being answered by the remote device.
+     *
+     * @param reason The reason the action was dropped.
+     */
+    void onDropped(@NonNull final GattException.Reason reason) {
+        complete(null, new GattException(reason));
+    }
+
+    private void complete(@Nullable final byte[] value, @Nullable final GattException failure) {
+        // The stack reuses the value of the characteristic for the next answer.
+        final byte[] result = (value == null) ? new byte[0] : value.clone();
+        mFuture.complete(result, failure);
+        if (mBatch != null) {
+            // An action executed on behalf of coalesced ones still fails its batch if cancelled.
+            if (failure == null && !mFuture.isCancelled()) {
+                mBatch.onActionSucceeded(this, result);
+            } else {
+                mBatch.onActionFailed(this);
+            }
+        }
+        if (mCoalescedActions != null) {
+            for (final GattAction action : mCoalescedActions) {
+                action.complete(value, failure);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return this.getClass().getSimpleName();
     }
-}
\ No newline at end of file
+}
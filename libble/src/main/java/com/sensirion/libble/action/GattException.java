@@ -0,0 +1,66 @@
+package com.sensirion.libble.action;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+
+/**
+ * The failure a {@link GattFuture} completes with.
+ */
+public class GattException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /**
+         * The device or the stack answered with a status other than {@code GATT_SUCCESS}.
+         */
+        STATUS,
+        /**
+         * The action was not answered in time, or could not be executed, too many times.
+         */
+        TIMEOUT,
+        /**
+         * The action was discarded since the device disconnected.
+         */
+        DISCONNECTED,
+        /**
+         * The action was cancelled before it was executed, e.g. since its batch failed.
+         */
+        CANCELLED,
+        /**
+         * The action could not be scheduled, e.g. since the device or the characteristic is unknown.
+         */
+        UNAVAILABLE
+    }
+
+    private final Reason mReason;
+    private final int mStatus;
+
+    public GattException(@NonNull final Reason reason) {
+        this(reason, BluetoothGatt.GATT_FAILURE);
+    }
+
+    public GattException(@NonNull final Reason reason, final int status) {
+        super(reason + " (gatt status " + status + ")");
+        mReason = reason;
+        mStatus = status;
+    }
+
+    public GattException(@NonNull final Reason reason, @NonNull final Throwable cause) {
+        super(reason.toString(), cause);
+        mReason = reason;
+        mStatus = BluetoothGatt.GATT_FAILURE;
+    }
+
+    @NonNull
+    public Reason getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return the gatt status reported by the stack for {@link Reason#STATUS}, otherwise
+     * {@code GATT_FAILURE}.
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -0,0 +1,255 @@
+package com.sensirion.libble.action;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sensirion.libble.log.Log;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a {@link GattAction}. Completes with the value read or written, or with a
+ * {@link GattException}. Callbacks are executed on the {@link Executor} they were registered
+ * with, dependent actions can be chained using {@link #then(Continuation, Executor)}.
+ */
+public class GattFuture implements Future<byte[]> {
+    private static final String TAG = GattFuture.class.getSimpleName();
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            command.run();
+        }
+    };
+
+    private byte[] mValue;
+    private GattException mFailure;
+    private boolean mDone;
+    private boolean mCancelled;
+    private List<Runnable> mListeners;
+
+    public interface Continuation {
+        /**
+         * Schedules the next action using the value of the previous one.
+         *
+         * @param value the value read or written by the previous action.
+         * @return the future of the next action.
+         */
+        @NonNull
+        GattFuture then(@NonNull byte[] value);
+    }
+
+    GattFuture() {
+    }
+
+    /**
+     * @return a future completed with the given value.
+     */
+    @NonNull
+    public static GattFuture completed(@NonNull final byte[] value) {
+        final GattFuture future = new GattFuture();
+        future.complete(value, null);
+        return future;
+    }
+
+    /**
+     * @return a future failed with the given failure.
+     */
+    @NonNull
+    public static GattFuture failed(@NonNull final GattException failure) {
+        final GattFuture future = new GattFuture();
+        future.complete(null, failure);
+        return future;
+    }
+
+    /**
+     * Completes the future, unless it is done already.
+     *
+     * @return true if the future was completed by this call.
+     */
+    boolean complete(@Nullable final byte[] value, @Nullable final GattException failure) {
+        return complete(value, failure, false);
+    }
+
+    private boolean complete(@Nullable final byte[] value, @Nullable final GattException failure,
+                             final boolean cancelled) {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mCancelled = cancelled;
+            mValue = (failure == null && value == null) ? new byte[0] : value;
+            mFailure = failure;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (final Runnable listener : listeners) {
+                runListener(listener);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a listener, a failing callback must neither skip the others nor escape into the
+     * action queue completing the future.
+     */
+    private static void runListener(@NonNull final Runnable listener) {
+        try {
+            listener.run();
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Callback of a future failed: %s", e);
+        }
+    }
+
+    /**
+     * Cancels the action if it was not executed yet. An action which was executed already is
+     * still answered by the device, but its result is not reported anymore.
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return complete(null, new GattException(GattException.Reason.CANCELLED), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized byte[] get(final long timeout, @NonNull final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            final long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+        }
+        return getResult();
+    }
+
+    private byte[] getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mValue;
+    }
+
+    /**
+     * Registers a callback notified as soon as the future is done, or immediately if it is done
+     * already.
+     *
+     * @param callback the callback to notify.
+     * @param executor the executor the callback is executed on.
+     */
+    public void addCallback(@NonNull final ActionCallback callback, @NonNull final Executor executor) {
+        final Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final GattException failure;
+                        final byte[] value;
+                        synchronized (GattFuture.this) {
+                            failure = mFailure;
+                            value = mValue;
+                        }
+                        if (failure == null) {
+                            callback.onSuccess(value);
+                        } else {
+                            callback.onFailure(failure);
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (!mDone) {
+                if (mListeners == null) {
+                    mListeners = new LinkedList<>();
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    /**
+     * Chains a dependent action: As soon as this future succeeded, the continuation is executed on
+     * the given executor to schedule the next action. A failure is passed on without executing
+     * the continuation.
+     *
+     * @param continuation the continuation scheduling the next action.
+     * @param executor     the executor the continuation is executed on.
+     * @return a future completing with the result of the next action.
+     */
+    @NonNull
+    public GattFuture then(@NonNull final Continuation continuation, @NonNull final Executor executor) {
+        final GattFuture chainedFuture = new GattFuture();
+        final ActionCallback completeChainedFuture = new ActionCallback() {
+            @Override
+            public void onSuccess(@NonNull final byte[] value) {
+                chainedFuture.complete(value, null);
+            }
+
+            @Override
+            public void onFailure(@NonNull final GattException failure) {
+                chainedFuture.complete(null, failure);
+            }
+        };
+        addCallback(new ActionCallback() {
+            @Override
+            public void onSuccess(@NonNull final byte[] value) {
+                final GattFuture nextFuture;
+                try {
+                    nextFuture = continuation.then(value);
+                } catch (final RuntimeException e) {
+                    chainedFuture.complete(null, new GattException(GattException.Reason.UNAVAILABLE, e));
+                    return;
+                }
+                if (nextFuture == null) {
+                    chainedFuture.complete(null, new GattException(GattException.Reason.UNAVAILABLE,
+                            new NullPointerException("The continuation returned no future")));
+                    return;
+                }
+                nextFuture.addCallback(completeChainedFuture, DIRECT_EXECUTOR);
+            }
+
+            @Override
+            public void onFailure(@NonNull final GattException failure) {
+                completeChainedFuture.onFailure(failure);
+            }
+        }, executor);
+        return chainedFuture;
+    }
+}
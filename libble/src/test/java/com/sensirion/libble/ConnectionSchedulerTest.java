@@ -0,0 +1,149 @@
+package com.sensirion.libble;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConnectionSchedulerTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private final List<String> mStarted = new ArrayList<>();
+    private final List<String> mAborted = new ArrayList<>();
+    private final List<Runnable> mTimeouts = new ArrayList<>();
+    private boolean mStartSucceeds;
+    private ConnectionScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mStartSucceeds = true;
+        mScheduler = new ConnectionScheduler(new ConnectionScheduler.Connector() {
+            @Override
+            public boolean startConnection(@NonNull final String deviceAddress) {
+                mStarted.add(deviceAddress);
+                return mStartSucceeds;
+            }
+
+            @Override
+            public void abortConnection(@NonNull final String deviceAddress) {
+                mAborted.add(deviceAddress);
+            }
+        }, getHandlerMock(), 2, TIMEOUT_MS);
+    }
+
+    // Keeps the posted timeouts, they are run by the test.
+    private Handler getHandlerMock() {
+        final Handler mockHandler = PowerMockito.mock(Handler.class);
+        Mockito.when(mockHandler.postDelayed((Runnable) Mockito.anyObject(), Mockito.anyLong()))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        mTimeouts.add((Runnable) invocation.getArguments()[0]);
+                        return true;
+                    }
+                });
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                mTimeouts.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(mockHandler).removeCallbacks((Runnable) Mockito.anyObject());
+        return mockHandler;
+    }
+
+    @Test
+    public void connectLimitsTheAttemptsInFlight() throws Exception {
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+
+        Assert.assertEquals(Arrays.asList("A", "B"), mStarted);
+        Assert.assertTrue(mScheduler.isPending("C"));
+        Assert.assertEquals(2, mTimeouts.size());
+    }
+
+    @Test
+    public void finishedAttemptStartsTheNextOneInOrder() throws Exception {
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+        mScheduler.connect("D");
+
+        mScheduler.onAttemptFinished("B");
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), mStarted);
+        mScheduler.onAttemptFinished("A");
+        Assert.assertEquals(Arrays.asList("A", "B", "C", "D"), mStarted);
+        Assert.assertFalse(mScheduler.isPending("A"));
+        Assert.assertEquals(2, mTimeouts.size());
+    }
+
+    @Test
+    public void connectIgnoresPendingAttempts() throws Exception {
+        mScheduler.connect("A");
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+        mScheduler.connect("C");
+        mScheduler.onAttemptFinished("A");
+        mScheduler.onAttemptFinished("B");
+
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), mStarted);
+    }
+
+    @Test
+    public void timeoutAbortsTheAttemptAndStartsTheNextOne() throws Exception {
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+
+        mTimeouts.get(0).run();
+        Assert.assertEquals(Arrays.asList("A"), mAborted);
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), mStarted);
+
+        // A late answer of the aborted attempt does not start another one
+        mScheduler.connect("D");
+        mScheduler.onAttemptFinished("A");
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), mStarted);
+    }
+
+    @Test
+    public void failedStartFinishesTheAttempt() throws Exception {
+        mStartSucceeds = false;
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), mStarted);
+        Assert.assertFalse(mScheduler.isPending("A"));
+        Assert.assertTrue(mTimeouts.isEmpty());
+    }
+
+    @Test
+    public void cancelDropsAWaitingAttempt() throws Exception {
+        mScheduler.connect("A");
+        mScheduler.connect("B");
+        mScheduler.connect("C");
+
+        mScheduler.cancel("C");
+        mScheduler.onAttemptFinished("A");
+        Assert.assertEquals(Arrays.asList("A", "B"), mStarted);
+        Assert.assertFalse(mScheduler.isPending("C"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxInFlightRejectsZero() throws Exception {
+        mScheduler.setMaxInFlight(0);
+    }
+}
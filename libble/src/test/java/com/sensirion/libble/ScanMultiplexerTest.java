@@ -0,0 +1,265 @@
+package com.sensirion.libble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ScanMultiplexerTest {
+    private BluetoothLeScanner mScanner;
+    private Handler mHandler;
+    private ScanMultiplexer mMultiplexer;
+    private ScanFilter mFilterA;
+    private ScanFilter mFilterB;
+    private ScanResult mResultA;
+    private ScanResult mResultB;
+
+    @Before
+    public void setUp() throws Exception {
+        final BluetoothAdapter adapter = PowerMockito.mock(BluetoothAdapter.class);
+        mScanner = PowerMockito.mock(BluetoothLeScanner.class);
+        Mockito.when(adapter.getBluetoothLeScanner()).thenReturn(mScanner);
+        mHandler = PowerMockito.mock(Handler.class);
+        mMultiplexer = new ScanMultiplexer(adapter, mHandler);
+
+        mResultA = PowerMockito.mock(ScanResult.class);
+        mResultB = PowerMockito.mock(ScanResult.class);
+        mFilterA = getFilterMatching(mResultA);
+        mFilterB = getFilterMatching(mResultB);
+    }
+
+    private ScanFilter getFilterMatching(final ScanResult result) {
+        final ScanFilter filter = PowerMockito.mock(ScanFilter.class);
+        Mockito.when(filter.matches(result)).thenReturn(true);
+        return filter;
+    }
+
+    private BleScanSettings getSettings(final int scanMode) {
+        return new BleScanSettings.Builder().setScanMode(scanMode).build();
+    }
+
+    @Test
+    public void clientsShareOneScan() throws Exception {
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        Assert.assertTrue(mMultiplexer.addClient(new BleScanCallback(),
+                Arrays.asList(mFilterA, mFilterB), settings));
+        // Scans for a subset of the devices scanned for already
+        Assert.assertTrue(mMultiplexer.addClient(new BleScanCallback(),
+                Collections.singletonList(mFilterA), settings));
+
+        Mockito.verify(mScanner, Mockito.times(1)).startScan(Mockito.anyListOf(ScanFilter.class),
+                (ScanSettings) Mockito.any(), (ScanCallback) Mockito.any());
+        Mockito.verify(mScanner, Mockito.never()).stopScan((ScanCallback) Mockito.any());
+    }
+
+    @Test
+    public void changedFiltersRestartTheScan() throws Exception {
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        mMultiplexer.addClient(new BleScanCallback(), Collections.singletonList(mFilterA), settings);
+        mMultiplexer.addClient(new BleScanCallback(), Collections.singletonList(mFilterB), settings);
+
+        Mockito.verify(mScanner, Mockito.times(2)).startScan(Mockito.anyListOf(ScanFilter.class),
+                (ScanSettings) Mockito.any(), (ScanCallback) Mockito.any());
+        Mockito.verify(mScanner, Mockito.times(1)).stopScan(mMultiplexer);
+    }
+
+    @Test
+    public void changedSettingsRestartTheScan() throws Exception {
+        final List<ScanFilter> filters = Collections.singletonList(mFilterA);
+        mMultiplexer.addClient(new BleScanCallback(), filters,
+                getSettings(ScanSettings.SCAN_MODE_LOW_POWER));
+        mMultiplexer.addClient(new BleScanCallback(), filters,
+                getSettings(ScanSettings.SCAN_MODE_LOW_LATENCY));
+
+        Mockito.verify(mScanner, Mockito.times(2)).startScan(Mockito.anyListOf(ScanFilter.class),
+                (ScanSettings) Mockito.any(), (ScanCallback) Mockito.any());
+    }
+
+    @Test
+    public void leavingClientDoesNotRestartTheScan() throws Exception {
+        final BleScanCallback client = new BleScanCallback();
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        mMultiplexer.addClient(new BleScanCallback(), Collections.singletonList(mFilterA), settings);
+        mMultiplexer.addClient(client, Collections.singletonList(mFilterB), settings);
+
+        mMultiplexer.removeClient(client);
+        Mockito.verify(mScanner, Mockito.times(2)).startScan(Mockito.anyListOf(ScanFilter.class),
+                (ScanSettings) Mockito.any(), (ScanCallback) Mockito.any());
+    }
+
+    @Test
+    public void exhaustedBudgetDefersTheRestart() throws Exception {
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        for (int i = 0; i <= ScanStartBudget.MAX_SCAN_STARTS; i++) {
+            final ScanFilter filter = PowerMockito.mock(ScanFilter.class);
+            Assert.assertTrue(mMultiplexer.addClient(new BleScanCallback(),
+                    Collections.singletonList(filter), settings));
+        }
+
+        Assert.assertEquals(0, mMultiplexer.getAvailableScanStarts());
+        Mockito.verify(mScanner, Mockito.times(ScanStartBudget.MAX_SCAN_STARTS)).startScan(
+                Mockito.anyListOf(ScanFilter.class), (ScanSettings) Mockito.any(),
+                (ScanCallback) Mockito.any());
+        Mockito.verify(mHandler).postDelayed((Runnable) Mockito.any(),
+                Mockito.eq(ScanStartBudget.WINDOW_MS));
+    }
+
+    @Test
+    public void resultsAreDeliveredToMatchingClients() throws Exception {
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        final RecordingCallback clientA = new RecordingCallback();
+        final RecordingCallback clientB = new RecordingCallback();
+        final RecordingCallback clientAll = new RecordingCallback();
+        mMultiplexer.addClient(clientA, Collections.singletonList(mFilterA), settings);
+        mMultiplexer.addClient(clientB, Collections.singletonList(mFilterB), settings);
+        mMultiplexer.addClient(clientAll, new ArrayList<ScanFilter>(), settings);
+
+        mMultiplexer.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, mResultA);
+        mMultiplexer.onBatchScanResults(Arrays.asList(mResultA, mResultB));
+
+        Assert.assertEquals(Arrays.asList(mResultA, mResultA), clientA.mResults);
+        Assert.assertEquals(Collections.singletonList(mResultB), clientB.mResults);
+        Assert.assertEquals(Arrays.asList(mResultA, mResultA, mResultB), clientAll.mResults);
+    }
+
+    @Test
+    public void immediateClientGetsBatchesAsSingleResults() throws Exception {
+        final RecordingCallback immediateClient = new RecordingCallback();
+        final RecordingCallback batchedClient = new RecordingCallback();
+        mMultiplexer.addClient(immediateClient, new ArrayList<ScanFilter>(),
+                getSettings(ScanSettings.SCAN_MODE_LOW_POWER));
+        mMultiplexer.addClient(batchedClient, new ArrayList<ScanFilter>(),
+                new BleScanSettings.Builder().setReportDelay(5000).build());
+
+        mMultiplexer.onBatchScanResults(Arrays.asList(mResultA, mResultB));
+
+        Assert.assertEquals(Arrays.asList(mResultA, mResultB), immediateClient.mResults);
+        Assert.assertEquals(0, immediateClient.mBatches);
+        Assert.assertEquals(Arrays.asList(mResultA, mResultB), batchedClient.mResults);
+        Assert.assertEquals(1, batchedClient.mBatches);
+    }
+
+    @Test
+    public void batchedClientGetsSingleResultsAfterItsReportDelay() throws Exception {
+        final RecordingCallback batchedClient = new RecordingCallback();
+        mMultiplexer.addClient(new BleScanCallback(), new ArrayList<ScanFilter>(),
+                getSettings(ScanSettings.SCAN_MODE_LOW_POWER));
+        mMultiplexer.addClient(batchedClient, new ArrayList<ScanFilter>(),
+                new BleScanSettings.Builder().setReportDelay(5000).build());
+
+        mMultiplexer.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, mResultA);
+        mMultiplexer.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, mResultB);
+        Assert.assertTrue(batchedClient.mResults.isEmpty());
+
+        final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(mHandler, Mockito.times(1)).postDelayed(flush.capture(), Mockito.eq(5000L));
+        flush.getValue().run();
+        Assert.assertEquals(Arrays.asList(mResultA, mResultB), batchedClient.mResults);
+        Assert.assertEquals(1, batchedClient.mBatches);
+    }
+
+    @Test
+    public void firstMatchAndMatchLostAreEmulated() throws Exception {
+        mockDevice(mResultA, "00:00:00:00:00:0A");
+        final RecordingCallback allMatchesClient = new RecordingCallback();
+        final RecordingCallback firstMatchClient = new RecordingCallback();
+        mMultiplexer.addClient(allMatchesClient, new ArrayList<ScanFilter>(),
+                getSettings(ScanSettings.SCAN_MODE_LOW_POWER));
+        mMultiplexer.addClient(firstMatchClient, new ArrayList<ScanFilter>(),
+                new BleScanSettings.Builder().setCallbackType(
+                        ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST)
+                        .build());
+
+        mMultiplexer.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, mResultA);
+        mMultiplexer.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, mResultA);
+        Assert.assertEquals(2, allMatchesClient.mResults.size());
+        Assert.assertEquals(Collections.singletonList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH),
+                firstMatchClient.mCallbackTypes);
+
+        mMultiplexer.expireSightings(ScanMultiplexer.MATCH_LOST_TIMEOUT_MS - 1);
+        Assert.assertEquals(1, firstMatchClient.mCallbackTypes.size());
+        mMultiplexer.expireSightings(ScanMultiplexer.MATCH_LOST_TIMEOUT_MS);
+        Assert.assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+                ScanSettings.CALLBACK_TYPE_MATCH_LOST), firstMatchClient.mCallbackTypes);
+        Assert.assertEquals(Arrays.asList(mResultA, mResultA), firstMatchClient.mResults);
+        Assert.assertEquals(2, allMatchesClient.mResults.size());
+    }
+
+    private static void mockDevice(final ScanResult result, final String address) {
+        final BluetoothDevice device = PowerMockito.mock(BluetoothDevice.class);
+        Mockito.when(device.getAddress()).thenReturn(address);
+        Mockito.when(result.getDevice()).thenReturn(device);
+    }
+
+    @Test
+    public void removingTheLastClientStopsTheScan() throws Exception {
+        final BleScanCallback client = new BleScanCallback();
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        mMultiplexer.addClient(client, Collections.singletonList(mFilterA), settings);
+
+        Assert.assertFalse(mMultiplexer.addClient(client, Collections.singletonList(mFilterA), settings));
+        Assert.assertTrue(mMultiplexer.removeClient(client));
+        Assert.assertFalse(mMultiplexer.removeClient(client));
+        Mockito.verify(mScanner, Mockito.never()).stopScan(mMultiplexer);
+
+        final ArgumentCaptor<Runnable> stopScan = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(mHandler).postDelayed(stopScan.capture(),
+                Mockito.eq(ScanMultiplexer.SCAN_STOP_GRACE_MS));
+        stopScan.getValue().run();
+        Mockito.verify(mScanner, Mockito.times(1)).stopScan(mMultiplexer);
+    }
+
+    @Test
+    public void returningClientReusesTheScan() throws Exception {
+        final BleScanCallback client = new BleScanCallback();
+        final BleScanSettings settings = getSettings(ScanSettings.SCAN_MODE_LOW_POWER);
+        mMultiplexer.addClient(client, Collections.singletonList(mFilterA), settings);
+        mMultiplexer.removeClient(client);
+        mMultiplexer.addClient(client, Collections.singletonList(mFilterA), settings);
+
+        final ArgumentCaptor<Runnable> stopScan = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(mHandler).postDelayed(stopScan.capture(),
+                Mockito.eq(ScanMultiplexer.SCAN_STOP_GRACE_MS));
+        Mockito.verify(mHandler, Mockito.atLeastOnce()).removeCallbacks(stopScan.getValue());
+        // Even if the handler ran it, the stop is skipped while a client is scanning
+        stopScan.getValue().run();
+        Mockito.verify(mScanner, Mockito.times(1)).startScan(Mockito.anyListOf(ScanFilter.class),
+                (ScanSettings) Mockito.any(), (ScanCallback) Mockito.any());
+        Mockito.verify(mScanner, Mockito.never()).stopScan(mMultiplexer);
+    }
+
+    private static class RecordingCallback extends BleScanCallback {
+        final List<ScanResult> mResults = new ArrayList<>();
+        final List<Integer> mCallbackTypes = new ArrayList<>();
+        int mBatches;
+
+        @Override
+        public void onScanResult(final int callbackType, final ScanResult result) {
+            mResults.add(result);
+            mCallbackTypes.add(callbackType);
+        }
+
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            mResults.addAll(results);
+            mBatches++;
+        }
+    }
+}
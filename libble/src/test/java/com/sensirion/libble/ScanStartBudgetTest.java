@@ -0,0 +1,33 @@
+package com.sensirion.libble;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ScanStartBudgetTest {
+
+    @Test
+    public void startsAreLimitedWithinTheWindow() throws Exception {
+        final ScanStartBudget budget = new ScanStartBudget();
+        for (int i = 0; i < ScanStartBudget.MAX_SCAN_STARTS; i++) {
+            Assert.assertEquals(1000 * i, budget.getNextStartTime(1000 * i));
+            budget.onScanStarted(1000 * i);
+        }
+
+        Assert.assertEquals(0, budget.getAvailableStarts(5000));
+        Assert.assertEquals(ScanStartBudget.WINDOW_MS, budget.getNextStartTime(5000));
+    }
+
+    @Test
+    public void startsLeaveTheWindow() throws Exception {
+        final ScanStartBudget budget = new ScanStartBudget();
+        for (int i = 0; i < ScanStartBudget.MAX_SCAN_STARTS; i++) {
+            budget.onScanStarted(1000 * i);
+        }
+
+        Assert.assertEquals(1, budget.getAvailableStarts(ScanStartBudget.WINDOW_MS));
+        Assert.assertEquals(2, budget.getAvailableStarts(ScanStartBudget.WINDOW_MS + 1000));
+        Assert.assertEquals(ScanStartBudget.MAX_SCAN_STARTS,
+                budget.getAvailableStarts(2 * ScanStartBudget.WINDOW_MS));
+    }
+}
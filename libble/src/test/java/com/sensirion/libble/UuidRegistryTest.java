@@ -0,0 +1,43 @@
+package com.sensirion.libble;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class UuidRegistryTest {
+
+    @Test
+    public void testSameUuidSameId() throws Exception {
+        final String uuid = "0000f235-b38d-4985-720e-0f993a68ee41";
+        final int id = UuidRegistry.getId(uuid);
+        Assert.assertEquals(id, UuidRegistry.getId(UUID.fromString(uuid)));
+        Assert.assertEquals(UUID.fromString(uuid), UuidRegistry.getUuid(id));
+    }
+
+    @Test
+    public void testDistinctUuidsDistinctIds() throws Exception {
+        final int firstId = UuidRegistry.getId("0000fa21-0000-1000-8000-00805f9b34fb");
+        final int secondId = UuidRegistry.getId("0000fa22-0000-1000-8000-00805f9b34fb");
+        Assert.assertTrue(firstId >= 0);
+        Assert.assertTrue(secondId >= 0);
+        Assert.assertTrue(firstId != secondId);
+    }
+
+    @Test
+    public void testIdsStayValidWhenGrowing() throws Exception {
+        final UUID firstUuid = UUID.randomUUID();
+        final int firstId = UuidRegistry.getId(firstUuid);
+        for (int i = 0; i < 100; i++) {
+            UuidRegistry.getId(UUID.randomUUID());
+        }
+        Assert.assertEquals(firstId, UuidRegistry.getId(firstUuid));
+        Assert.assertEquals(firstUuid, UuidRegistry.getUuid(firstId));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownId() throws Exception {
+        UuidRegistry.getUuid(-1);
+    }
+}
@@ -2,19 +2,28 @@ package com.sensirion.libble.action;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
 /*
 Note, that for these tests to run you need to set the DBG flat in com.sensirion.libble.log.Log to
 false. Otherwise we'd need to mock it.
  */
 public class ActionQueueTest {
     private static final String TEST_ADDRESS = "TEST_ADDRESS";
+    private static final long RETRY_DELAY_MS = 5;
 
     // We need to pass some mocks here due to internal calls to the BluetoothGatt in the GattActions.
     BluetoothGatt getMockGatt() {
@@ -35,17 +44,18 @@ public class ActionQueueTest {
             }
         };
 
-        final ActionQueue testedQueue = new ActionQueue(null, 1);
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
 
         testedQueue.add(successTestAction);
         Assert.assertFalse(testedQueue.isEmpty());
 
-        testedQueue.processAction();
+        Assert.assertEquals(1, testedQueue.processAction(0));
         Assert.assertEquals(1, successTestAction.executeCount);
         Assert.assertFalse(testedQueue.isEmpty());
 
         testedQueue.confirmAction(TEST_ADDRESS);
         Assert.assertTrue(testedQueue.isEmpty());
+        Assert.assertEquals(ActionQueue.NO_DEADLINE, testedQueue.processAction(0));
     }
 
     @Test
@@ -58,7 +68,7 @@ public class ActionQueueTest {
             }
         };
 
-        final ActionQueue testedQueue = new ActionQueue(null, 1);
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
 
         testedQueue.add(successTestAction);
         testedQueue.confirmAction(TEST_ADDRESS);
@@ -78,24 +88,47 @@ public class ActionQueueTest {
         };
         failureTestAction.failsTillDropOut = failsTillDropOut;
 
-        final ActionQueue testedQueue = new ActionQueue(null, 1);
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
 
         testedQueue.add(failureTestAction);
 
         for (int i = 0; i < failsTillDropOut; i++) {
-            testedQueue.processAction();
-            Assert.assertEquals((i + 1), failureTestAction.executeCount);
             Assert.assertFalse(testedQueue.isEmpty());
+            testedQueue.processAction(i * RETRY_DELAY_MS);
+            Assert.assertEquals((i + 1), failureTestAction.executeCount);
         }
 
-        testedQueue.processAction();
+        // The action is dropped as soon as its last execution failed
         Assert.assertEquals(2, failureTestAction.executeCount);
         Assert.assertTrue(testedQueue.isEmpty());
     }
 
+    @Test
+    public void testRetryWaitsForRetryDelay() throws Exception {
+        final TestAction failureTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return false;
+            }
+        };
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        testedQueue.add(failureTestAction);
+
+        Assert.assertEquals(RETRY_DELAY_MS, testedQueue.processAction(0));
+        Assert.assertEquals(1, failureTestAction.executeCount);
+
+        testedQueue.processAction(RETRY_DELAY_MS - 1);
+        Assert.assertEquals(1, failureTestAction.executeCount);
+
+        testedQueue.processAction(RETRY_DELAY_MS);
+        Assert.assertEquals(2, failureTestAction.executeCount);
+    }
+
     @Test
     public void testTimeoutAndNrOfExecutionsInFailScenario() throws Exception {
-        final int timeoutIterationCount = 10;
+        final long timeoutMs = 10;
         final int failsTillDropOut = 10;
         final TestAction successTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
             @Override
@@ -105,30 +138,517 @@ public class ActionQueueTest {
             }
         };
         successTestAction.failsTillDropOut = failsTillDropOut;
+        successTestAction.setTimeout(timeoutMs);
 
-        final ActionQueue testedQueue = new ActionQueue(null, timeoutIterationCount);
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
         testedQueue.add(successTestAction);
 
+        long nowMs = 0;
         for (int j = 0; j < failsTillDropOut; j++) {
-            for (int i = 0; i < (timeoutIterationCount + 1); i++) {
-                testedQueue.processAction();
-                Assert.assertEquals((j + 1), successTestAction.executeCount);
-                Assert.assertFalse(testedQueue.isEmpty());
-            }
+            Assert.assertFalse(testedQueue.isEmpty());
+            Assert.assertEquals(nowMs + timeoutMs, testedQueue.processAction(nowMs));
+            Assert.assertEquals((j + 1), successTestAction.executeCount);
+
+            // No confirmation before the deadline - still waiting
+            testedQueue.processAction(nowMs + timeoutMs - 1);
+            Assert.assertEquals((j + 1), successTestAction.executeCount);
+
+            // Deadline reached
+            testedQueue.processAction(nowMs + timeoutMs);
+            Assert.assertEquals((j + 1), successTestAction.executeCount);
+            nowMs += timeoutMs + RETRY_DELAY_MS;
         }
 
-        testedQueue.processAction();
         Assert.assertEquals(failsTillDropOut, successTestAction.executeCount);
         Assert.assertTrue(testedQueue.isEmpty());
     }
 
+    @Test
+    public void testDeadlineFollowsTimeoutOfEachAction() throws Exception {
+        final long shortTimeoutMs = 10;
+        final long longTimeoutMs = 1000;
+        final TestAction shortAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        shortAction.setTimeout(shortTimeoutMs);
+        final TestAction longAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        longAction.setTimeout(longTimeoutMs);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        testedQueue.add(shortAction);
+        testedQueue.add(longAction);
+
+        Assert.assertEquals(shortTimeoutMs, testedQueue.processAction(0));
+        testedQueue.confirmAction(TEST_ADDRESS);
+
+        final long nowMs = 3;
+        Assert.assertEquals(nowMs + longTimeoutMs, testedQueue.processAction(nowMs));
+        Assert.assertEquals(1, longAction.executeCount);
+
+        // Still within the deadline of the long action
+        testedQueue.processAction(nowMs + shortTimeoutMs);
+        Assert.assertEquals(1, longAction.executeCount);
+        Assert.assertEquals(nowMs + longTimeoutMs, longAction.getDeadline());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTimeoutMustBePositive() throws Exception {
+        final TestAction testAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                return true;
+            }
+        };
+        testAction.setTimeout(0);
+    }
+
+    private TestAction getConfirmableAction(final ActionPriority priority) {
+        final TestAction testAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        testAction.setPriority(priority);
+        return testAction;
+    }
+
+    @Test
+    public void testHigherLaneIsServedFirst() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction bulkAction = getConfirmableAction(ActionPriority.BULK);
+        final TestAction controlAction = getConfirmableAction(ActionPriority.CONTROL);
+        final TestAction interactiveAction = getConfirmableAction(ActionPriority.INTERACTIVE);
+        testedQueue.add(bulkAction);
+        testedQueue.add(controlAction);
+        testedQueue.add(interactiveAction);
+
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, interactiveAction.executeCount);
+        testedQueue.confirmAction(TEST_ADDRESS);
+
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, controlAction.executeCount);
+        testedQueue.confirmAction(TEST_ADDRESS);
+
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, bulkAction.executeCount);
+        testedQueue.confirmAction(TEST_ADDRESS);
+        Assert.assertTrue(testedQueue.isEmpty());
+    }
+
+    @Test
+    public void testPendingActionIsNotPreempted() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction bulkAction = getConfirmableAction(ActionPriority.BULK);
+        final TestAction interactiveAction = getConfirmableAction(ActionPriority.INTERACTIVE);
+        testedQueue.add(bulkAction);
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, bulkAction.executeCount);
+
+        testedQueue.add(interactiveAction);
+        testedQueue.processAction(0);
+        Assert.assertEquals(0, interactiveAction.executeCount);
+
+        // The interactive action is next, before any other bulk action
+        testedQueue.add(getConfirmableAction(ActionPriority.BULK));
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, interactiveAction.executeCount);
+    }
+
+    @Test
+    public void testStarvedLaneIsServedAfterMaxSkips() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction bulkAction = getConfirmableAction(ActionPriority.BULK);
+        testedQueue.add(bulkAction);
+        for (int i = 0; i <= ActionQueue.MAX_SKIPS; i++) {
+            testedQueue.add(getConfirmableAction(ActionPriority.INTERACTIVE));
+        }
+
+        for (int i = 0; i < ActionQueue.MAX_SKIPS; i++) {
+            testedQueue.processAction(0);
+            testedQueue.confirmAction(TEST_ADDRESS);
+            Assert.assertEquals(0, bulkAction.executeCount);
+        }
+
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, bulkAction.executeCount);
+    }
+
+    @Test
+    public void testIdenticalPendingReadsAreCoalesced() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+        testedQueue.processAction(0);
+
+        // The first read is in flight already, hence the second one is kept
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        testedQueue.confirmAction(TEST_ADDRESS);
+        Assert.assertTrue(testedQueue.isEmpty());
+        Mockito.verify(mockGatt, Mockito.times(2)).readCharacteristic(characteristic);
+    }
+
+    @Test
+    public void testCoalescedReadsCompleteTogether() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final ActionReadCharacteristic firstRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        final ActionReadCharacteristic secondRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        testedQueue.add(firstRead);
+        testedQueue.add(secondRead);
+
+        testedQueue.processAction(0);
+        testedQueue.confirmAction(TEST_ADDRESS, BluetoothGatt.GATT_SUCCESS, new byte[]{7});
+        Assert.assertEquals(7, firstRead.getFuture().get()[0]);
+        Assert.assertEquals(7, secondRead.getFuture().get()[0]);
+    }
+
+    @Test
+    public void testCancelledActionIsNotExecuted() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction cancelledAction = getConfirmableAction(ActionPriority.CONTROL);
+        testedQueue.add(cancelledAction);
+        cancelledAction.getFuture().cancel(false);
+
+        Assert.assertEquals(ActionQueue.NO_DEADLINE, testedQueue.processAction(0));
+        Assert.assertEquals(0, cancelledAction.executeCount);
+        Assert.assertTrue(testedQueue.isEmpty());
+    }
+
+    @Test
+    public void testCancellingOneCoalescedReadKeepsTheOthers() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final ActionReadCharacteristic firstRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        final ActionReadCharacteristic secondRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        testedQueue.add(firstRead);
+        testedQueue.add(secondRead);
+        firstRead.getFuture().cancel(false);
+
+        testedQueue.processAction(0);
+        Mockito.verify(mockGatt).readCharacteristic(characteristic);
+        testedQueue.confirmAction(TEST_ADDRESS, BluetoothGatt.GATT_SUCCESS, new byte[]{7});
+        Assert.assertTrue(firstRead.getFuture().isCancelled());
+        Assert.assertEquals(7, secondRead.getFuture().get()[0]);
+        Assert.assertTrue(testedQueue.isEmpty());
+    }
+
+    @Test
+    public void testFailingCallbackDoesNotStallTheQueue() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction firstAction = getConfirmableAction(ActionPriority.CONTROL);
+        final TestAction secondAction = getConfirmableAction(ActionPriority.CONTROL);
+        firstAction.getFuture().addCallback(new ActionCallback() {
+            @Override
+            public void onSuccess(@NonNull final byte[] value) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void onFailure(@NonNull final GattException failure) {
+            }
+        }, new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        });
+        testedQueue.add(firstAction);
+        testedQueue.add(secondAction);
+
+        testedQueue.processAction(0);
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, secondAction.executeCount);
+    }
+
+    @Test
+    public void testCoalescedReadIsPromoted() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+        final TestAction controlAction = getConfirmableAction(ActionPriority.CONTROL);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final ActionReadCharacteristic bulkRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        bulkRead.setPriority(ActionPriority.BULK);
+        testedQueue.add(bulkRead);
+        testedQueue.add(controlAction);
+        final ActionReadCharacteristic interactiveRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        interactiveRead.setPriority(ActionPriority.INTERACTIVE);
+        testedQueue.add(interactiveRead);
+
+        Assert.assertEquals(ActionPriority.INTERACTIVE, bulkRead.getPriority());
+        testedQueue.processAction(0);
+        Mockito.verify(mockGatt).readCharacteristic(characteristic);
+        Assert.assertEquals(0, controlAction.executeCount);
+    }
+
+    @Test
+    public void testPendingWritesCollapse() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.writeCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        for (int i = 0; i < 5; i++) {
+            testedQueue.add(new ActionWriteCharacteristic(mockGatt, characteristic));
+        }
+        testedQueue.processAction(0);
+        testedQueue.confirmAction(TEST_ADDRESS);
+
+        Assert.assertTrue(testedQueue.isEmpty());
+        Mockito.verify(mockGatt, Mockito.times(1)).writeCharacteristic(characteristic);
+    }
+
+    @Test
+    public void testReadAfterPendingWriteIsNotCoalesced() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+        Mockito.when(mockGatt.writeCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+        testedQueue.add(new ActionWriteCharacteristic(mockGatt, characteristic));
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristic));
+
+        for (int i = 0; i < 3; i++) {
+            testedQueue.processAction(0);
+            testedQueue.confirmAction(TEST_ADDRESS);
+        }
+        Assert.assertTrue(testedQueue.isEmpty());
+        Mockito.verify(mockGatt, Mockito.times(2)).readCharacteristic(characteristic);
+        Mockito.verify(mockGatt, Mockito.times(1)).writeCharacteristic(characteristic);
+    }
+
+    @Test
+    public void testReadIsNotCoalescedAcrossNewerWriteInHigherLane() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristic)).thenReturn(true);
+        Mockito.when(mockGatt.writeCharacteristic(characteristic)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final ActionReadCharacteristic firstRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        firstRead.setPriority(ActionPriority.BULK);
+        testedQueue.add(firstRead);
+        final ActionWriteCharacteristic write = new ActionWriteCharacteristic(mockGatt, characteristic);
+        write.setPriority(ActionPriority.INTERACTIVE);
+        testedQueue.add(write);
+        // The newest pending action on the target is the write, although the read is in a lower lane
+        final ActionReadCharacteristic secondRead = new ActionReadCharacteristic(mockGatt, characteristic);
+        secondRead.setPriority(ActionPriority.BULK);
+        testedQueue.add(secondRead);
+
+        for (int i = 0; i < 3; i++) {
+            testedQueue.processAction(0);
+            testedQueue.confirmAction(TEST_ADDRESS);
+        }
+        Assert.assertTrue(testedQueue.isEmpty());
+        Mockito.verify(mockGatt, Mockito.times(2)).readCharacteristic(characteristic);
+        Mockito.verify(mockGatt, Mockito.times(1)).writeCharacteristic(characteristic);
+    }
+
+    @Test
+    public void testBatchReadIsNotCoalescedWithReadOutsideTheBatch() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final BluetoothGattCharacteristic characteristicX =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        final BluetoothGattCharacteristic characteristicY =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+        Mockito.when(mockGatt.readCharacteristic(characteristicX)).thenReturn(true);
+        Mockito.when(mockGatt.readCharacteristic(characteristicY)).thenReturn(true);
+
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        testedQueue.add(new ActionReadCharacteristic(mockGatt, characteristicX));
+        final ActionBatch batch = new ActionBatch(Arrays.<GattAction>asList(
+                new ActionReadCharacteristic(mockGatt, characteristicY),
+                new ActionReadCharacteristic(mockGatt, characteristicX)));
+        for (final GattAction action : batch.getActions()) {
+            testedQueue.add(action);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            testedQueue.processAction(0);
+            testedQueue.confirmAction(TEST_ADDRESS, BluetoothGatt.GATT_SUCCESS, new byte[]{7});
+        }
+        Assert.assertTrue(testedQueue.isEmpty());
+        Assert.assertTrue(batch.isSuccessful());
+        // The batch reads Y before X, rather than X with the older read
+        final InOrder reads = Mockito.inOrder(mockGatt);
+        reads.verify(mockGatt).readCharacteristic(characteristicX);
+        reads.verify(mockGatt).readCharacteristic(characteristicY);
+        reads.verify(mockGatt).readCharacteristic(characteristicX);
+    }
+
+    private TestAction getPipelinedAction(final int creditWindow) {
+        return new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+
+            @Override
+            int getCreditWindow() {
+                return creditWindow;
+            }
+        };
+    }
+
+    @Test
+    public void testPipelinedActionsAreGatedByCredits() throws Exception {
+        final int creditWindow = 3;
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction[] actions = new TestAction[creditWindow + 2];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = getPipelinedAction(creditWindow);
+            testedQueue.add(actions[i]);
+        }
+
+        Assert.assertEquals(TestAction.DEFAULT_TIMEOUT_MS, testedQueue.processAction(0));
+        for (int i = 0; i < actions.length; i++) {
+            Assert.assertEquals((i < creditWindow) ? 1 : 0, actions[i].executeCount);
+        }
+
+        // Every confirmation returns one credit
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, actions[creditWindow].executeCount);
+        Assert.assertEquals(0, actions[creditWindow + 1].executeCount);
+
+        for (int i = 0; i < actions.length; i++) {
+            testedQueue.confirmAction(TEST_ADDRESS);
+            testedQueue.processAction(0);
+        }
+        Assert.assertEquals(1, actions[creditWindow + 1].executeCount);
+        Assert.assertTrue(testedQueue.isEmpty());
+    }
+
+    @Test
+    public void testRefusedPipelinedWriteWaitsForCredit() throws Exception {
+        // The stack refuses a write while another one is outstanding.
+        final int[] outstandingWrites = new int[1];
+        final int[] refusedWrites = new int[1];
+        final BluetoothGatt mockGatt = getMockGatt();
+        Mockito.when(mockGatt.writeCharacteristic(Mockito.any(BluetoothGattCharacteristic.class)))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(final InvocationOnMock invocation) {
+                        if (outstandingWrites[0] > 0) {
+                            refusedWrites[0]++;
+                            return false;
+                        }
+                        outstandingWrites[0]++;
+                        return true;
+                    }
+                });
+        final BluetoothGattCharacteristic characteristic =
+                PowerMockito.mock(BluetoothGattCharacteristic.class);
+
+        final int packetCount = 5;
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final ActionWriteWithoutResponse[] writes = new ActionWriteWithoutResponse[packetCount];
+        for (int i = 0; i < packetCount; i++) {
+            writes[i] = new ActionWriteWithoutResponse(mockGatt, characteristic, new byte[]{(byte) i}, 4);
+            testedQueue.add(writes[i]);
+        }
+
+        for (int i = 0; i < packetCount; i++) {
+            testedQueue.processAction(0);
+            Assert.assertEquals(1, outstandingWrites[0]);
+            outstandingWrites[0]--;
+            testedQueue.confirmAction(TEST_ADDRESS);
+        }
+        Assert.assertTrue(testedQueue.isEmpty());
+        Assert.assertTrue(refusedWrites[0] > 0);
+        for (final ActionWriteWithoutResponse write : writes) {
+            Assert.assertNotNull(write.getFuture().get());
+            // A refusal for lack of credit is no failed attempt
+            Assert.assertEquals(10, write.failsTillDropOut);
+        }
+    }
+
+    @Test
+    public void testActionWaitsForPipelinedActionsInFlight() throws Exception {
+        final ActionQueue testedQueue = new ActionQueue(null, RETRY_DELAY_MS);
+        final TestAction controlAction = getConfirmableAction(ActionPriority.CONTROL);
+        testedQueue.add(getPipelinedAction(2));
+        testedQueue.add(getPipelinedAction(2));
+        testedQueue.add(controlAction);
+
+        testedQueue.processAction(0);
+        Assert.assertEquals(0, controlAction.executeCount);
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        Assert.assertEquals(0, controlAction.executeCount);
+        testedQueue.confirmAction(TEST_ADDRESS);
+        testedQueue.processAction(0);
+        Assert.assertEquals(1, controlAction.executeCount);
+    }
+
+    @Test
+    public void testExpiredPipelinedActionsAreFailed() throws Exception {
+        final FailureCallContainer failureCalledContainer = new FailureCallContainer();
+        final ActionQueue testedQueue = new ActionQueue(new ActionFailureCallback() {
+            @Override
+            public void onActionFailed(GattAction action) {
+                failureCalledContainer.failureCalled = true;
+            }
+        }, RETRY_DELAY_MS);
+        final TestAction pipelinedAction = getPipelinedAction(1);
+        testedQueue.add(pipelinedAction);
+
+        testedQueue.processAction(0);
+        Assert.assertFalse(testedQueue.isEmpty());
+        Assert.assertEquals(ActionQueue.NO_DEADLINE, testedQueue.processAction(TestAction.DEFAULT_TIMEOUT_MS));
+        Assert.assertTrue(failureCalledContainer.failureCalled);
+        Assert.assertEquals(1, pipelinedAction.executeCount);
+        Assert.assertTrue(testedQueue.isEmpty());
+    }
+
     class FailureCallContainer {
         public boolean failureCalled = false;
     }
 
     @Test
     public void testFailureCallback() throws Exception {
-        final int timeoutIterationCount = 1;
+        final long timeoutMs = 1;
         final int failsTillDropOut = 1;
         final TestAction failureTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
             @Override
@@ -138,24 +658,22 @@ public class ActionQueueTest {
             }
         };
         failureTestAction.failsTillDropOut = failsTillDropOut;
+        failureTestAction.setTimeout(timeoutMs);
         final FailureCallContainer failureCalledContainer = new FailureCallContainer();
         final ActionQueue testedQueue = new ActionQueue(new ActionFailureCallback() {
             @Override
             public void onActionFailed(GattAction action) {
                 failureCalledContainer.failureCalled = true;
             }
-        }, timeoutIterationCount);
+        }, RETRY_DELAY_MS);
         testedQueue.add(failureTestAction);
 
-        for (int j = 0; j < failsTillDropOut; j++) {
-            for (int i = 0; i < (timeoutIterationCount + 1); i++) {
-                testedQueue.processAction();
-            }
-        }
+        testedQueue.processAction(0);
         Assert.assertFalse(testedQueue.isEmpty());
+        Assert.assertFalse(failureCalledContainer.failureCalled);
 
         // The failing call
-        testedQueue.processAction();
+        testedQueue.processAction(timeoutMs);
         Assert.assertTrue(testedQueue.isEmpty());
         Assert.assertTrue(failureCalledContainer.failureCalled);
     }
@@ -0,0 +1,145 @@
+package com.sensirion.libble.action;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures the read throughput of the ActionScheduler against a fake BluetoothGatt answering every
+read after a fixed round trip time. The scheduler's handler runs on a single thread, like the main
+looper it is bound to in the BleService.
+ */
+public class ActionSchedulerBenchmarkTest {
+    private static final String TEST_ADDRESS = "TEST_ADDRESS";
+    private static final long ROUND_TRIP_MS = 5;
+    private static final int NUMBER_OF_READS = 100;
+    // The former polling loop advanced each queue at most once every 50 ms.
+    private static final double POLLING_LOOP_OPS_PER_SECOND = 1000 / 50.0;
+
+    private ScheduledExecutorService mLooper;
+    private ScheduledExecutorService mRadio;
+    private ActionScheduler mActionScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mLooper = Executors.newSingleThreadScheduledExecutor();
+        mRadio = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mLooper.shutdownNow();
+        mRadio.shutdownNow();
+    }
+
+    @Test
+    public void benchmarkSequentialReads() throws Exception {
+        final CountDownLatch completedReads = new CountDownLatch(NUMBER_OF_READS);
+        final BluetoothGatt fakeGatt = getFakeGatt(completedReads);
+        mActionScheduler = new ActionScheduler(null, getLooperHandler());
+
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < NUMBER_OF_READS; i++) {
+            // Distinct characteristics, reads of the same one would be coalesced
+            final BluetoothGattCharacteristic characteristic =
+                    PowerMockito.mock(BluetoothGattCharacteristic.class);
+            mActionScheduler.schedule(new ActionReadCharacteristic(fakeGatt, characteristic));
+        }
+        Assert.assertTrue(completedReads.await(NUMBER_OF_READS, TimeUnit.SECONDS));
+        final double elapsedS = (System.nanoTime() - startNs) / 1e9;
+
+        final double opsPerSecond = NUMBER_OF_READS / elapsedS;
+        final String measurement = String.format(Locale.ENGLISH,
+                "%d reads with %d ms round trip in %.3f s -> %.1f ops/s (polling loop ceiling: %.1f ops/s)",
+                NUMBER_OF_READS, ROUND_TRIP_MS, elapsedS, opsPerSecond, POLLING_LOOP_OPS_PER_SECOND);
+        Assert.assertTrue(measurement, opsPerSecond > 2 * POLLING_LOOP_OPS_PER_SECOND);
+        // Every read takes at least one round trip, a faster run did not wait for the answers
+        Assert.assertTrue(measurement, opsPerSecond <= 1000.0 / ROUND_TRIP_MS);
+    }
+
+    // The fake gatt confirms every read on the radio thread after the round trip time.
+    private BluetoothGatt getFakeGatt(final CountDownLatch completedReads) {
+        final BluetoothGatt fakeGatt = PowerMockito.mock(BluetoothGatt.class);
+        final BluetoothDevice mockDevice = PowerMockito.mock(BluetoothDevice.class);
+        Mockito.when(fakeGatt.getDevice()).thenReturn(mockDevice);
+        Mockito.when(mockDevice.getAddress()).thenReturn(TEST_ADDRESS);
+        Mockito.when(fakeGatt.readCharacteristic((BluetoothGattCharacteristic) Mockito.anyObject()))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        mRadio.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                mActionScheduler.confirm(TEST_ADDRESS);
+                                completedReads.countDown();
+                            }
+                        }, ROUND_TRIP_MS, TimeUnit.MILLISECONDS);
+                        return true;
+                    }
+                });
+        return fakeGatt;
+    }
+
+    // A handler mock running all posted runnables on the single looper thread.
+    private Handler getLooperHandler() {
+        final Map<Runnable, List<ScheduledFuture<?>>> pending = new HashMap<>();
+        final Handler mockHandler = PowerMockito.mock(Handler.class);
+        final Answer<Object> postAnswer = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                final Runnable runnable = (Runnable) invocation.getArguments()[0];
+                final long delayMs = (invocation.getArguments().length > 1) ?
+                        (Long) invocation.getArguments()[1] : 0;
+                synchronized (pending) {
+                    List<ScheduledFuture<?>> futures = pending.get(runnable);
+                    if (futures == null) {
+                        futures = new ArrayList<>();
+                        pending.put(runnable, futures);
+                    }
+                    futures.add(mLooper.schedule(runnable, delayMs, TimeUnit.MILLISECONDS));
+                }
+                return true;
+            }
+        };
+        Mockito.when(mockHandler.post((Runnable) Mockito.anyObject())).thenAnswer(postAnswer);
+        Mockito.when(mockHandler.postDelayed((Runnable) Mockito.anyObject(), Mockito.anyLong()))
+                .thenAnswer(postAnswer);
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                synchronized (pending) {
+                    final List<ScheduledFuture<?>> futures = pending.remove(invocation.getArguments()[0]);
+                    if (futures != null) {
+                        for (ScheduledFuture<?> future : futures) {
+                            future.cancel(false);
+                        }
+                    }
+                }
+                return null;
+            }
+        }).when(mockHandler).removeCallbacks((Runnable) Mockito.anyObject());
+        return mockHandler;
+    }
+}
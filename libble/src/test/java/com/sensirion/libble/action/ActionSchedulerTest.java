@@ -3,6 +3,7 @@ package com.sensirion.libble.action;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.os.Handler;
+import android.support.annotation.NonNull;
 
 import junit.framework.Assert;
 
@@ -12,8 +13,16 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class ActionSchedulerTest {
     private static final String TEST_ADDRESS = "TEST_ADDRESS";
+    private static final String OTHER_TEST_ADDRESS = "OTHER_TEST_ADDRESS";
     private Runnable mPostDelayedRunnable;
 
     // We need to pass some mocks here due to internal calls to the BluetoothGatt in the GattActions.
@@ -70,4 +79,231 @@ public class ActionSchedulerTest {
         Assert.assertTrue(actionScheduler.isEmpty());
     }
 
+    @Test
+    public void confirmExecutesTheNextActionImmediately() throws Exception {
+        final TestAction firstTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        final TestAction secondTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        actionScheduler.schedule(firstTestAction);
+        actionScheduler.schedule(secondTestAction);
+        Assert.assertEquals(1, firstTestAction.executeCount);
+        Assert.assertEquals(0, secondTestAction.executeCount);
+
+        // No handler iteration needed to execute the next action
+        actionScheduler.confirm(TEST_ADDRESS);
+        Assert.assertEquals(1, secondTestAction.executeCount);
+        Assert.assertFalse(actionScheduler.isEmpty());
+
+        actionScheduler.confirm(TEST_ADDRESS);
+        Assert.assertTrue(actionScheduler.isEmpty());
+    }
+
+    @Test
+    public void unsolicitedAnswerDoesNotConfirmOtherAction() throws Exception {
+        final TestAction readAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        final BluetoothGatt mockGatt = getMockGatt();
+        Mockito.when(mockGatt.requestMtu(Mockito.anyInt())).thenReturn(true);
+        final ActionRequestMtu mtuAction = new ActionRequestMtu(mockGatt, 247);
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        actionScheduler.schedule(readAction);
+        actionScheduler.schedule(mtuAction);
+
+        // The device changed the MTU on its own while the read is in flight
+        actionScheduler.confirm(TEST_ADDRESS, ActionRequestMtu.class, BluetoothGatt.GATT_SUCCESS, null);
+        Assert.assertFalse(readAction.getFuture().isDone());
+        Mockito.verify(mockGatt, Mockito.never()).requestMtu(Mockito.anyInt());
+
+        actionScheduler.confirm(TEST_ADDRESS);
+        Assert.assertTrue(readAction.getFuture().isDone());
+        Mockito.verify(mockGatt).requestMtu(247);
+
+        actionScheduler.confirm(TEST_ADDRESS, ActionRequestMtu.class, BluetoothGatt.GATT_SUCCESS, null);
+        Assert.assertTrue(mtuAction.getFuture().isDone());
+        Assert.assertTrue(actionScheduler.isEmpty());
+    }
+
+    @Test
+    public void devicesDoNotBlockEachOther() throws Exception {
+        final CountDownLatch blockedExecutionStarted = new CountDownLatch(1);
+        final CountDownLatch unblockExecution = new CountDownLatch(1);
+        final TestAction blockingTestAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                blockedExecutionStarted.countDown();
+                try {
+                    unblockExecution.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        };
+        final TestAction otherTestAction = new TestAction(getMockGatt(), OTHER_TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        final Thread blockedThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                actionScheduler.schedule(blockingTestAction);
+            }
+        });
+        blockedThread.start();
+        Assert.assertTrue(blockedExecutionStarted.await(1, TimeUnit.SECONDS));
+
+        // While the first device is busy the second one is served on this thread
+        actionScheduler.schedule(otherTestAction);
+        Assert.assertEquals(1, otherTestAction.executeCount);
+        actionScheduler.confirm(OTHER_TEST_ADDRESS);
+
+        // Confirming the busy device is queued and handled once its execution returned
+        actionScheduler.confirm(TEST_ADDRESS);
+        Assert.assertFalse(actionScheduler.isEmpty());
+        unblockExecution.countDown();
+        blockedThread.join(1000);
+        Assert.assertEquals(1, blockingTestAction.executeCount);
+        Assert.assertTrue(actionScheduler.isEmpty());
+    }
+
+    private TestAction getCountingAction(final BluetoothGatt gatt) {
+        return new TestAction(gatt, TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void batchCompletesWithAllResults() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final List<GattAction> actions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            actions.add(getCountingAction(mockGatt));
+        }
+        final BatchCallbackContainer callbackContainer = new BatchCallbackContainer();
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        final ActionBatch batch = actionScheduler.scheduleBatch(mockGatt, actions);
+        batch.setCallback(callbackContainer);
+        for (int i = 0; i < actions.size(); i++) {
+            Assert.assertFalse(batch.isDone());
+            actionScheduler.confirm(TEST_ADDRESS, BluetoothGatt.GATT_SUCCESS, new byte[]{(byte) i});
+        }
+
+        Assert.assertTrue(batch.isSuccessful());
+        Assert.assertEquals(1, callbackContainer.completedCount);
+        Assert.assertEquals(0, callbackContainer.failedCount);
+        for (int i = 0; i < actions.size(); i++) {
+            Assert.assertEquals(i, batch.getResults().get(i)[0]);
+        }
+        Assert.assertTrue(actionScheduler.isEmpty());
+    }
+
+    @Test
+    public void rejectedBatchLeavesNoActionBound() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final TestAction unboundAction = new TestAction(null, TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+        final TestAction foreignAction = new TestAction(getMockGatt(), TEST_ADDRESS) {
+            @Override
+            boolean execute() {
+                executeCount++;
+                return true;
+            }
+        };
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        try {
+            actionScheduler.scheduleBatch(mockGatt, Arrays.<GattAction>asList(unboundAction, foreignAction));
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // The second action belongs to another gatt
+        }
+        try {
+            actionScheduler.scheduleBatch(mockGatt, Arrays.<GattAction>asList(unboundAction, unboundAction));
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // The same action is given twice
+        }
+        Assert.assertTrue(actionScheduler.isEmpty());
+
+        // The first action was neither bound nor attached to the rejected batches
+        final ActionBatch batch = actionScheduler.scheduleBatch(mockGatt,
+                Collections.<GattAction>singletonList(unboundAction));
+        Assert.assertEquals(1, unboundAction.executeCount);
+        actionScheduler.confirm(TEST_ADDRESS);
+        Assert.assertTrue(batch.isSuccessful());
+    }
+
+    @Test
+    public void batchFailsWithTheFirstFailure() throws Exception {
+        final BluetoothGatt mockGatt = getMockGatt();
+        final List<GattAction> actions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            actions.add(getCountingAction(mockGatt));
+        }
+        final BatchCallbackContainer callbackContainer = new BatchCallbackContainer();
+
+        final ActionScheduler actionScheduler = new ActionScheduler(null, getHandlerMock());
+        final ActionBatch batch = actionScheduler.scheduleBatch(mockGatt, actions);
+        batch.setCallback(callbackContainer);
+        actionScheduler.confirm(TEST_ADDRESS, BluetoothGatt.GATT_SUCCESS, new byte[0]);
+        actionScheduler.confirm(TEST_ADDRESS, BluetoothGatt.GATT_FAILURE, null);
+
+        Assert.assertTrue(batch.isDone());
+        Assert.assertFalse(batch.isSuccessful());
+        Assert.assertSame(actions.get(1), batch.getFailedAction());
+        Assert.assertEquals(1, callbackContainer.failedCount);
+        // The rest of the batch is skipped
+        Assert.assertEquals(0, ((TestAction) actions.get(2)).executeCount);
+        Assert.assertTrue(actionScheduler.isEmpty());
+    }
+
+    class BatchCallbackContainer implements BatchCallback {
+        public int completedCount = 0;
+        public int failedCount = 0;
+
+        @Override
+        public void onBatchCompleted(@NonNull ActionBatch batch) {
+            completedCount++;
+        }
+
+        @Override
+        public void onBatchFailed(@NonNull ActionBatch batch, @NonNull GattAction failedAction) {
+            failedCount++;
+        }
+    }
 }
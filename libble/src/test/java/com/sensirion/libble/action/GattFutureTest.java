@@ -0,0 +1,191 @@
+package com.sensirion.libble.action;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class GattFutureTest {
+    private final List<Runnable> mExecutedCommands = new ArrayList<>();
+
+    // Keeps the commands to run them explicitly, like a looper would.
+    private final Executor mQueuingExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            mExecutedCommands.add(command);
+        }
+    };
+
+    private void runExecutedCommands() {
+        while (!mExecutedCommands.isEmpty()) {
+            mExecutedCommands.remove(0).run();
+        }
+    }
+
+    class CallbackContainer implements ActionCallback {
+        public byte[] value;
+        public GattException failure;
+
+        @Override
+        public void onSuccess(@NonNull byte[] value) {
+            this.value = value;
+        }
+
+        @Override
+        public void onFailure(@NonNull GattException failure) {
+            this.failure = failure;
+        }
+    }
+
+    @Test
+    public void callbackRunsOnTheGivenExecutor() throws Exception {
+        final GattFuture future = new GattFuture();
+        final CallbackContainer callback = new CallbackContainer();
+        future.addCallback(callback, mQueuingExecutor);
+
+        future.complete(new byte[]{42}, null);
+        Assert.assertNull(callback.value);
+        runExecutedCommands();
+        Assert.assertEquals(42, callback.value[0]);
+        Assert.assertEquals(42, future.get()[0]);
+    }
+
+    @Test
+    public void callbackAddedToADoneFutureIsNotified() throws Exception {
+        final GattFuture future = GattFuture.failed(new GattException(GattException.Reason.TIMEOUT));
+        final CallbackContainer callback = new CallbackContainer();
+        future.addCallback(callback, mQueuingExecutor);
+        runExecutedCommands();
+        Assert.assertEquals(GattException.Reason.TIMEOUT, callback.failure.getReason());
+    }
+
+    @Test
+    public void getThrowsTheTypedFailure() throws Exception {
+        final GattFuture future = new GattFuture();
+        future.complete(null, new GattException(GattException.Reason.STATUS, BluetoothGatt.GATT_READ_NOT_PERMITTED));
+        try {
+            future.get();
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            final GattException failure = (GattException) e.getCause();
+            Assert.assertEquals(GattException.Reason.STATUS, failure.getReason());
+            Assert.assertEquals(BluetoothGatt.GATT_READ_NOT_PERMITTED, failure.getStatus());
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        new GattFuture().get(1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelledFutureIsNotCompletedAnymore() throws Exception {
+        final GattFuture future = new GattFuture();
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertFalse(future.complete(new byte[0], null));
+        Assert.assertTrue(future.isCancelled());
+        future.get();
+    }
+
+    @Test
+    public void thenChainsDependentActions() throws Exception {
+        final GattFuture first = new GattFuture();
+        final GattFuture second = new GattFuture();
+        final List<Byte> passedValues = new ArrayList<>();
+        final GattFuture chained = first.then(new GattFuture.Continuation() {
+            @NonNull
+            @Override
+            public GattFuture then(@NonNull byte[] value) {
+                passedValues.add(value[0]);
+                return second;
+            }
+        }, mQueuingExecutor);
+
+        first.complete(new byte[]{1}, null);
+        runExecutedCommands();
+        Assert.assertEquals(1, passedValues.size());
+        Assert.assertEquals(1, (byte) passedValues.get(0));
+        Assert.assertFalse(chained.isDone());
+
+        second.complete(new byte[]{2}, null);
+        Assert.assertEquals(2, chained.get()[0]);
+    }
+
+    @Test
+    public void thenPassesOnFailures() throws Exception {
+        final GattFuture first = new GattFuture();
+        final List<Byte> passedValues = new ArrayList<>();
+        final GattFuture chained = first.then(new GattFuture.Continuation() {
+            @NonNull
+            @Override
+            public GattFuture then(@NonNull byte[] value) {
+                passedValues.add(value[0]);
+                return new GattFuture();
+            }
+        }, mQueuingExecutor);
+
+        first.complete(null, new GattException(GattException.Reason.DISCONNECTED));
+        runExecutedCommands();
+        Assert.assertTrue(passedValues.isEmpty());
+        final CallbackContainer callback = new CallbackContainer();
+        chained.addCallback(callback, mQueuingExecutor);
+        runExecutedCommands();
+        Assert.assertEquals(GattException.Reason.DISCONNECTED, callback.failure.getReason());
+    }
+
+    @Test
+    public void failingCallbackDoesNotSkipTheOthers() throws Exception {
+        final Executor directExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        };
+        final GattFuture future = new GattFuture();
+        future.addCallback(new ActionCallback() {
+            @Override
+            public void onSuccess(@NonNull byte[] value) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void onFailure(@NonNull GattException failure) {
+            }
+        }, directExecutor);
+        final CallbackContainer callback = new CallbackContainer();
+        future.addCallback(callback, directExecutor);
+
+        Assert.assertTrue(future.complete(new byte[]{3}, null));
+        Assert.assertEquals(3, callback.value[0]);
+    }
+
+    @Test
+    public void thenFailsIfTheContinuationReturnsNoFuture() throws Exception {
+        final GattFuture first = new GattFuture();
+        final GattFuture chained = first.then(new GattFuture.Continuation() {
+            @NonNull
+            @Override
+            @SuppressWarnings("ConstantConditions")
+            public GattFuture then(@NonNull byte[] value) {
+                return null;
+            }
+        }, mQueuingExecutor);
+
+        first.complete(new byte[]{1}, null);
+        runExecutedCommands();
+        final CallbackContainer callback = new CallbackContainer();
+        chained.addCallback(callback, mQueuingExecutor);
+        runExecutedCommands();
+        Assert.assertEquals(GattException.Reason.UNAVAILABLE, callback.failure.getReason());
+    }
+}
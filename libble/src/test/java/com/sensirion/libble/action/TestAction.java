@@ -6,8 +6,10 @@ public abstract class TestAction extends GattAction {
     public int executeCount = 0;
     private String mDeviceAddress;
 
+    static final long DEFAULT_TIMEOUT_MS = 1;
+
     TestAction(BluetoothGatt gatt, final String deviceAddress) {
-        super(gatt);
+        super(gatt, DEFAULT_TIMEOUT_MS);
         mDeviceAddress = deviceAddress;
     }
 
@@ -0,0 +1,25 @@
+package com.sensirion.libsmartgadget;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Date;
+
+/**
+ * Decodes the sensor values a gadget broadcasts in the manufacturer specific data of its
+ * advertisements, which makes them available without connecting to the gadget. Register a decoder
+ * for the company identifier of your gadgets using
+ * {@link GadgetManager#registerAdvertisementDecoder(int, AdvertisementDecoder)}.
+ */
+public interface AdvertisementDecoder {
+    /**
+     * Decodes the values carried in an advertisement. Called on the main thread for every
+     * advertisement received during a discovery, keep it fast.
+     *
+     * @param manufacturerData The manufacturer specific data, without the company identifier.
+     * @param timestamp        The time the advertisement was received.
+     * @return the values or null if the data does not contain values known to this decoder.
+     */
+    @Nullable
+    GadgetValue[] decode(@NonNull byte[] manufacturerData, @NonNull Date timestamp);
+}
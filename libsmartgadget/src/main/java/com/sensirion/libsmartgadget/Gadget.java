@@ -3,6 +3,7 @@ package com.sensirion.libsmartgadget;
 import android.support.annotation.NonNull;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * The interface all Gadget Objects have to implement providing each Gadget's basic functionality.
@@ -53,6 +54,17 @@ public interface Gadget {
      */
     void addListener(@NonNull GadgetListener callback);
 
+    /**
+     * Register a {@link GadgetListener} receiving the Gadget related state changes on the given
+     * executor. Every listener gets its own queue: the callbacks of a listener are delivered in
+     * order and one at a time, even on a thread pool, and a slow listener does not delay the
+     * others. Registering the same listener again has no effect.
+     *
+     * @param callback the callback instance implementing {@link GadgetListener}.
+     * @param executor the executor the callbacks are run on.
+     */
+    void addListener(@NonNull GadgetListener callback, @NonNull Executor executor);
+
     /**
      * Unregister a {@link GadgetListener} on which Gadget related state changes are received.
      *
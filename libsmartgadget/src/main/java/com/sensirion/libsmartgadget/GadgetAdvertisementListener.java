@@ -0,0 +1,15 @@
+package com.sensirion.libsmartgadget;
+
+import android.support.annotation.NonNull;
+
+public interface GadgetAdvertisementListener {
+    /**
+     * Callback reporting the values a gadget broadcasts in its advertisements, decoded by the
+     * {@link AdvertisementDecoder} registered for its company identifier. The gadget does not need
+     * to be connected.
+     *
+     * @param gadget The gadget the values were advertised by.
+     * @param values The values decoded from the advertisement.
+     */
+    void onGadgetValuesAdvertised(@NonNull Gadget gadget, @NonNull GadgetValue[] values);
+}
@@ -0,0 +1,27 @@
+package com.sensirion.libsmartgadget;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A {@link GadgetListener} receiving the live values of the notification services as primitives,
+ * one call per value, instead of a new {@link GadgetValue} array per notification. Listeners
+ * registered without an executor receive the values without any allocation, hence this is the
+ * listener of choice for high notification rates; values notified together (e.g. temperature and
+ * humidity) are reported in consecutive calls with the same timestamp.
+ * <p/>
+ * The other services (e.g. the battery level) still report through
+ * {@link GadgetListener#onGadgetValuesReceived(Gadget, GadgetService, GadgetValue[])}.
+ */
+public interface GadgetLiveValueListener extends GadgetListener {
+    /**
+     * Callback reporting a live value received from the given {@link GadgetService}.
+     *
+     * @param gadget      The gadget the value was sent from.
+     * @param service     The dedicated service.
+     * @param timestampMs The time the value was received in milliseconds since the epoch.
+     * @param value       The received value.
+     * @param unit        The unit of the value.
+     */
+    void onGadgetLiveValueReceived(@NonNull Gadget gadget, @NonNull GadgetService service,
+                                   long timestampMs, float value, @NonNull String unit);
+}
@@ -0,0 +1,16 @@
+package com.sensirion.libsmartgadget;
+
+/**
+ * A {@link GadgetManagerCallback} also notified about gadgets which stopped advertising. Only
+ * callbacks implementing this interface get {@link #onGadgetLost(Gadget)}.
+ */
+public interface GadgetLostCallback extends GadgetManagerCallback {
+    /**
+     * Called if a gadget stopped advertising during a continuous discovery started with a
+     * {@code CALLBACK_TYPE_MATCH_LOST} callback type (see
+     * {@link GadgetManager#startContinuousGadgetDiscovery}).
+     *
+     * @param gadget The {@link Gadget} instance reported as discovered before.
+     */
+    void onGadgetLost(final Gadget gadget);
+}
@@ -2,6 +2,11 @@ package com.sensirion.libsmartgadget;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sensirion.libble.BleScanSettings;
+
+import java.util.concurrent.Executor;
 
 /**
  * The GadgetManager is the main interface to interact with Sensirion Smart Gadgets. It provides
@@ -21,6 +26,24 @@ public interface GadgetManager {
      */
     void initialize(@NonNull final Context applicationContext);
 
+    /**
+     * Registers a further {@link GadgetManagerCallback} receiving the callbacks on the given
+     * executor, in addition to the callback the manager was created with. Every callback gets its
+     * own queue: its methods are called in order and one at a time, and a slow callback does not
+     * delay the others. Registering the same callback again has no effect.
+     *
+     * @param callback The callback to register.
+     * @param executor The executor the callback is run on.
+     */
+    void addCallback(@NonNull final GadgetManagerCallback callback, @NonNull final Executor executor);
+
+    /**
+     * Unregisters a callback registered with {@link #addCallback(GadgetManagerCallback, Executor)}.
+     *
+     * @param callback The callback to unregister.
+     */
+    void removeCallback(@NonNull final GadgetManagerCallback callback);
+
     /**
      * After the GadgetManager has been initialized, you can register/add your own GadgetServices
      * and let the library handle the detection and decoding using your GadgetService class.
@@ -31,6 +54,25 @@ public interface GadgetManager {
     void registerCustomGadgetService(@NonNull final String serviceUuid,
                                      @NonNull final Class<? extends GadgetService> serviceClass);
 
+    /**
+     * Registers a decoder for the sensor values gadgets broadcast in the manufacturer specific
+     * data of their advertisements. The advertisements of the Sensirion Smart Gadgets are decoded
+     * by default. Replaces the decoder registered for the same company identifier.
+     *
+     * @param companyId The Bluetooth SIG company identifier of the manufacturer specific data.
+     * @param decoder   The decoder of the data.
+     */
+    void registerAdvertisementDecoder(final int companyId, @NonNull final AdvertisementDecoder decoder);
+
+    /**
+     * Sets the listener receiving the values decoded from the advertisements of the gadgets found
+     * during a discovery. No connection is needed, hence a single discovery can monitor any number
+     * of gadgets.
+     *
+     * @param listener The listener or null to stop decoding advertisements.
+     */
+    void setAdvertisementListener(@Nullable final GadgetAdvertisementListener listener);
+
     /**
      * Call this method if you don't plan to use the library anymore. This makes sure all resources
      * of the library are properly freed.
@@ -59,8 +101,32 @@ public interface GadgetManager {
     boolean startGadgetDiscovery(final long durationMs, final String[] advertisedNameFilter,
                                  String[] advertisedServiceUuidFilter);
 
+    /**
+     * Starts a scan for Sensirion Smart Gadgets running until {@link #stopGadgetDiscovery()} is
+     * called. Use a low power scan mode and batched results (see {@link BleScanSettings}) to keep
+     * discovering for hours at low battery cost. Gadgets which stopped advertising are reported to
+     * the callbacks implementing {@link GadgetLostCallback}.
+     *
+     * @param settings                    The scan mode, callback type and reporting of the scan.
+     * @param advertisedNameFilter        An Array of advertised gadget names to only deliver results for.
+     *                                    Provide null or an empty array to discover all gadgets in range.
+     * @param advertisedServiceUuidFilter An Array of advertised service UUIDs to also deliver results for.
+     * @return true if the scan was successfully initiated.
+     */
+    boolean startContinuousGadgetDiscovery(@NonNull final BleScanSettings settings,
+                                           final String[] advertisedNameFilter,
+                                           final String[] advertisedServiceUuidFilter);
+
     /**
      * Stops an ongoing scan for Smart Gadgets. Nothing happens if there is no scan running.
      */
     void stopGadgetDiscovery();
+
+    /**
+     * Sets how often updates of gadgets discovered already (e.g. a new signal strength) are
+     * reported, one second by default. Newly discovered gadgets are reported immediately.
+     *
+     * @param intervalMs The interval in milliseconds.
+     */
+    void setDiscoveryUpdateInterval(final long intervalMs);
 }
@@ -22,7 +22,9 @@ public interface GadgetManagerCallback {
 
     /**
      * Callback to report found gadgets after the {@link GadgetManager#startGadgetDiscovery(long)}
-     * was called.
+     * was called. A gadget is reported as soon as it is found, further advertisements of the same
+     * gadget are reported with the same instance at most once per update interval (see
+     * {@link GadgetManager#setDiscoveryUpdateInterval(long)}).
      *
      * @param gadget The discovered {@link Gadget} instance.
      * @param rssi   The received signal strength of the gadget.
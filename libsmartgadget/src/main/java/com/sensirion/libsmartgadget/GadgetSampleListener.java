@@ -0,0 +1,25 @@
+package com.sensirion.libsmartgadget;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A {@link GadgetListener} receiving downloaded data as {@link SampleBatch} instead of one
+ * {@link GadgetValue} per sample. Listeners implementing this interface get
+ * {@link #onGadgetDownloadSamplesReceived(Gadget, GadgetDownloadService, SampleBatch, int)}
+ * instead of {@link GadgetListener#onGadgetDownloadDataReceived(Gadget, GadgetDownloadService,
+ * GadgetValue[], int)} for the services delivering batches.
+ */
+public interface GadgetSampleListener extends GadgetListener {
+    /**
+     * Callback reporting that there were new samples downloaded from the given
+     * {@link GadgetDownloadService}.
+     *
+     * @param gadget   The gadgets from which the samples are coming from.
+     * @param service  The dedicated download service.
+     * @param samples  the received samples, do not modify them.
+     * @param progress the delivery progress in percent
+     */
+    void onGadgetDownloadSamplesReceived(@NonNull Gadget gadget,
+                                         @NonNull GadgetDownloadService service,
+                                         @NonNull SampleBatch samples, int progress);
+}
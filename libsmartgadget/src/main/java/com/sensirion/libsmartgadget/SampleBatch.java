@@ -0,0 +1,160 @@
+package com.sensirion.libsmartgadget;
+
+import android.support.annotation.NonNull;
+
+import java.util.Date;
+
+/**
+ * A batch of samples stored in primitive columns instead of one {@link GadgetValue} per sample,
+ * as delivered by downloads to a {@link GadgetSampleListener}. Every sample has a timestamp, a
+ * value and a channel; the channels identify the unit of the sample, e.g. temperature and
+ * humidity of a download containing both.
+ * <p/>
+ * The batch must not be modified once it is delivered, the listeners might read it concurrently.
+ */
+public class SampleBatch {
+    private final String[] mChannelUnits;
+    private final long[] mTimestampsMs;
+    private final float[] mValues;
+    private final byte[] mChannels;
+    private int mSize;
+    private GadgetValue[] mGadgetValues;
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param channelUnits The units of the channels, indexed by the channel.
+     * @param capacity     The number of samples the batch can hold.
+     */
+    public SampleBatch(@NonNull final String[] channelUnits, final int capacity) {
+        if (channelUnits.length == 0 || channelUnits.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("A batch needs 1 to 127 channels");
+        }
+        mChannelUnits = channelUnits.clone();
+        mTimestampsMs = new long[capacity];
+        mValues = new float[capacity];
+        mChannels = new byte[capacity];
+    }
+
+    /**
+     * Appends a sample, to be called by the service filling the batch before it is delivered.
+     *
+     * @param timestampMs The time the sample was taken in milliseconds since the epoch.
+     * @param value       The value of the sample.
+     * @param channel     The channel of the sample, see {@link #getChannelUnit(int)}.
+     */
+    public void add(final long timestampMs, final float value, final int channel) {
+        if (mSize == mValues.length) {
+            throw new IllegalStateException("The batch is full");
+        }
+        if (channel < 0 || channel >= mChannelUnits.length) {
+            throw new IllegalArgumentException("Unknown channel " + channel);
+        }
+        mTimestampsMs[mSize] = timestampMs;
+        mValues[mSize] = value;
+        mChannels[mSize] = (byte) channel;
+        mSize++;
+    }
+
+    /**
+     * @return the number of samples in the batch.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the time the sample was taken in milliseconds since the epoch.
+     */
+    public long getTimestamp(final int index) {
+        checkIndex(index);
+        return mTimestampsMs[index];
+    }
+
+    public float getValue(final int index) {
+        checkIndex(index);
+        return mValues[index];
+    }
+
+    /**
+     * @return the channel of the sample, an index of the units returned by
+     * {@link #getChannelUnit(int)}.
+     */
+    public int getChannel(final int index) {
+        checkIndex(index);
+        return mChannels[index];
+    }
+
+    /**
+     * @return the number of channels of the batch.
+     */
+    public int getChannelCount() {
+        return mChannelUnits.length;
+    }
+
+    @NonNull
+    public String getChannelUnit(final int channel) {
+        return mChannelUnits[channel];
+    }
+
+    @NonNull
+    public String getUnit(final int index) {
+        return mChannelUnits[getChannel(index)];
+    }
+
+    /**
+     * Adapts the batch to the {@link GadgetValue} based callbacks. The values are created once and
+     * shared by every caller.
+     *
+     * @return the samples in the order they were added.
+     */
+    @NonNull
+    public synchronized GadgetValue[] toGadgetValues() {
+        if (mGadgetValues == null || mGadgetValues.length != mSize) {
+            final GadgetValue[] values = new GadgetValue[mSize];
+            for (int i = 0; i < mSize; i++) {
+                values[i] = new SampleValue(new Date(mTimestampsMs[i]), mValues[i],
+                        mChannelUnits[mChannels[i]]);
+            }
+            mGadgetValues = values;
+        }
+        return mGadgetValues;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+
+    private static class SampleValue implements GadgetValue {
+        private final Date mTimestamp;
+        private final Number mValue;
+        private final String mUnit;
+
+        SampleValue(@NonNull final Date timestamp, @NonNull final Number value,
+                    @NonNull final String unit) {
+            mTimestamp = timestamp;
+            mValue = value;
+            mUnit = unit;
+        }
+
+        @NonNull
+        @Override
+        public Date getTimestamp() {
+            return mTimestamp;
+        }
+
+        @NonNull
+        @Override
+        public Number getValue() {
+            return mValue;
+        }
+
+        @NonNull
+        @Override
+        public String getUnit() {
+            return mUnit;
+        }
+    }
+}
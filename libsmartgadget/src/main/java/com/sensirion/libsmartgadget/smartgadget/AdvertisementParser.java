@@ -0,0 +1,65 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.bluetooth.le.ScanRecord;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.sensirion.libsmartgadget.AdvertisementDecoder;
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import java.util.Date;
+
+/**
+ * Keeps the {@link AdvertisementDecoder}s by the company identifier of the manufacturer specific
+ * data they decode, like the {@link GadgetServiceFactory} keeps the services by their UUID.
+ */
+class AdvertisementParser {
+    private final SparseArray<AdvertisementDecoder> mDecoderRepository;
+
+    public AdvertisementParser() {
+        mDecoderRepository = new SparseArray<>();
+
+        registerSmartGadgetDecoders();
+    }
+
+    public synchronized void registerDecoder(final int companyId,
+                                             @NonNull final AdvertisementDecoder decoder) {
+        mDecoderRepository.put(companyId, decoder);
+    }
+
+    /**
+     * Decodes the manufacturer specific data of the advertisement with the first decoder
+     * registered for one of its company identifiers.
+     *
+     * @param scanRecord The advertisement and scan response of a device.
+     * @param timestamp  The time the advertisement was received.
+     * @return the values or null if the advertisement does not carry known values.
+     */
+    @Nullable
+    public synchronized GadgetValue[] parse(@Nullable final ScanRecord scanRecord,
+                                            @NonNull final Date timestamp) {
+        if (scanRecord == null) {
+            return null;
+        }
+        final SparseArray<byte[]> manufacturerData = scanRecord.getManufacturerSpecificData();
+        if (manufacturerData == null) {
+            return null;
+        }
+        for (int i = 0; i < manufacturerData.size(); i++) {
+            final AdvertisementDecoder decoder = mDecoderRepository.get(manufacturerData.keyAt(i));
+            if (decoder == null) {
+                continue;
+            }
+            final GadgetValue[] values = decoder.decode(manufacturerData.valueAt(i), timestamp);
+            if (values != null) {
+                return values;
+            }
+        }
+        return null;
+    }
+
+    private void registerSmartGadgetDecoders() {
+        registerDecoder(SensirionAdvertisementDecoder.COMPANY_ID, new SensirionAdvertisementDecoder());
+    }
+}
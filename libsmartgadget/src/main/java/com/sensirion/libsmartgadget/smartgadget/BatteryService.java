@@ -36,8 +36,8 @@ public class BatteryService extends SmartGadgetNotificationService {
      * {@inheritDoc}
      */
     @Override
-    public void onDataReceived(final String characteristicUuid, final byte[] rawData) {
-        if (isUuidSupported(characteristicUuid)) {
+    public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        if (isUuidSupported(characteristicId)) {
             final int batteryLevel = (int) rawData[0];
             mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), batteryLevel, UNIT)};
             mServiceListener.onGadgetValuesReceived(this, mLastValues);
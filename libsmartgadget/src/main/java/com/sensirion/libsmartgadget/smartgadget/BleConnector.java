@@ -4,6 +4,9 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sensirion.libble.action.ActionPriority;
 
 import java.util.List;
 import java.util.Map;
@@ -21,11 +24,27 @@ public interface BleConnector {
     Map<String, BluetoothGattCharacteristic> getCharacteristics(@NonNull final String deviceAddress,
                                                                 final List<String> uuids);
 
+    @Nullable
+    BluetoothGattCharacteristic getCharacteristic(@NonNull final String deviceAddress,
+                                                  @NonNull final String characteristicUuid);
+
+    @Nullable
+    BluetoothGattDescriptor getDescriptor(@NonNull final String deviceAddress,
+                                          @NonNull final String characteristicUuid,
+                                          @NonNull final String descriptorUuid);
+
     void readCharacteristic(@NonNull final String deviceAddress, final String characteristicUuid);
 
+    void readCharacteristic(@NonNull final String deviceAddress, final String characteristicUuid,
+                            @NonNull final ActionPriority priority);
+
     void writeCharacteristic(@NonNull final String deviceAddress,
                              final BluetoothGattCharacteristic characteristic);
 
+    boolean acquireHighConnectionPriority(@NonNull final String deviceAddress);
+
+    void releaseHighConnectionPriority(@NonNull final String deviceAddress);
+
     void setCharacteristicNotification(@NonNull final String deviceAddress,
                                        final BluetoothGattCharacteristic characteristic,
                                        final BluetoothGattDescriptor descriptor,
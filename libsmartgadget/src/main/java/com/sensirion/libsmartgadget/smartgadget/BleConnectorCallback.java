@@ -1,11 +1,14 @@
 package com.sensirion.libsmartgadget.smartgadget;
 
+/**
+ * Characteristics are identified by the id assigned by the {@link com.sensirion.libble.UuidRegistry}.
+ */
 public interface BleConnectorCallback {
     void onConnectionStateChanged(boolean connected);
 
-    void onDataReceived(final String characteristicUuid, final byte[] rawData);
+    void onDataReceived(final int characteristicId, final byte[] rawData);
 
-    void onDataWritten(final String characteristicUuid);
+    void onDataWritten(final int characteristicId);
 
-    void onFail(final String characteristicUuid, byte[] data, final boolean isWriteFailure);
+    void onFail(final int characteristicId, byte[] data, final boolean isWriteFailure);
 }
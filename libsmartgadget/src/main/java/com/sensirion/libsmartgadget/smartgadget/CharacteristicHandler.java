@@ -0,0 +1,19 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import java.util.BitSet;
+
+/**
+ * A {@link BleConnectorCallback} declaring the characteristics it handles. The {@link SmartGadget}
+ * routes the data of a characteristic only to its handlers, callbacks not declaring their
+ * characteristics receive the data of every characteristic.
+ */
+interface CharacteristicHandler extends BleConnectorCallback {
+    /**
+     * @return the ids assigned by the {@link com.sensirion.libble.UuidRegistry} to the
+     * characteristics and descriptors handled. Must not change once the service is created.
+     */
+    @NonNull
+    BitSet getHandledCharacteristicIds();
+}
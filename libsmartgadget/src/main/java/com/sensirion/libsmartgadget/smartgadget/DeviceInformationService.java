@@ -2,13 +2,13 @@ package com.sensirion.libsmartgadget.smartgadget;
 
 import android.support.annotation.NonNull;
 
+import com.sensirion.libble.UuidRegistry;
 import com.sensirion.libsmartgadget.GadgetService;
 import com.sensirion.libsmartgadget.GadgetValue;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
 
-public class DeviceInformationService implements GadgetService, BleConnectorCallback {
+public class DeviceInformationService implements GadgetService, CharacteristicHandler {
     public static final String SERVICE_UUID = "0000180a-0000-1000-8000-00805f9b34fb";
 
     private static final String MANUFACTURER_NAME_CHARACTERISTIC_UUID = "00002a29-0000-1000-8000-00805f9b34fb";
@@ -18,6 +18,13 @@ public class DeviceInformationService implements GadgetService, BleConnectorCall
     private static final String FIRMWARE_REVISION_CHARACTERISTIC_UUID = "00002a26-0000-1000-8000-00805f9b34fb";
     private static final String SOFTWARE_REVISION_CHARACTERISTIC_UUID = "00002a28-0000-1000-8000-00805f9b34fb";
 
+    private static final int MANUFACTURER_NAME_CHARACTERISTIC_ID = UuidRegistry.getId(MANUFACTURER_NAME_CHARACTERISTIC_UUID);
+    private static final int MODEL_NUMBER_CHARACTERISTIC_ID = UuidRegistry.getId(MODEL_NUMBER_CHARACTERISTIC_UUID);
+    private static final int SERIAL_NUMBER_CHARACTERISTIC_ID = UuidRegistry.getId(SERIAL_NUMBER_CHARACTERISTIC_UUID);
+    private static final int HARDWARE_REVISION_CHARACTERISTIC_ID = UuidRegistry.getId(HARDWARE_REVISION_CHARACTERISTIC_UUID);
+    private static final int FIRMWARE_REVISION_CHARACTERISTIC_ID = UuidRegistry.getId(FIRMWARE_REVISION_CHARACTERISTIC_UUID);
+    private static final int SOFTWARE_REVISION_CHARACTERISTIC_ID = UuidRegistry.getId(SOFTWARE_REVISION_CHARACTERISTIC_UUID);
+
     public static final String UNIT = "";
     public static final String UNKNOWN = "UNKNOWN";
 
@@ -25,7 +32,7 @@ public class DeviceInformationService implements GadgetService, BleConnectorCall
     private final BleConnector mBleConnector;
     private final String mDeviceAddress;
 
-    private final Set<String> mSupportedUuids;
+    private final BitSet mSupportedIds;
     private GadgetValue[] mLastValues;
 
     private String mManufacturerName = UNKNOWN;
@@ -43,14 +50,14 @@ public class DeviceInformationService implements GadgetService, BleConnectorCall
         mServiceListener = serviceListener;
         mLastValues = new GadgetValue[0];
 
-        mSupportedUuids = new HashSet<>();
-        mSupportedUuids.add(SERVICE_UUID);
-        mSupportedUuids.add(MANUFACTURER_NAME_CHARACTERISTIC_UUID);
-        mSupportedUuids.add(MODEL_NUMBER_CHARACTERISTIC_UUID);
-        mSupportedUuids.add(SERIAL_NUMBER_CHARACTERISTIC_UUID);
-        mSupportedUuids.add(HARDWARE_REVISION_CHARACTERISTIC_UUID);
-        mSupportedUuids.add(FIRMWARE_REVISION_CHARACTERISTIC_UUID);
-        mSupportedUuids.add(SOFTWARE_REVISION_CHARACTERISTIC_UUID);
+        mSupportedIds = new BitSet();
+        mSupportedIds.set(UuidRegistry.getId(SERVICE_UUID));
+        mSupportedIds.set(MANUFACTURER_NAME_CHARACTERISTIC_ID);
+        mSupportedIds.set(MODEL_NUMBER_CHARACTERISTIC_ID);
+        mSupportedIds.set(SERIAL_NUMBER_CHARACTERISTIC_ID);
+        mSupportedIds.set(HARDWARE_REVISION_CHARACTERISTIC_ID);
+        mSupportedIds.set(FIRMWARE_REVISION_CHARACTERISTIC_ID);
+        mSupportedIds.set(SOFTWARE_REVISION_CHARACTERISTIC_ID);
     }
 
     /**
@@ -146,6 +153,12 @@ public class DeviceInformationService implements GadgetService, BleConnectorCall
         return mLastValues;
     }
 
+    @NonNull
+    @Override
+    public BitSet getHandledCharacteristicIds() {
+        return (BitSet) mSupportedIds.clone();
+    }
+
     @Override
     public void onConnectionStateChanged(final boolean connected) {
         if (connected) {
@@ -154,47 +167,41 @@ public class DeviceInformationService implements GadgetService, BleConnectorCall
     }
 
     @Override
-    public void onDataReceived(final String characteristicUuid, final byte[] rawData) {
-        if (isUuidSupported(characteristicUuid)) {
+    public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        if (isUuidSupported(characteristicId)) {
             final String readString = new String(rawData);
-            switch (characteristicUuid) {
-                case MANUFACTURER_NAME_CHARACTERISTIC_UUID:
-                    mManufacturerName = readString;
-                    break;
-                case MODEL_NUMBER_CHARACTERISTIC_UUID:
-                    mModelNumber = readString;
-                    break;
-                case SERIAL_NUMBER_CHARACTERISTIC_UUID:
-                    mSerialNumber = readString;
-                    break;
-                case HARDWARE_REVISION_CHARACTERISTIC_UUID:
-                    mHardwareRevision = readString;
-                    break;
-                case FIRMWARE_REVISION_CHARACTERISTIC_UUID:
-                    mFirmwareRevision = readString;
-                    break;
-                case SOFTWARE_REVISION_CHARACTERISTIC_UUID:
-                    mSoftwareRevision = readString;
-                    break;
+            if (characteristicId == MANUFACTURER_NAME_CHARACTERISTIC_ID) {
+                mManufacturerName = readString;
+            } else if (characteristicId == MODEL_NUMBER_CHARACTERISTIC_ID) {
+                mModelNumber = readString;
+            } else if (characteristicId == SERIAL_NUMBER_CHARACTERISTIC_ID) {
+                mSerialNumber = readString;
+            } else if (characteristicId == HARDWARE_REVISION_CHARACTERISTIC_ID) {
+                mHardwareRevision = readString;
+            } else if (characteristicId == FIRMWARE_REVISION_CHARACTERISTIC_ID) {
+                mFirmwareRevision = readString;
+            } else if (characteristicId == SOFTWARE_REVISION_CHARACTERISTIC_ID) {
+                mSoftwareRevision = readString;
             }
         }
     }
 
     @Override
-    public void onDataWritten(final String characteristicUuid) {
+    public void onDataWritten(final int characteristicId) {
         // ignore ... no characteristic written in this service
     }
 
     // TODO: Think about limiting the retries
     @Override
-    public void onFail(final String characteristicUuid, final byte[] data,
+    public void onFail(final int characteristicId, final byte[] data,
                        final boolean wasWriting) {
-        if (isUuidSupported(characteristicUuid) && !wasWriting) {
+        if (isUuidSupported(characteristicId) && !wasWriting) {
+            final String characteristicUuid = UuidRegistry.getUuid(characteristicId).toString();
             mBleConnector.readCharacteristic(mDeviceAddress, characteristicUuid);  // Try again
         }
     }
 
-    private boolean isUuidSupported(final String characteristicUuid) {
-        return mSupportedUuids.contains(characteristicUuid);
+    private boolean isUuidSupported(final int characteristicId) {
+        return mSupportedIds.get(characteristicId);
     }
 }
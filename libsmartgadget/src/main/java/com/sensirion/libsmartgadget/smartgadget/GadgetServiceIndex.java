@@ -0,0 +1,133 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import com.sensirion.libsmartgadget.GadgetService;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of the services of a connected gadget. It routes the data of a characteristic to
+ * the callbacks handling it and lists the services by type, both without iterating every service
+ * or taking a lock. A new index is built whenever the services change.
+ */
+class GadgetServiceIndex {
+    private static final BleConnectorCallback[] NO_CALLBACKS = new BleConnectorCallback[0];
+
+    static final GadgetServiceIndex EMPTY = new GadgetServiceIndex(new ArrayList<GadgetService>());
+
+    private final List<GadgetService> mServices;
+    private final BleConnectorCallback[] mCallbacks;
+    // The handlers by characteristic id, each followed by the callbacks receiving everything
+    private final BleConnectorCallback[][] mCallbacksById;
+    private final BleConnectorCallback[] mUnroutedCallbacks;
+    private final Map<Class<?>, List<GadgetService>> mServicesByType;
+
+    GadgetServiceIndex(@NonNull final List<GadgetService> services) {
+        mServices = Collections.unmodifiableList(new ArrayList<>(services));
+
+        final List<BleConnectorCallback> callbacks = new ArrayList<>();
+        final List<BleConnectorCallback> unroutedCallbacks = new ArrayList<>();
+        final List<List<BleConnectorCallback>> callbacksById = new ArrayList<>();
+        final Map<Class<?>, List<GadgetService>> servicesByType = new HashMap<>();
+        for (final GadgetService service : mServices) {
+            indexType(servicesByType, service.getClass(), service);
+            if (!(service instanceof BleConnectorCallback)) {
+                continue;
+            }
+            final BleConnectorCallback callback = (BleConnectorCallback) service;
+            callbacks.add(callback);
+            if (!(service instanceof CharacteristicHandler)) {
+                unroutedCallbacks.add(callback);
+                continue;
+            }
+            final BitSet ids = ((CharacteristicHandler) service).getHandledCharacteristicIds();
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                while (callbacksById.size() <= id) {
+                    callbacksById.add(null);
+                }
+                if (callbacksById.get(id) == null) {
+                    callbacksById.set(id, new ArrayList<BleConnectorCallback>());
+                }
+                callbacksById.get(id).add(callback);
+            }
+        }
+
+        mCallbacks = callbacks.toArray(NO_CALLBACKS);
+        mUnroutedCallbacks = unroutedCallbacks.toArray(NO_CALLBACKS);
+        mCallbacksById = new BleConnectorCallback[callbacksById.size()][];
+        for (int id = 0; id < mCallbacksById.length; id++) {
+            final List<BleConnectorCallback> handlers = callbacksById.get(id);
+            if (handlers != null) {
+                handlers.addAll(unroutedCallbacks);
+                mCallbacksById[id] = handlers.toArray(NO_CALLBACKS);
+            }
+        }
+        for (final Map.Entry<Class<?>, List<GadgetService>> entry : servicesByType.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        mServicesByType = servicesByType;
+    }
+
+    // Indexes the service under its class and every superclass and interface of it
+    private static void indexType(@NonNull final Map<Class<?>, List<GadgetService>> servicesByType,
+                                  final Class<?> type, @NonNull final GadgetService service) {
+        if (type == null || type == Object.class) {
+            return;
+        }
+        List<GadgetService> services = servicesByType.get(type);
+        if (services == null) {
+            services = new ArrayList<>();
+            servicesByType.put(type, services);
+        }
+        if (!services.isEmpty() && services.get(services.size() - 1) == service) {
+            return; // Interface reached on several paths
+        }
+        services.add(service);
+        indexType(servicesByType, type.getSuperclass(), service);
+        for (final Class<?> implemented : type.getInterfaces()) {
+            indexType(servicesByType, implemented, service);
+        }
+    }
+
+    @NonNull
+    List<GadgetService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @return the services being an instance of the given type, in the order of creation.
+     */
+    @NonNull
+    List<GadgetService> getServicesOfType(@NonNull final Class<?> type) {
+        final List<GadgetService> services = mServicesByType.get(type);
+        return (services == null) ? Collections.<GadgetService>emptyList() : services;
+    }
+
+    /**
+     * @return all callbacks of the services.
+     */
+    @NonNull
+    BleConnectorCallback[] getCallbacks() {
+        return mCallbacks;
+    }
+
+    /**
+     * @return the callbacks interested in the given characteristic. Do not modify the array.
+     */
+    @NonNull
+    BleConnectorCallback[] getCallbacks(final int characteristicId) {
+        if (characteristicId >= 0 && characteristicId < mCallbacksById.length) {
+            final BleConnectorCallback[] callbacks = mCallbacksById[characteristicId];
+            if (callbacks != null) {
+                return callbacks;
+            }
+        }
+        return mUnroutedCallbacks;
+    }
+}
@@ -0,0 +1,117 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Copy-on-write registry of listeners, the events are dispatched on a snapshot array without
+ * holding a lock. Listeners registered without an executor are called on the thread dispatching
+ * the event, the others on their executor through a queue of their own: each listener receives the
+ * events in order and a slow listener does not delay the others.
+ *
+ * @param <L> The type of the listeners.
+ */
+class ListenerRegistry<L> {
+    private volatile Registration<L>[] mRegistrations = newArray(0);
+
+    @SuppressWarnings("unchecked")
+    private static <L> Registration<L>[] newArray(final int length) {
+        return (Registration<L>[]) new Registration<?>[length];
+    }
+
+    /**
+     * Registers a listener called on the thread dispatching the events. Nothing happens if the
+     * listener is registered already.
+     */
+    void add(@NonNull final L listener) {
+        add(listener, null);
+    }
+
+    /**
+     * Registers a listener called on the given executor. Nothing happens if the listener is
+     * registered already.
+     *
+     * @param executor The executor the listener is called on, null to call it directly.
+     */
+    synchronized void add(@NonNull final L listener, @Nullable final Executor executor) {
+        if (indexOf(listener) < 0) {
+            final Registration<L>[] registrations =
+                    Arrays.copyOf(mRegistrations, mRegistrations.length + 1);
+            registrations[registrations.length - 1] = new Registration<>(listener, executor);
+            mRegistrations = registrations;
+        }
+    }
+
+    synchronized void remove(@NonNull final L listener) {
+        final int index = indexOf(listener);
+        if (index >= 0) {
+            final Registration<L>[] registrations = newArray(mRegistrations.length - 1);
+            System.arraycopy(mRegistrations, 0, registrations, 0, index);
+            System.arraycopy(mRegistrations, index + 1, registrations, index,
+                    registrations.length - index);
+            mRegistrations = registrations;
+        }
+    }
+
+    private int indexOf(@NonNull final L listener) {
+        for (int i = 0; i < mRegistrations.length; i++) {
+            if (mRegistrations[i].mListener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void dispatch(@NonNull final Event<L> event) {
+        final Registration<L>[] registrations = mRegistrations;
+        for (int i = 0; i < registrations.length; i++) {
+            registrations[i].deliver(event);
+        }
+    }
+
+    /**
+     * @return the current registrations, for dispatching without creating an {@link Event}. Do
+     * not modify the array.
+     */
+    @NonNull
+    Registration<L>[] getRegistrations() {
+        return mRegistrations;
+    }
+
+    interface Event<L> {
+        void deliver(@NonNull L listener);
+    }
+
+    static class Registration<L> {
+        final L mListener;
+        private final Executor mExecutor;
+
+        Registration(@NonNull final L listener, @Nullable final Executor executor) {
+            mListener = listener;
+            mExecutor = (executor == null) ? null : new SerialExecutor(executor);
+        }
+
+        /**
+         * @return true if the listener is called on the thread dispatching the events.
+         */
+        boolean isDirect() {
+            return mExecutor == null;
+        }
+
+        void deliver(@NonNull final Event<L> event) {
+            if (mExecutor == null) {
+                event.deliver(mListener);
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    event.deliver(mListener);
+                }
+            });
+        }
+    }
+}
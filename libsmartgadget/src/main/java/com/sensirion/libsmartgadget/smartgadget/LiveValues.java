@@ -0,0 +1,95 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import java.util.Date;
+
+/**
+ * Mutable holder of the values of a notification, reused by the service for every notification so
+ * the live values reach a {@link com.sensirion.libsmartgadget.GadgetLiveValueListener} without
+ * allocating. The {@link GadgetValue} array for the other listeners and
+ * {@link com.sensirion.libsmartgadget.GadgetService#getLastValues()} is only created on demand.
+ */
+public class LiveValues {
+    private static final int MAX_VALUES = 2;
+
+    private final float[] mValues = new float[MAX_VALUES];
+    private final String[] mUnits = new String[MAX_VALUES];
+    private long mTimestampMs;
+    private int mSize;
+    private GadgetValue[] mGadgetValues;
+
+    /**
+     * Replaces the values of the previous notification by a single value. The holder is filled
+     * under one lock, so readers on other threads never see a partly filled notification.
+     *
+     * @param timestampMs The time the value was received.
+     */
+    public synchronized void set(final long timestampMs, final float value, @NonNull final String unit) {
+        mTimestampMs = timestampMs;
+        mValues[0] = value;
+        mUnits[0] = unit;
+        mSize = 1;
+        mGadgetValues = null;
+    }
+
+    /**
+     * Replaces the values of the previous notification by a pair of values, see
+     * {@link #set(long, float, String)}.
+     */
+    public synchronized void set(final long timestampMs, final float firstValue,
+                                 @NonNull final String firstUnit, final float secondValue,
+                                 @NonNull final String secondUnit) {
+        mTimestampMs = timestampMs;
+        mValues[0] = firstValue;
+        mUnits[0] = firstUnit;
+        mValues[1] = secondValue;
+        mUnits[1] = secondUnit;
+        mSize = 2;
+        mGadgetValues = null;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long getTimestamp() {
+        return mTimestampMs;
+    }
+
+    public synchronized float getValue(final int index) {
+        checkIndex(index);
+        return mValues[index];
+    }
+
+    @NonNull
+    public synchronized String getUnit(final int index) {
+        checkIndex(index);
+        return mUnits[index];
+    }
+
+    /**
+     * @return the values as {@link GadgetValue}, created once per notification. The array remains
+     * valid once the holder is reused.
+     */
+    @NonNull
+    public synchronized GadgetValue[] toGadgetValues() {
+        if (mGadgetValues == null) {
+            final Date timestamp = new Date(mTimestampMs);
+            final GadgetValue[] values = new GadgetValue[mSize];
+            for (int i = 0; i < mSize; i++) {
+                values[i] = new SmartGadgetValue(timestamp, mValues[i], mUnits[i]);
+            }
+            mGadgetValues = values;
+        }
+        return mGadgetValues;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+}
@@ -4,15 +4,12 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.sensirion.libble.UuidRegistry;
 import com.sensirion.libsmartgadget.GadgetValue;
+import com.sensirion.libsmartgadget.SampleBatch;
 import com.sensirion.libsmartgadget.utils.LittleEndianExtractor;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.List;
 
 public class SHT3xHistoryService extends SmartGadgetHistoryService {
     private static final String TAG = SHT3xHistoryService.class.getSimpleName();
@@ -25,6 +22,13 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
     private static final String START_LOGGER_DOWNLOAD_CHARACTERISTIC_UUID = "0000f238-b38d-4985-720e-0f993a68ee41";
     private static final String LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID = "0000f239-b38d-4985-720e-0f993a68ee41";
 
+    private static final int SYNC_TIME_CHARACTERISTIC_ID = UuidRegistry.getId(SYNC_TIME_CHARACTERISTIC_UUID);
+    private static final int READ_BACK_TO_TIME_MS_CHARACTERISTIC_ID = UuidRegistry.getId(READ_BACK_TO_TIME_MS_CHARACTERISTIC_UUID);
+    private static final int NEWEST_SAMPLE_TIME_MS_CHARACTERISTIC_ID = UuidRegistry.getId(NEWEST_SAMPLE_TIME_MS_CHARACTERISTIC_UUID);
+    private static final int LOGGER_INTERVAL_MS_CHARACTERISTIC_ID = UuidRegistry.getId(LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID);
+    private static final int HUMIDITY_NOTIFICATIONS_ID = UuidRegistry.getId(SHT3xHumidityService.NOTIFICATIONS_UUID);
+    private static final int TEMPERATURE_NOTIFICATIONS_ID = UuidRegistry.getId(SHT3xTemperatureService.NOTIFICATIONS_UUID);
+
     private static final byte DATA_POINT_SIZE = 4;
 
     private DownloadState mDownloadState;
@@ -113,9 +117,9 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
      */
 
     @Override
-    public void onFail(final String characteristicUuid, final byte[] data,
+    public void onFail(final int characteristicId, final byte[] data,
                        final boolean isWriteFailure) {
-        if (!isUuidSupported(characteristicUuid)) {
+        if (!isUuidSupported(characteristicId)) {
             return;
         }
 
@@ -124,12 +128,8 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
             return;
         }
 
-        if (isWriteFailure) {
-            switch (characteristicUuid) {
-                case LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID:
-                    mServiceListener.onSetLoggerIntervalFailed(this);
-                    break;
-            }
+        if (isWriteFailure && characteristicId == LOGGER_INTERVAL_MS_CHARACTERISTIC_ID) {
+            mServiceListener.onSetLoggerIntervalFailed(this);
         }
         // ignore read failures if not currently downloading
     }
@@ -139,49 +139,40 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
      */
 
     @Override
-    protected void handleDataReceived(final String characteristicUuid, final byte[] rawData) {
-        if (isDownloadedData(characteristicUuid, rawData)) {
+    protected void handleDataReceived(final int characteristicId, final byte[] rawData) {
+        if (isDownloadedData(characteristicId, rawData)) {
             Log.d(TAG, "Received downloaded data in raw form");
-            handleDownloadedData(characteristicUuid, rawData);
+            handleDownloadedData(characteristicId, rawData);
             return;
         }
 
-        switch (characteristicUuid) {
-            case LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID:
-                mLoggerIntervalMs = LittleEndianExtractor.extractInteger(rawData);
-                mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), mLoggerIntervalMs, LOGGER_INTERVAL_UNIT)};
-                continueDownloadProtocol();
-                mServiceListener.onSetLoggerIntervalSuccess();
-                break;
-            case NEWEST_SAMPLE_TIME_MS_CHARACTERISTIC_UUID:
-                mNewestSampleTimeMs = LittleEndianExtractor.extractLong(rawData);
-                continueDownloadProtocol();
-                break;
-            case READ_BACK_TO_TIME_MS_CHARACTERISTIC_UUID:
-                mOldestSampleTimeMs = LittleEndianExtractor.extractLong(rawData);
-                continueDownloadProtocol();
-                break;
+        if (characteristicId == LOGGER_INTERVAL_MS_CHARACTERISTIC_ID) {
+            mLoggerIntervalMs = LittleEndianExtractor.extractInteger(rawData);
+            mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), mLoggerIntervalMs, LOGGER_INTERVAL_UNIT)};
+            continueDownloadProtocol();
+            mServiceListener.onSetLoggerIntervalSuccess();
+        } else if (characteristicId == NEWEST_SAMPLE_TIME_MS_CHARACTERISTIC_ID) {
+            mNewestSampleTimeMs = LittleEndianExtractor.extractLong(rawData);
+            continueDownloadProtocol();
+        } else if (characteristicId == READ_BACK_TO_TIME_MS_CHARACTERISTIC_ID) {
+            mOldestSampleTimeMs = LittleEndianExtractor.extractLong(rawData);
+            continueDownloadProtocol();
         }
     }
 
     @Override
-    protected void handleDataWritten(final String characteristicUuid) {
-        switch (characteristicUuid) {
-            case LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID:
-                readLoggerInterval();
-                break;
-            case SYNC_TIME_CHARACTERISTIC_UUID:
-                continueDownloadProtocol();
-                break;
+    protected void handleDataWritten(final int characteristicId) {
+        if (characteristicId == LOGGER_INTERVAL_MS_CHARACTERISTIC_ID) {
+            readLoggerInterval();
+        } else if (characteristicId == SYNC_TIME_CHARACTERISTIC_ID) {
+            continueDownloadProtocol();
         }
     }
 
     @Override
     protected boolean initiateDownloadProtocol() {
         final BluetoothGattCharacteristic syncCharacteristic =
-                mBleConnector.getCharacteristics(mDeviceAddress,
-                        Collections.singletonList(SYNC_TIME_CHARACTERISTIC_UUID))
-                        .get(SYNC_TIME_CHARACTERISTIC_UUID);
+                mBleConnector.getCharacteristic(mDeviceAddress, SYNC_TIME_CHARACTERISTIC_UUID);
         if (syncCharacteristic == null) return false;
 
         mDownloadState = DownloadState.SYNC;
@@ -217,9 +208,7 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
                 }
 
                 final BluetoothGattCharacteristic startDownloadCharacteristic =
-                        mBleConnector.getCharacteristics(mDeviceAddress,
-                                Collections.singletonList(START_LOGGER_DOWNLOAD_CHARACTERISTIC_UUID))
-                                .get(START_LOGGER_DOWNLOAD_CHARACTERISTIC_UUID);
+                        mBleConnector.getCharacteristic(mDeviceAddress, START_LOGGER_DOWNLOAD_CHARACTERISTIC_UUID);
 
                 if (startDownloadCharacteristic != null) {
                     startDownloadCharacteristic.setValue(1, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
@@ -249,18 +238,16 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
         mBleConnector.readCharacteristic(mDeviceAddress, LOGGER_INTERVAL_MS_CHARACTERISTIC_UUID);
     }
 
-    private void handleDownloadedData(final String characteristicUuid, final byte[] rawData) {
+    private void handleDownloadedData(final int characteristicId, final byte[] rawData) {
         if (rawData.length < 4 * 2 || rawData.length % 4 > 0) {
             Log.e(TAG, "parseHistoryValue -> Received History value does not have a valid length.");
             return;
         }
 
         final int sequenceNr = updateDownloadProgress(rawData);
-        final List<GadgetValue> downloadedValues = parseDownloadedDate(characteristicUuid, rawData, sequenceNr);
+        final SampleBatch downloadedSamples = parseDownloadedData(characteristicId, rawData, sequenceNr);
 
-        mServiceListener.onGadgetDownloadDataReceived(this,
-                downloadedValues.toArray(new GadgetValue[downloadedValues.size()]),
-                mDownloadProgress);
+        mServiceListener.onGadgetDownloadSamplesReceived(this, downloadedSamples, mDownloadProgress);
 
         if (mNrOfElementsDownloaded >= mNrOfElementsToDownload) {
             onDownloadComplete();
@@ -268,23 +255,24 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
     }
 
     @NonNull
-    private List<GadgetValue> parseDownloadedDate(String characteristicUuid, byte[] rawData, int sequenceNr) {
-        final String unit = getUnitFromUuid(characteristicUuid, UNKNOWN_UNIT);
+    private SampleBatch parseDownloadedData(int characteristicId, byte[] rawData, int sequenceNr) {
+        final String unit = getUnitFromId(characteristicId, UNKNOWN_UNIT);
 
-        // get data points from raw data
-        final List<GadgetValue> downloadedValues = new ArrayList<>();
+        // get data points from raw data, the first one holds the sequence number
+        final SampleBatch downloadedSamples = new SampleBatch(new String[]{unit},
+                (rawData.length / DATA_POINT_SIZE) - 1);
         for (int offset = DATA_POINT_SIZE; offset < rawData.length; offset += DATA_POINT_SIZE) {
             final long timestamp = mNewestSampleTimeMs - (mLoggerIntervalMs * ((((offset / DATA_POINT_SIZE) - 1) + sequenceNr)));
             final float downloadedValue = LittleEndianExtractor.extractFloat(rawData, offset);
-            downloadedValues.add(new SmartGadgetValue(new Date(timestamp), downloadedValue, unit));
+            downloadedSamples.add(timestamp, downloadedValue, 0);
         }
-        return downloadedValues;
+        return downloadedSamples;
     }
 
-    private String getUnitFromUuid(final String characteristicUuid, final String defaultUnit) {
-        if (characteristicUuid.equals(SHT3xHumidityService.NOTIFICATIONS_UUID)) {
+    private String getUnitFromId(final int characteristicId, final String defaultUnit) {
+        if (characteristicId == HUMIDITY_NOTIFICATIONS_ID) {
             return SHT3xHumidityService.UNIT;
-        } else if (characteristicUuid.equals(SHT3xTemperatureService.NOTIFICATIONS_UUID)) {
+        } else if (characteristicId == TEMPERATURE_NOTIFICATIONS_ID) {
             return SHT3xTemperatureService.UNIT;
         }
         return defaultUnit;
@@ -302,35 +290,34 @@ public class SHT3xHistoryService extends SmartGadgetHistoryService {
         return sequenceNr;
     }
 
-    private boolean isDownloadedData(final String characteristicUuid, final byte[] rawData) {
-        return (characteristicUuid.equals(SHT3xHumidityService.NOTIFICATIONS_UUID) ||
-                characteristicUuid.equals(SHT3xTemperatureService.NOTIFICATIONS_UUID)) &&
+    private boolean isDownloadedData(final int characteristicId, final byte[] rawData) {
+        return (characteristicId == HUMIDITY_NOTIFICATIONS_ID ||
+                characteristicId == TEMPERATURE_NOTIFICATIONS_ID) &&
                 rawData.length > (2 * DATA_POINT_SIZE);
     }
 
     private int extractSequenceNumber(@NonNull final byte[] byteBuffer) {
-        final int[] wrappedSequenceNumber = new int[1];
-        final byte[] sequenceNumberBuffer = new byte[4];
-        System.arraycopy(byteBuffer, 0, sequenceNumberBuffer, 0, 4);
-        ByteBuffer.wrap(sequenceNumberBuffer).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(wrappedSequenceNumber);
-        return wrappedSequenceNumber[0];
+        return LittleEndianExtractor.extractInteger(byteBuffer, 0);
     }
 
     private void onDownloadComplete() {
         mDownloadProgress = 100;
         mDownloadState = DownloadState.IDLE;
+        onDownloadFinished();
         mServiceListener.onDownloadCompleted(this);
     }
 
     private void onNoDataAvailable() {
         mDownloadProgress = 0;
         mDownloadState = DownloadState.IDLE;
+        onDownloadFinished();
         mServiceListener.onDownloadNoData(this);
     }
 
     private void onDownloadFailed() {
         mDownloadState = DownloadState.IDLE;
         mDownloadProgress = -1;
+        onDownloadFinished();
         mServiceListener.onDownloadFailed(this);
     }
 
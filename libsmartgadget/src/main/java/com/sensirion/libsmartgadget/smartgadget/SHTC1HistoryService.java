@@ -4,14 +4,13 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.sensirion.libble.UuidRegistry;
+import com.sensirion.libble.action.ActionPriority;
 import com.sensirion.libsmartgadget.GadgetValue;
+import com.sensirion.libsmartgadget.SampleBatch;
 import com.sensirion.libsmartgadget.utils.LittleEndianExtractor;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT16;
 import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT32;
@@ -30,8 +29,22 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
     private static final String LOGGED_DATA_CHARACTERISTIC_UUID = "0000fa26-0000-1000-8000-00805f9b34fb";
     private static final String USER_DATA_CHARACTERISTIC_UUID = "0000fa27-0000-1000-8000-00805f9b34fb";
 
+    private static final int LOGGING_STATE_CHARACTERISTIC_ID = UuidRegistry.getId(LOGGING_STATE_CHARACTERISTIC_UUID);
+    private static final int LOGGING_INTERVAL_S_CHARACTERISTIC_ID = UuidRegistry.getId(LOGGING_INTERVAL_S_CHARACTERISTIC_UUID);
+    private static final int CURRENT_POINTER_CHARACTERISTIC_ID = UuidRegistry.getId(CURRENT_POINTER_CHARACTERISTIC_UUID);
+    private static final int START_POINTER_CHARACTERISTIC_ID = UuidRegistry.getId(START_POINTER_CHARACTERISTIC_UUID);
+    private static final int END_POINTER_CHARACTERISTIC_ID = UuidRegistry.getId(END_POINTER_CHARACTERISTIC_UUID);
+    private static final int LOGGED_DATA_CHARACTERISTIC_ID = UuidRegistry.getId(LOGGED_DATA_CHARACTERISTIC_UUID);
+    private static final int USER_DATA_CHARACTERISTIC_ID = UuidRegistry.getId(USER_DATA_CHARACTERISTIC_UUID);
+
     private static final int GADGET_RING_BUFFER_SIZE = 16384;
     private static final int DATA_POINT_SIZE = 4;
+    private static final int TEMPERATURE_CHANNEL = 0;
+    private static final int HUMIDITY_CHANNEL = 1;
+    private static final String[] CHANNEL_UNITS = {
+            SHTC1TemperatureAndHumidityService.UNIT_T,
+            SHTC1TemperatureAndHumidityService.UNIT_RH
+    };
     private static final long SHTC1_SPECIFIC_READ_AFTER_WRITE_DELAY_MS = 1000;
 
     private DownloadState mDownloadState;
@@ -128,27 +141,25 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
      */
 
     @Override
-    public void onFail(final String characteristicUuid, final byte[] data,
+    public void onFail(final int characteristicId, final byte[] data,
                        final boolean isWriteFailure) {
-        if (!isUuidSupported(characteristicUuid)) {
+        if (!isUuidSupported(characteristicId)) {
             return;
         }
 
         if (isDownloading()) {
             mDownloadState = DownloadState.IDLE;
             mDownloadProgress = -1;
+            onDownloadFinished();
             mServiceListener.onDownloadFailed(this);
             return;
         }
 
         if (isWriteFailure) {
-            switch (characteristicUuid) {
-                case LOGGING_INTERVAL_S_CHARACTERISTIC_UUID:
-                    mServiceListener.onSetLoggerIntervalFailed(this);
-                    break;
-                case LOGGING_STATE_CHARACTERISTIC_UUID:
-                    mServiceListener.onSetGadgetLoggingEnabledFailed(this);
-                    break;
+            if (characteristicId == LOGGING_INTERVAL_S_CHARACTERISTIC_ID) {
+                mServiceListener.onSetLoggerIntervalFailed(this);
+            } else if (characteristicId == LOGGING_STATE_CHARACTERISTIC_ID) {
+                mServiceListener.onSetGadgetLoggingEnabledFailed(this);
             }
         }
         // ignore read failures if not currently downloading
@@ -159,68 +170,54 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
      */
 
     @Override
-    protected void handleDataReceived(final String characteristicUuid, final byte[] rawData) {
-        switch (characteristicUuid) {
-            case LOGGING_INTERVAL_S_CHARACTERISTIC_UUID:
-                mLoggerIntervalMs = 1000 * LittleEndianExtractor.extractShort(rawData);
-                mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), mLoggerIntervalMs, LOGGER_INTERVAL_UNIT)};
-                mServiceListener.onSetLoggerIntervalSuccess();
-                break;
-            case LOGGING_STATE_CHARACTERISTIC_UUID:
-                mLoggerStateEnabled = ((int) rawData[0] > 0);
-                Log.d(TAG, "Received LOGGING_STATE_CHARACTERISTIC_UUID data: " + mLoggerStateEnabled);
-                continueDownloadProtocol();
-                break;
-            case CURRENT_POINTER_CHARACTERISTIC_UUID:
-                mCurrentPointer = LittleEndianExtractor.extractInteger(rawData);
-                Log.d(TAG, "Received CURRENT_POINTER_CHARACTERISTIC_UUID data: " + mCurrentPointer);
-                continueDownloadProtocol();
-                break;
-            case START_POINTER_CHARACTERISTIC_UUID:
-                mStartPointer = LittleEndianExtractor.extractInteger(rawData);
-                Log.d(TAG, "Received START_POINTER_CHARACTERISTIC_UUID data: " + mStartPointer);
-                continueDownloadProtocol();
-                break;
-            case END_POINTER_CHARACTERISTIC_UUID:
-                mEndPointer = LittleEndianExtractor.extractInteger(rawData);
-                Log.d(TAG, "Received END_POINTER_CHARACTERISTIC_UUID data: " + mEndPointer);
-                continueDownloadProtocol();
-                break;
-            case USER_DATA_CHARACTERISTIC_UUID:
-                mLoggingEnabledTimestamp = LittleEndianExtractor.extractInteger(rawData);
-                Log.d(TAG, "Received USER_DATA_CHARACTERISTIC_UUID data: " + mLoggingEnabledTimestamp);
-                break;
-            case LOGGED_DATA_CHARACTERISTIC_UUID:
-                Log.d(TAG, "Received LOGGED_DATA_CHARACTERISTIC_UUID data");
-                handleDownloadedData(rawData);
-                if (mDownloadState.equals(DownloadState.RUNNING)) {
-                    mBleConnector.readCharacteristic(mDeviceAddress, LOGGED_DATA_CHARACTERISTIC_UUID);
-                }
-                break;
+    protected void handleDataReceived(final int characteristicId, final byte[] rawData) {
+        if (characteristicId == LOGGED_DATA_CHARACTERISTIC_ID) {
+            Log.d(TAG, "Received LOGGED_DATA_CHARACTERISTIC_UUID data");
+            handleDownloadedData(rawData);
+            if (mDownloadState.equals(DownloadState.RUNNING)) {
+                mBleConnector.readCharacteristic(mDeviceAddress, LOGGED_DATA_CHARACTERISTIC_UUID, ActionPriority.BULK);
+            }
+        } else if (characteristicId == LOGGING_INTERVAL_S_CHARACTERISTIC_ID) {
+            mLoggerIntervalMs = 1000 * LittleEndianExtractor.extractShort(rawData);
+            mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), mLoggerIntervalMs, LOGGER_INTERVAL_UNIT)};
+            mServiceListener.onSetLoggerIntervalSuccess();
+        } else if (characteristicId == LOGGING_STATE_CHARACTERISTIC_ID) {
+            mLoggerStateEnabled = ((int) rawData[0] > 0);
+            Log.d(TAG, "Received LOGGING_STATE_CHARACTERISTIC_UUID data: " + mLoggerStateEnabled);
+            continueDownloadProtocol();
+        } else if (characteristicId == CURRENT_POINTER_CHARACTERISTIC_ID) {
+            mCurrentPointer = LittleEndianExtractor.extractInteger(rawData);
+            Log.d(TAG, "Received CURRENT_POINTER_CHARACTERISTIC_UUID data: " + mCurrentPointer);
+            continueDownloadProtocol();
+        } else if (characteristicId == START_POINTER_CHARACTERISTIC_ID) {
+            mStartPointer = LittleEndianExtractor.extractInteger(rawData);
+            Log.d(TAG, "Received START_POINTER_CHARACTERISTIC_UUID data: " + mStartPointer);
+            continueDownloadProtocol();
+        } else if (characteristicId == END_POINTER_CHARACTERISTIC_ID) {
+            mEndPointer = LittleEndianExtractor.extractInteger(rawData);
+            Log.d(TAG, "Received END_POINTER_CHARACTERISTIC_UUID data: " + mEndPointer);
+            continueDownloadProtocol();
+        } else if (characteristicId == USER_DATA_CHARACTERISTIC_ID) {
+            mLoggingEnabledTimestamp = LittleEndianExtractor.extractInteger(rawData);
+            Log.d(TAG, "Received USER_DATA_CHARACTERISTIC_UUID data: " + mLoggingEnabledTimestamp);
         }
     }
 
     @Override
-    protected void handleDataWritten(final String characteristicUuid) {
+    protected void handleDataWritten(final int characteristicId) {
         new Handler().postDelayed(new Runnable() {
             @Override
             public void run() {
-                switch (characteristicUuid) {
-                    case LOGGING_INTERVAL_S_CHARACTERISTIC_UUID:
-                        readLoggerInterval();
-                        break;
-                    case LOGGING_STATE_CHARACTERISTIC_UUID:
-                        readLoggingState();
-                        break;
-                    case START_POINTER_CHARACTERISTIC_UUID:
-                        readStartPointer();
-                        break;
-                    case END_POINTER_CHARACTERISTIC_UUID:
-                        readEndPointer();
-                        break;
-                    case USER_DATA_CHARACTERISTIC_UUID:
-                        readUserData();
-                        break;
+                if (characteristicId == LOGGING_INTERVAL_S_CHARACTERISTIC_ID) {
+                    readLoggerInterval();
+                } else if (characteristicId == LOGGING_STATE_CHARACTERISTIC_ID) {
+                    readLoggingState();
+                } else if (characteristicId == START_POINTER_CHARACTERISTIC_ID) {
+                    readStartPointer();
+                } else if (characteristicId == END_POINTER_CHARACTERISTIC_ID) {
+                    readEndPointer();
+                } else if (characteristicId == USER_DATA_CHARACTERISTIC_ID) {
+                    readUserData();
                 }
             }
         }, SHTC1_SPECIFIC_READ_AFTER_WRITE_DELAY_MS);
@@ -260,7 +257,7 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
                     return;
                 }
                 // Start downloading... this reads the first download packet.
-                mBleConnector.readCharacteristic(mDeviceAddress, LOGGED_DATA_CHARACTERISTIC_UUID);
+                mBleConnector.readCharacteristic(mDeviceAddress, LOGGED_DATA_CHARACTERISTIC_UUID, ActionPriority.BULK);
                 break;
             case RUNNING:
             case IDLE:
@@ -281,24 +278,19 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
             return;
         }
 
-        final List<GadgetValue> downloadedValues = parseDownloadData(rawData);
+        final SampleBatch downloadedSamples = parseDownloadData(rawData);
 
-        mServiceListener.onGadgetDownloadDataReceived(this,
-                downloadedValues.toArray(new GadgetValue[downloadedValues.size()]),
-                mDownloadProgress);
+        mServiceListener.onGadgetDownloadSamplesReceived(this, downloadedSamples, mDownloadProgress);
     }
 
     @NonNull
-    private List<GadgetValue> parseDownloadData(final byte[] rawData) {
-        final List<GadgetValue> downloadedValues = new ArrayList<>();
-        for (int i = 0; i < rawData.length; i += DATA_POINT_SIZE) {
-            final byte[] dataPoint = new byte[DATA_POINT_SIZE];
-            final short[] humidityAndTemperature = new short[DATA_POINT_SIZE / 2];
-            System.arraycopy(rawData, i, dataPoint, 0, DATA_POINT_SIZE);
-            ByteBuffer.wrap(dataPoint).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(humidityAndTemperature);
-
-            final float temperature = ((float) humidityAndTemperature[0]) / 100f;
-            final float humidity = ((float) humidityAndTemperature[1]) / 100f;
+    private SampleBatch parseDownloadData(final byte[] rawData) {
+        // The number of data points per packet depends on the negotiated MTU, ignore a partial one
+        final SampleBatch downloadedSamples = new SampleBatch(CHANNEL_UNITS,
+                2 * (rawData.length / DATA_POINT_SIZE));
+        for (int i = 0; i + DATA_POINT_SIZE <= rawData.length; i += DATA_POINT_SIZE) {
+            final float temperature = LittleEndianExtractor.extractShort(rawData, i) / 100f;
+            final float humidity = LittleEndianExtractor.extractShort(rawData, i + 2) / 100f;
             final long timestamp = mLoggingEnabledTimestamp * 1000L + (mStartPointer + mNrOfElementsDownloaded) * (long) mLoggerIntervalMs;
 
             // NOTE:
@@ -314,12 +306,12 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
             // Log.i(TAG, "DOWNLOADING DATA: timestamp comparison: legecy: " + timestamp +
             //      " vs. alternative: " + altTimestamp);
 
-            downloadedValues.add(new SmartGadgetValue(new Date(timestamp), temperature, SHTC1TemperatureAndHumidityService.UNIT_T));
-            downloadedValues.add(new SmartGadgetValue(new Date(timestamp), humidity, SHTC1TemperatureAndHumidityService.UNIT_RH));
+            downloadedSamples.add(timestamp, temperature, TEMPERATURE_CHANNEL);
+            downloadedSamples.add(timestamp, humidity, HUMIDITY_CHANNEL);
 
             updateDownloadProgress();
         }
-        return downloadedValues;
+        return downloadedSamples;
     }
 
     private void updateDownloadProgress() {
@@ -335,6 +327,7 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
         mDownloadProgress = 100;
         mDownloadState = DownloadState.IDLE;
         setGadgetLoggingEnabled(mLoggerStateBeforeDownload);
+        onDownloadFinished();
         mServiceListener.onDownloadCompleted(this);
     }
 
@@ -342,6 +335,7 @@ public class SHTC1HistoryService extends SmartGadgetHistoryService {
         mDownloadProgress = 0;
         mDownloadState = DownloadState.IDLE;
         setGadgetLoggingEnabled(mLoggerStateBeforeDownload);
+        onDownloadFinished();
         mServiceListener.onDownloadNoData(this);
     }
 
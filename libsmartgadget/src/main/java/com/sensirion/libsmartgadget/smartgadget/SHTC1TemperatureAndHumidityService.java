@@ -2,11 +2,7 @@ package com.sensirion.libsmartgadget.smartgadget;
 
 import android.support.annotation.NonNull;
 
-import com.sensirion.libsmartgadget.GadgetValue;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Date;
+import com.sensirion.libsmartgadget.utils.LittleEndianExtractor;
 
 public class SHTC1TemperatureAndHumidityService extends SmartGadgetNotificationService {
     public static final String SERVICE_UUID = "0000aa20-0000-1000-8000-00805f9b34fb";
@@ -25,16 +21,9 @@ public class SHTC1TemperatureAndHumidityService extends SmartGadgetNotificationS
 
     @Override
     protected void handleLiveValue(final byte[] rawData) {
-        final short[] humidityAndTemperature = new short[2];
-        ByteBuffer.wrap(rawData).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(humidityAndTemperature);
-
-        final float temperature = ((float) humidityAndTemperature[0]) / 100f;
-        final float humidity = ((float) humidityAndTemperature[1]) / 100f;
-        final Date timestamp = new Date();
-        mLastValues = new GadgetValue[]{
-                new SmartGadgetValue(timestamp, temperature, UNIT_T),
-                new SmartGadgetValue(timestamp, humidity, UNIT_RH)
-        };
-        mServiceListener.onGadgetValuesReceived(this, mLastValues);
+        final float temperature = LittleEndianExtractor.extractShort(rawData, 0) / 100f;
+        final float humidity = LittleEndianExtractor.extractShort(rawData, 2) / 100f;
+        mLiveValues.set(System.currentTimeMillis(), temperature, UNIT_T, humidity, UNIT_RH);
+        mServiceListener.onGadgetLiveValuesReceived(this, mLiveValues);
     }
 }
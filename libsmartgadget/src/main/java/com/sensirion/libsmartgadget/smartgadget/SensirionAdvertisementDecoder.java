@@ -0,0 +1,46 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sensirion.libsmartgadget.AdvertisementDecoder;
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import java.util.Date;
+
+/**
+ * Decodes the advertisements of the Sensirion Smart Gadgets. The manufacturer specific data
+ * consists of the advertisement type, the sample type, a two byte device id and the samples, each
+ * a little endian 16 bit value of the full sensor range.
+ */
+class SensirionAdvertisementDecoder implements AdvertisementDecoder {
+    public static final int COMPANY_ID = 0x06D5;
+
+    private static final int ADVERTISEMENT_TYPE_SAMPLES = 0x00;
+    private static final int SAMPLE_TYPE_TEMPERATURE_AND_HUMIDITY = 0x04;
+    private static final int HEADER_SIZE = 4;
+    private static final int SAMPLE_SIZE = 2;
+    private static final float TICKS = 65535f;
+
+    @Nullable
+    @Override
+    public GadgetValue[] decode(@NonNull final byte[] manufacturerData, @NonNull final Date timestamp) {
+        if (manufacturerData.length < HEADER_SIZE + 2 * SAMPLE_SIZE
+                || manufacturerData[0] != ADVERTISEMENT_TYPE_SAMPLES
+                || manufacturerData[1] != SAMPLE_TYPE_TEMPERATURE_AND_HUMIDITY) {
+            return null;
+        }
+        final int temperatureTicks = getTicks(manufacturerData, HEADER_SIZE);
+        final int humidityTicks = getTicks(manufacturerData, HEADER_SIZE + SAMPLE_SIZE);
+        return new GadgetValue[]{
+                new SmartGadgetValue(timestamp, -45f + 175f * temperatureTicks / TICKS,
+                        SHT3xTemperatureService.UNIT),
+                new SmartGadgetValue(timestamp, 100f * humidityTicks / TICKS,
+                        SHT3xHumidityService.UNIT)
+        };
+    }
+
+    private static int getTicks(@NonNull final byte[] data, final int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+}
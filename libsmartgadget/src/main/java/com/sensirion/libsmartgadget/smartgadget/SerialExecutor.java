@@ -0,0 +1,45 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks one after the other in the order they were submitted on an executor which might
+ * run them concurrently (e.g. a thread pool). Only one task is handed to the executor at a time.
+ */
+class SerialExecutor implements Executor {
+    private final Executor mExecutor;
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    private Runnable mActive;
+
+    SerialExecutor(@NonNull final Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public synchronized void execute(@NonNull final Runnable task) {
+        mTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (mActive == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        mActive = mTasks.poll();
+        if (mActive != null) {
+            mExecutor.execute(mActive);
+        }
+    }
+}
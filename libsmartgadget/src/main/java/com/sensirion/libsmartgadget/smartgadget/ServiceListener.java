@@ -5,12 +5,21 @@ import android.support.annotation.NonNull;
 import com.sensirion.libsmartgadget.GadgetDownloadService;
 import com.sensirion.libsmartgadget.GadgetService;
 import com.sensirion.libsmartgadget.GadgetValue;
+import com.sensirion.libsmartgadget.SampleBatch;
 
 public interface ServiceListener {
     void onGadgetValuesReceived(@NonNull GadgetService service, @NonNull GadgetValue[] values);
 
+    /**
+     * Reports the values of a notification. The holder is reused by the service for the next
+     * notification, it is only valid during the call.
+     */
+    void onGadgetLiveValuesReceived(@NonNull GadgetService service, @NonNull LiveValues values);
+
     void onGadgetDownloadDataReceived(@NonNull GadgetDownloadService service, @NonNull GadgetValue[] values, int progress);
 
+    void onGadgetDownloadSamplesReceived(@NonNull GadgetDownloadService service, @NonNull SampleBatch samples, int progress);
+
     void onDownloadFailed(@NonNull GadgetDownloadService service);
 
     void onDownloadCompleted(@NonNull GadgetDownloadService service);
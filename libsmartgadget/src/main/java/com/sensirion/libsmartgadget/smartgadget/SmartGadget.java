@@ -5,24 +5,26 @@ import android.support.annotation.NonNull;
 import com.sensirion.libsmartgadget.Gadget;
 import com.sensirion.libsmartgadget.GadgetDownloadService;
 import com.sensirion.libsmartgadget.GadgetListener;
+import com.sensirion.libsmartgadget.GadgetLiveValueListener;
 import com.sensirion.libsmartgadget.GadgetNotificationService;
+import com.sensirion.libsmartgadget.GadgetSampleListener;
 import com.sensirion.libsmartgadget.GadgetService;
 import com.sensirion.libsmartgadget.GadgetValue;
+import com.sensirion.libsmartgadget.SampleBatch;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
 class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
     private final BleConnector mBleConnector;
     private final GadgetServiceFactory mGadgetServiceFactory;
     private final String mName;
     private final String mAddress;
-    private final List<GadgetService> mGadgetServiceList;
-    private final Set<GadgetListener> mListeners;
+    private final ListenerRegistry<GadgetListener> mListeners;
 
+    // Replaced as a whole whenever the services change, the dispatching does not take a lock
+    private volatile GadgetServiceIndex mServiceIndex;
     private boolean mConnected;
 
     public SmartGadget(@NonNull final BleConnector bleConnector,
@@ -33,8 +35,8 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
         mName = name;
         mAddress = address;
         mConnected = false;
-        mGadgetServiceList = Collections.synchronizedList(new ArrayList<GadgetService>());
-        mListeners = Collections.synchronizedSet(new HashSet<GadgetListener>());
+        mServiceIndex = GadgetServiceIndex.EMPTY;
+        mListeners = new ListenerRegistry<>();
     }
 
     /*
@@ -72,6 +74,12 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
         mListeners.add(callback);
     }
 
+    @Override
+    public void addListener(@NonNull final GadgetListener callback,
+                            @NonNull final Executor executor) {
+        mListeners.add(callback, executor);
+    }
+
     @Override
     public void removeListener(@NonNull final GadgetListener callback) {
         mListeners.remove(callback);
@@ -79,37 +87,29 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
 
     @Override
     public void subscribeAll() {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
-                ((GadgetNotificationService) service).subscribe();
-            }
+        for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
+            ((GadgetNotificationService) service).subscribe();
         }
     }
 
     @Override
     public void unsubscribeAll() {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
-                ((GadgetNotificationService) service).unsubscribe();
-            }
+        for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
+            ((GadgetNotificationService) service).unsubscribe();
         }
     }
 
     @Override
     public void refresh() {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
-                service.requestValueUpdate();
-            }
+        for (GadgetService service : getServicesOfType(GadgetNotificationService.class)) {
+            service.requestValueUpdate();
         }
     }
 
     @NonNull
     @Override
     public List<GadgetService> getServices() {
-        synchronized (mGadgetServiceList) {
-            return new ArrayList<>(mGadgetServiceList);
-        }
+        return new ArrayList<>(mServiceIndex.getServices());
     }
 
     @Override
@@ -120,15 +120,7 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
     @NonNull
     @Override
     public List<GadgetService> getServicesOfType(@NonNull final Class<? extends GadgetService> gadgetServiceClass) {
-        final ArrayList<GadgetService> resultList = new ArrayList<>();
-        synchronized (mGadgetServiceList) {
-            for (final GadgetService service : mGadgetServiceList) {
-                if (gadgetServiceClass.isInstance(service)) {
-                    resultList.add(service);
-                }
-            }
-        }
-        return resultList;
+        return new ArrayList<>(mServiceIndex.getServicesOfType(gadgetServiceClass));
     }
 
     /*
@@ -139,69 +131,51 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
         mConnected = connected;
 
         if (connected) {
-            mGadgetServiceList.addAll(mGadgetServiceFactory.createServicesFor(this, mAddress,
-                    mBleConnector.getServices(this)));
+            mServiceIndex = new GadgetServiceIndex(mGadgetServiceFactory.createServicesFor(this,
+                    mAddress, mBleConnector.getServices(this)));
         }
 
-        notifyServicesOnConnectionStateChanged(connected);
+        for (final BleConnectorCallback callback : mServiceIndex.getCallbacks()) {
+            callback.onConnectionStateChanged(connected);
+        }
 
         if (connected) {
-            synchronized (mListeners) {
-                for (GadgetListener listener : mListeners) {
-                    listener.onGadgetConnected(this);
+            mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+                @Override
+                public void deliver(@NonNull final GadgetListener listener) {
+                    listener.onGadgetConnected(SmartGadget.this);
                 }
-            }
+            });
         } else {
-            mGadgetServiceList.clear();
-            synchronized (mListeners) {
-                for (GadgetListener listener : mListeners) {
-                    listener.onGadgetDisconnected(this);
+            mServiceIndex = GadgetServiceIndex.EMPTY;
+            mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+                @Override
+                public void deliver(@NonNull final GadgetListener listener) {
+                    listener.onGadgetDisconnected(SmartGadget.this);
                 }
-            }
-        }
-    }
-
-    private void notifyServicesOnConnectionStateChanged(final boolean connected) {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : mGadgetServiceList) {
-                if (service instanceof BleConnectorCallback) {
-                    ((BleConnectorCallback) service).onConnectionStateChanged(connected);
-                }
-            }
+            });
         }
     }
 
     @Override
-    public void onDataReceived(final String characteristicUuid, final byte[] rawData) {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : mGadgetServiceList) {
-                if (service instanceof BleConnectorCallback) {
-                    ((BleConnectorCallback) service).onDataReceived(characteristicUuid, rawData);
-                }
-            }
+    public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        for (final BleConnectorCallback callback : mServiceIndex.getCallbacks(characteristicId)) {
+            callback.onDataReceived(characteristicId, rawData);
         }
     }
 
     @Override
-    public void onDataWritten(final String characteristicUuid) {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : mGadgetServiceList) {
-                if (service instanceof BleConnectorCallback) {
-                    ((BleConnectorCallback) service).onDataWritten(characteristicUuid);
-                }
-            }
+    public void onDataWritten(final int characteristicId) {
+        for (final BleConnectorCallback callback : mServiceIndex.getCallbacks(characteristicId)) {
+            callback.onDataWritten(characteristicId);
         }
     }
 
     @Override
-    public void onFail(final String characteristicUuid, final byte[] data,
+    public void onFail(final int characteristicId, final byte[] data,
                        final boolean isWriteFailure) {
-        synchronized (mGadgetServiceList) {
-            for (GadgetService service : mGadgetServiceList) {
-                if (service instanceof BleConnectorCallback) {
-                    ((BleConnectorCallback) service).onFail(characteristicUuid, data, isWriteFailure);
-                }
-            }
+        for (final BleConnectorCallback callback : mServiceIndex.getCallbacks(characteristicId)) {
+            callback.onFail(characteristicId, data, isWriteFailure);
         }
     }
 
@@ -211,10 +185,60 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
     @Override
     public void onGadgetValuesReceived(@NonNull final GadgetService service,
                                        @NonNull final GadgetValue[] values) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onGadgetValuesReceived(this, service, values);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onGadgetValuesReceived(SmartGadget.this, service, values);
             }
+        });
+    }
+
+    @Override
+    public void onGadgetLiveValuesReceived(@NonNull final GadgetService service,
+                                           @NonNull final LiveValues values) {
+        // Iterates the registrations instead of dispatching an event, the direct live value
+        // listeners are called without any allocation
+        final ListenerRegistry.Registration<GadgetListener>[] registrations = mListeners.getRegistrations();
+        GadgetValue[] gadgetValues = null;
+        for (int i = 0; i < registrations.length; i++) {
+            final ListenerRegistry.Registration<GadgetListener> registration = registrations[i];
+            if (registration.isDirect() && registration.mListener instanceof GadgetLiveValueListener) {
+                deliverLiveValues((GadgetLiveValueListener) registration.mListener, service, values);
+                continue;
+            }
+            if (gadgetValues == null) {
+                gadgetValues = values.toGadgetValues();
+            }
+            final GadgetValue[] valuesToDeliver = gadgetValues;
+            registration.deliver(new ListenerRegistry.Event<GadgetListener>() {
+                @Override
+                public void deliver(@NonNull final GadgetListener listener) {
+                    if (listener instanceof GadgetLiveValueListener) {
+                        deliverValues((GadgetLiveValueListener) listener, service, valuesToDeliver);
+                    } else {
+                        listener.onGadgetValuesReceived(SmartGadget.this, service, valuesToDeliver);
+                    }
+                }
+            });
+        }
+    }
+
+    private void deliverLiveValues(@NonNull final GadgetLiveValueListener listener,
+                                   @NonNull final GadgetService service,
+                                   @NonNull final LiveValues values) {
+        final long timestampMs = values.getTimestamp();
+        for (int i = 0; i < values.size(); i++) {
+            listener.onGadgetLiveValueReceived(this, service, timestampMs, values.getValue(i),
+                    values.getUnit(i));
+        }
+    }
+
+    private void deliverValues(@NonNull final GadgetLiveValueListener listener,
+                               @NonNull final GadgetService service,
+                               @NonNull final GadgetValue[] values) {
+        for (final GadgetValue value : values) {
+            listener.onGadgetLiveValueReceived(this, service, value.getTimestamp().getTime(),
+                    value.getValue().floatValue(), value.getUnit());
         }
     }
 
@@ -222,65 +246,90 @@ class SmartGadget implements Gadget, BleConnectorCallback, ServiceListener {
     public void onGadgetDownloadDataReceived(@NonNull final GadgetDownloadService service,
                                              @NonNull final GadgetValue[] values,
                                              final int progress) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onGadgetDownloadDataReceived(this, service, values, progress);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onGadgetDownloadDataReceived(SmartGadget.this, service, values, progress);
             }
-        }
+        });
+    }
+
+    @Override
+    public void onGadgetDownloadSamplesReceived(@NonNull final GadgetDownloadService service,
+                                                @NonNull final SampleBatch samples,
+                                                final int progress) {
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                if (listener instanceof GadgetSampleListener) {
+                    ((GadgetSampleListener) listener).onGadgetDownloadSamplesReceived(
+                            SmartGadget.this, service, samples, progress);
+                } else {
+                    listener.onGadgetDownloadDataReceived(SmartGadget.this, service,
+                            samples.toGadgetValues(), progress);
+                }
+            }
+        });
     }
 
     @Override
     public void onDownloadFailed(@NonNull final GadgetDownloadService service) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onDownloadFailed(this, service);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onDownloadFailed(SmartGadget.this, service);
             }
-        }
+        });
     }
 
     @Override
     public void onDownloadCompleted(@NonNull final GadgetDownloadService service) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onDownloadCompleted(this, service);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onDownloadCompleted(SmartGadget.this, service);
             }
-        }
+        });
     }
 
     @Override
     public void onDownloadNoData(@NonNull final GadgetDownloadService service) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onDownloadNoData(this, service);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onDownloadNoData(SmartGadget.this, service);
             }
-        }
+        });
     }
 
     @Override
     public void onSetGadgetLoggingEnabledFailed(@NonNull final GadgetDownloadService service) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onSetGadgetLoggingEnabledFailed(this, service);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onSetGadgetLoggingEnabledFailed(SmartGadget.this, service);
             }
-        }
+        });
     }
 
     @Override
     public void onSetLoggerIntervalSuccess(){
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onSetLoggerIntervalSuccess(this);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onSetLoggerIntervalSuccess(SmartGadget.this);
             }
-        }
+        });
     }
 
     @Override
     public void onSetLoggerIntervalFailed(@NonNull final GadgetDownloadService service) {
-        synchronized (mListeners) {
-            for (GadgetListener listener : mListeners) {
-                listener.onSetLoggerIntervalFailed(this, service);
+        mListeners.dispatch(new ListenerRegistry.Event<GadgetListener>() {
+            @Override
+            public void deliver(@NonNull final GadgetListener listener) {
+                listener.onSetLoggerIntervalFailed(SmartGadget.this, service);
             }
-        }
+        });
     }
 
     /*
@@ -3,14 +3,13 @@ package com.sensirion.libsmartgadget.smartgadget;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.support.annotation.NonNull;
 
+import com.sensirion.libble.UuidRegistry;
 import com.sensirion.libsmartgadget.GadgetDownloadService;
 import com.sensirion.libsmartgadget.GadgetValue;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
 
-abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleConnectorCallback {
+abstract class SmartGadgetHistoryService implements GadgetDownloadService, CharacteristicHandler {
     protected static final String UNKNOWN_UNIT = "";
     protected static final String LOGGER_INTERVAL_UNIT = "ms";
 
@@ -18,7 +17,7 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
     protected final ServiceListener mServiceListener;
     protected final String mDeviceAddress;
 
-    protected final Set<String> mSupportedUuids;
+    protected final BitSet mSupportedIds;
 
     protected int mLoggerIntervalMs;
     protected boolean mLoggerStateEnabled;
@@ -28,6 +27,9 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
 
     protected GadgetValue[] mLastValues;
 
+    private boolean mConnectionPriorityBoosted;
+    private boolean mConnectionPriorityGranted;
+
     /**
      * {@inheritDoc}
      */
@@ -42,8 +44,10 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
         mDownloadProgress = -1;
         mLastValues = new GadgetValue[0];
 
-        mSupportedUuids = new HashSet<>();
-        Collections.addAll(mSupportedUuids, supportedUuids);
+        mSupportedIds = new BitSet();
+        for (final String uuid : supportedUuids) {
+            mSupportedIds.set(UuidRegistry.getId(uuid));
+        }
     }
 
     /*
@@ -55,7 +59,17 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
      */
     @Override
     public boolean download() {
-        return !isDownloading() && initiateDownloadProtocol();
+        if (isDownloading()) {
+            return false;
+        }
+        // The shortest connection interval speeds up the transfer severalfold
+        mConnectionPriorityGranted = mBleConnector.acquireHighConnectionPriority(mDeviceAddress);
+        mConnectionPriorityBoosted = true;
+        if (!initiateDownloadProtocol()) {
+            onDownloadFinished();
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -116,30 +130,43 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
         Implementation of {@link BleConnectorCallback}
      */
 
+    @NonNull
+    @Override
+    public BitSet getHandledCharacteristicIds() {
+        return (BitSet) mSupportedIds.clone();
+    }
+
     @Override
     public void onConnectionStateChanged(final boolean connected) {
         if (connected) {
             requestValueUpdate();
+        } else {
+            // The boosts of a device are dropped on disconnect
+            mConnectionPriorityBoosted = false;
+            mConnectionPriorityGranted = false;
         }
     }
 
     @Override
-    public void onDataReceived(final String characteristicUuid, final byte[] rawData) {
-        if (isUuidSupported(characteristicUuid)) {
-            handleDataReceived(characteristicUuid, rawData);
+    public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        if (isUuidSupported(characteristicId)) {
+            if (mConnectionPriorityBoosted && !mConnectionPriorityGranted) {
+                retryConnectionPriority();
+            }
+            handleDataReceived(characteristicId, rawData);
         }
     }
 
-    protected abstract void handleDataReceived(final String characteristicUuid, final byte[] rawData);
+    protected abstract void handleDataReceived(final int characteristicId, final byte[] rawData);
 
     @Override
-    public void onDataWritten(final String characteristicUuid) {
-        if (isUuidSupported(characteristicUuid)) {
-            handleDataWritten(characteristicUuid);
+    public void onDataWritten(final int characteristicId) {
+        if (isUuidSupported(characteristicId)) {
+            handleDataWritten(characteristicId);
         }
     }
 
-    protected abstract void handleDataWritten(final String characteristicUuid);
+    protected abstract void handleDataWritten(final int characteristicId);
 
     /*
         Private helper methods
@@ -147,16 +174,35 @@ abstract class SmartGadgetHistoryService implements GadgetDownloadService, BleCo
 
     protected abstract boolean initiateDownloadProtocol();
 
-    protected boolean isUuidSupported(final String characteristicUuid) {
-        return mSupportedUuids.contains(characteristicUuid);
+    /**
+     * Has to be called once a download completed, failed or found no data.
+     */
+    protected void onDownloadFinished() {
+        if (mConnectionPriorityBoosted) {
+            mConnectionPriorityBoosted = false;
+            mConnectionPriorityGranted = false;
+            mBleConnector.releaseHighConnectionPriority(mDeviceAddress);
+        }
+    }
+
+    /**
+     * The stack rejects a priority request while another gatt operation is outstanding. A further
+     * boost issues the rejected request again and is released right away, the boost acquired by
+     * {@link #download()} is still held.
+     */
+    private void retryConnectionPriority() {
+        mConnectionPriorityGranted = mBleConnector.acquireHighConnectionPriority(mDeviceAddress);
+        mBleConnector.releaseHighConnectionPriority(mDeviceAddress);
+    }
+
+    protected boolean isUuidSupported(final int characteristicId) {
+        return mSupportedIds.get(characteristicId);
     }
 
     protected boolean writeValueToCharacteristic(final String characteristicUuid, final int value,
                                                  final int formatType, final int offset) {
         final BluetoothGattCharacteristic characteristic =
-                mBleConnector.getCharacteristics(mDeviceAddress,
-                        Collections.singletonList(characteristicUuid))
-                        .get(characteristicUuid);
+                mBleConnector.getCharacteristic(mDeviceAddress, characteristicUuid);
         if (characteristic == null) return false;
 
         characteristic.setValue(value, formatType, offset);
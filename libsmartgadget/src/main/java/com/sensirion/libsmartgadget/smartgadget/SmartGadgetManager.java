@@ -4,27 +4,42 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.le.ScanResult;
-import android.content.BroadcastReceiver;
+import android.bluetooth.le.ScanSettings;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.sensirion.libble.BleListener;
 import com.sensirion.libble.BleScanCallback;
+import com.sensirion.libble.BleScanSettings;
 import com.sensirion.libble.BleService;
+import com.sensirion.libble.UuidRegistry;
+import com.sensirion.libble.action.ActionPriority;
+import com.sensirion.libsmartgadget.AdvertisementDecoder;
 import com.sensirion.libsmartgadget.Gadget;
+import com.sensirion.libsmartgadget.GadgetAdvertisementListener;
 import com.sensirion.libsmartgadget.GadgetManager;
+import com.sensirion.libsmartgadget.GadgetLostCallback;
 import com.sensirion.libsmartgadget.GadgetManagerCallback;
 import com.sensirion.libsmartgadget.GadgetService;
+import com.sensirion.libsmartgadget.GadgetValue;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * The GadgetManager is the main interface to interact with Sensirion Smart Gadgets. It provides
@@ -33,22 +48,42 @@ import java.util.Map;
  * via {@link GadgetManagerCallback#onGadgetDiscovered(Gadget, int)} can be used to establish a
  * connection.
  */
-class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, BleConnector {
+class SmartGadgetManager implements GadgetManager, BleConnector, BleListener {
     private static final String TAG = SmartGadgetManager.class.getSimpleName();
-    private final GadgetManagerCallback mGadgetManagerListener;
+    private static final long DEFAULT_DISCOVERY_UPDATE_INTERVAL_MS = 1000;
+    private final ListenerRegistry<GadgetManagerCallback> mCallbacks;
+    // Forwards the callbacks to every registered callback
+    private final GadgetLostCallback mGadgetManagerListener;
+    private final Handler mMainHandler;
+    private final Executor mMainThreadExecutor;
+    private final AdvertisementParser mAdvertisementParser;
     private LibBleConnection mLibBleConnection;
     private BleService mBleService;
     private GadgetServiceFactory mGadgetServiceFactory;
     private GadgetDiscoveryListener mLocalDiscoveryListener;
 
-    private Map<String, BleConnectorCallback> mGadgetsOfInterest;
+    // Looked up for every event of libble, the reads do not take a lock
+    private final Map<String, BleConnectorCallback> mGadgetsOfInterest;
+    private volatile long mDiscoveryUpdateIntervalMs = DEFAULT_DISCOVERY_UPDATE_INTERVAL_MS;
+    private volatile GadgetAdvertisementListener mAdvertisementListener;
 
     /**
      * {@inheritDoc}
      */
     public SmartGadgetManager(@NonNull final GadgetManagerCallback callback) {
-        mGadgetManagerListener = callback;
-        mGadgetsOfInterest = new HashMap<>();
+        mCallbacks = new ListenerRegistry<>();
+        mCallbacks.add(callback);
+        mGadgetManagerListener = new CallbackDispatcher();
+        mGadgetsOfInterest = new ConcurrentHashMap<>();
+        mAdvertisementParser = new AdvertisementParser();
+        // The gadgets and their services expect the callbacks on the main thread
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mMainThreadExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                mMainHandler.post(command);
+            }
+        };
     }
 
     /**
@@ -61,7 +96,6 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
             return;
         }
 
-        applicationContext.registerReceiver(this, createLibBleIntentFilter());
         mGadgetServiceFactory = new GadgetServiceFactory(this);
         mLocalDiscoveryListener = new GadgetDiscoveryListener();
         mLibBleConnection = new LibBleConnection();
@@ -74,6 +108,23 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addCallback(@NonNull final GadgetManagerCallback callback,
+                            @NonNull final Executor executor) {
+        mCallbacks.add(callback, executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeCallback(@NonNull final GadgetManagerCallback callback) {
+        mCallbacks.remove(callback);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -88,6 +139,23 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         mGadgetServiceFactory.registerSmartGadgetService(serviceUuid, serviceClass);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerAdvertisementDecoder(final int companyId,
+                                             @NonNull final AdvertisementDecoder decoder) {
+        mAdvertisementParser.registerDecoder(companyId, decoder);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAdvertisementListener(@Nullable final GadgetAdvertisementListener listener) {
+        mAdvertisementListener = listener;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -98,8 +166,9 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
             return;
         }
 
+        mBleService.removeListener(this);
+        mMainHandler.removeCallbacks(mLocalDiscoveryListener);
         applicationContext.unbindService(mLibBleConnection);
-        applicationContext.unregisterReceiver(this);
         mGadgetServiceFactory = null;
         mLocalDiscoveryListener = null;
         mBleService = null;
@@ -124,10 +193,27 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
             Log.w(TAG, "GadgetManager not initialized");
             return false;
         }
+        mLocalDiscoveryListener.onDiscoveryStarted();
         return mBleService.startScan(mLocalDiscoveryListener, durationMs, advertisedNameFilter,
                 advertisedServiceUuidFilter);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean startContinuousGadgetDiscovery(@NonNull final BleScanSettings settings,
+                                                  final String[] advertisedNameFilter,
+                                                  final String[] advertisedServiceUuidFilter) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return false;
+        }
+        mLocalDiscoveryListener.onDiscoveryStarted();
+        return mBleService.startScan(mLocalDiscoveryListener, settings, advertisedNameFilter,
+                advertisedServiceUuidFilter);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -141,6 +227,17 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         mBleService.stopScan(mLocalDiscoveryListener);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDiscoveryUpdateInterval(final long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("The interval must not be negative");
+        }
+        mDiscoveryUpdateIntervalMs = intervalMs;
+    }
+
     /*
         Implementation of {@link BleConnector}
      */
@@ -183,6 +280,29 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         return mBleService.getCharacteristics(deviceAddress, uuids);
     }
 
+    @Nullable
+    @Override
+    public BluetoothGattCharacteristic getCharacteristic(@NonNull String deviceAddress,
+                                                         @NonNull String characteristicUuid) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return null;
+        }
+        return mBleService.getCharacteristic(deviceAddress, characteristicUuid);
+    }
+
+    @Nullable
+    @Override
+    public BluetoothGattDescriptor getDescriptor(@NonNull String deviceAddress,
+                                                 @NonNull String characteristicUuid,
+                                                 @NonNull String descriptorUuid) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return null;
+        }
+        return mBleService.getDescriptor(deviceAddress, characteristicUuid, descriptorUuid);
+    }
+
     @Override
     public void readCharacteristic(@NonNull String deviceAddress, String characteristicUuid) {
         if (!isReady()) {
@@ -192,6 +312,16 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         mBleService.readCharacteristic(deviceAddress, characteristicUuid);
     }
 
+    @Override
+    public void readCharacteristic(@NonNull String deviceAddress, String characteristicUuid,
+                                   @NonNull ActionPriority priority) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return;
+        }
+        mBleService.readCharacteristic(deviceAddress, characteristicUuid, priority);
+    }
+
     @Override
     public void writeCharacteristic(@NonNull String deviceAddress, BluetoothGattCharacteristic characteristic) {
         if (!isReady()) {
@@ -201,6 +331,24 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
         mBleService.writeCharacteristic(deviceAddress, characteristic);
     }
 
+    @Override
+    public boolean acquireHighConnectionPriority(@NonNull String deviceAddress) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return false;
+        }
+        return mBleService.acquireHighConnectionPriority(deviceAddress);
+    }
+
+    @Override
+    public void releaseHighConnectionPriority(@NonNull String deviceAddress) {
+        if (!isReady()) {
+            Log.w(TAG, "GadgetManager not initialized");
+            return;
+        }
+        mBleService.releaseHighConnectionPriority(deviceAddress);
+    }
+
     @Override
     public void setCharacteristicNotification(@NonNull String deviceAddress, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, boolean enabled) {
         if (!isReady()) {
@@ -211,59 +359,58 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
     }
 
     /*
-        Implementation of the Broadcast receiver logic to receive libble callbacks
+        Implementation of {@link BleListener} to receive libble callbacks
      */
     @Override
-    public void onReceive(final Context context, final Intent intent) {
-        final String action = intent.getAction();
-        final String deviceAddress = intent.getStringExtra(BleService.EXTRA_DEVICE_ADDRESS);
-        if (action == null || deviceAddress == null) {
-            Log.e(TAG, "Invalid intent received from libble");
-            return;
-        }
+    public void onDeviceConnected(@NonNull final String deviceAddress) {
+        // Wait for service discovery
+    }
+
+    @Override
+    public void onServicesDiscovered(@NonNull final String deviceAddress) {
+        final BleConnectorCallback gadget = getGadgetOfInterest(deviceAddress);
+        if (gadget == null) return;
+        gadget.onConnectionStateChanged(true);
+    }
+
+    @Override
+    public void onDeviceDisconnected(@NonNull final String deviceAddress) {
+        final BleConnectorCallback gadget = getGadgetOfInterest(deviceAddress);
+        if (gadget == null) return;
+        mGadgetsOfInterest.remove(deviceAddress);
+        gadget.onConnectionStateChanged(false);
+    }
+
+    @Override
+    public void onDataAvailable(@NonNull final String deviceAddress, final int characteristicId,
+                                final byte[] value) {
+        final BleConnectorCallback gadget = getGadgetOfInterest(deviceAddress);
+        if (gadget == null) return;
+        gadget.onDataReceived(characteristicId, value);
+    }
+
+    @Override
+    public void onCharacteristicWritten(@NonNull final String deviceAddress, final int characteristicId) {
+        final BleConnectorCallback gadget = getGadgetOfInterest(deviceAddress);
+        if (gadget == null) return;
+        gadget.onDataWritten(characteristicId);
+    }
+
+    @Override
+    public void onFailure(@NonNull final String deviceAddress, final int characteristicId,
+                          final byte[] value, final boolean isWriteFailure) {
+        final BleConnectorCallback gadget = getGadgetOfInterest(deviceAddress);
+        if (gadget == null) return;
+        Log.w(TAG, "onFailure " + ((isWriteFailure) ? "writing" : "reading") + " for " + deviceAddress + " and uuid " + UuidRegistry.getUuid(characteristicId));
+        gadget.onFail(characteristicId, value, isWriteFailure);
+    }
+
+    private BleConnectorCallback getGadgetOfInterest(@NonNull final String deviceAddress) {
         final BleConnectorCallback gadget = mGadgetsOfInterest.get(deviceAddress);
         if (gadget == null) {
-            Log.e(TAG, "Intent received for unknown gadget");
-            return;
+            Log.e(TAG, "Event received for unknown gadget");
         }
-
-        final String characteristicUuid = intent.getStringExtra(BleService.EXTRA_CHARACTERISTIC_UUID);
-        switch (action) {
-            case BleService.ACTION_GATT_CONNECTED:
-                // Wait for service discovery
-                break;
-            case BleService.ACTION_GATT_SERVICES_DISCOVERED:
-                gadget.onConnectionStateChanged(true);
-                break;
-            case BleService.ACTION_GATT_DISCONNECTED:
-                mGadgetsOfInterest.remove(deviceAddress);
-                gadget.onConnectionStateChanged(false);
-                break;
-            case BleService.ACTION_DATA_AVAILABLE:
-                final byte[] rawData = intent.getByteArrayExtra(BleService.EXTRA_DATA);
-                gadget.onDataReceived(characteristicUuid, rawData);
-                break;
-            case BleService.ACTION_DID_WRITE_CHARACTERISTIC:
-                gadget.onDataWritten(characteristicUuid);
-                break;
-            case BleService.ACTION_DID_FAIL:
-                final boolean wasWriting = intent.getBooleanExtra(BleService.EXTRA_IS_WRITE_FAILURE, false);
-                final byte[] data = intent.getByteArrayExtra(BleService.EXTRA_DATA);
-                Log.w(TAG, "ACTION_DID_FAIL " + ((wasWriting) ? "writing" : "reading") + " for " + deviceAddress + " and uuid " + characteristicUuid);
-                gadget.onFail(characteristicUuid, data, wasWriting);
-                break;
-        }
-    }
-
-    private static IntentFilter createLibBleIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BleService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BleService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BleService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(BleService.ACTION_DID_WRITE_CHARACTERISTIC);
-        intentFilter.addAction(BleService.ACTION_DID_FAIL);
-        return intentFilter;
+        return gadget;
     }
 
     /*
@@ -281,6 +428,9 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
                 return;
             }
 
+            mBleService.addListener(SmartGadgetManager.this, mMainThreadExecutor);
+            // Every event reaches the listener, broadcasting it as intent is wasted effort
+            mBleService.setIntentBroadcastsEnabled(false);
             mGadgetManagerListener.onGadgetManagerInitialized();
         }
 
@@ -294,10 +444,32 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
     /*
         Scan Callback Proxy
      */
-    private class GadgetDiscoveryListener extends BleScanCallback {
+    /**
+     * Keeps the gadgets discovered by address, so every advertisement of a gadget updates the same
+     * instance. New gadgets are reported right away, updates of known ones are collected and
+     * reported together once per update interval. Gadgets not seen during a whole discovery are
+     * forgotten when it stops.
+     */
+    private class GadgetDiscoveryListener extends BleScanCallback implements Runnable {
+        private final Map<String, DiscoveredGadget> mDiscoveredGadgets = new HashMap<>();
+        private long mDiscoveryStartMs;
+        private boolean mUpdatePosted;
+
+        synchronized void onDiscoveryStarted() {
+            mDiscoveryStartMs = SystemClock.elapsedRealtime();
+            // Reported as new again in this discovery
+            for (final DiscoveredGadget discoveredGadget : mDiscoveredGadgets.values()) {
+                discoveredGadget.mReported = false;
+            }
+        }
+
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            notifyScanResult(result);
+            if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+                notifyGadgetLost(result);
+            } else {
+                notifyScanResult(result);
+            }
         }
 
         @Override
@@ -315,14 +487,182 @@ class SmartGadgetManager extends BroadcastReceiver implements GadgetManager, Ble
 
         @Override
         public void onScanStopped() {
+            mMainHandler.removeCallbacks(this);
+            run();
+            synchronized (this) {
+                final Iterator<DiscoveredGadget> iterator = mDiscoveredGadgets.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().mLastSeenMs < mDiscoveryStartMs) {
+                        iterator.remove();
+                    }
+                }
+            }
             mGadgetManagerListener.onGadgetDiscoveryFinished();
         }
 
         void notifyScanResult(final ScanResult result) {
-            final SmartGadget smartGadget = new SmartGadget(SmartGadgetManager.this,
-                    mGadgetServiceFactory, result.getDevice().getName(),
-                    result.getDevice().getAddress());
-            mGadgetManagerListener.onGadgetDiscovered(smartGadget, result.getRssi());
+            final String address = result.getDevice().getAddress();
+            final DiscoveredGadget discoveredGadget;
+            final boolean isNew;
+            synchronized (this) {
+                DiscoveredGadget known = mDiscoveredGadgets.get(address);
+                if (known == null) {
+                    known = new DiscoveredGadget(getGadget(result));
+                    mDiscoveredGadgets.put(address, known);
+                }
+                known.mRssi = result.getRssi();
+                known.mLastSeenMs = SystemClock.elapsedRealtime();
+                isNew = !known.mReported;
+                if (isNew) {
+                    known.mReported = true;
+                } else {
+                    known.mUpdated = true;
+                    if (!mUpdatePosted) {
+                        mUpdatePosted = true;
+                        mMainHandler.postDelayed(this, mDiscoveryUpdateIntervalMs);
+                    }
+                }
+                discoveredGadget = known;
+            }
+            if (isNew) {
+                mGadgetManagerListener.onGadgetDiscovered(discoveredGadget.mGadget, result.getRssi());
+            }
+            notifyAdvertisedValues(discoveredGadget.mGadget, result);
+        }
+
+        private void notifyAdvertisedValues(final SmartGadget gadget, final ScanResult result) {
+            final GadgetAdvertisementListener listener = mAdvertisementListener;
+            if (listener == null) {
+                return;
+            }
+            // Batched results were received well before they are reported
+            final long ageMs = (SystemClock.elapsedRealtimeNanos() - result.getTimestampNanos()) / 1000000;
+            final Date timestamp = new Date(System.currentTimeMillis() - ageMs);
+            final GadgetValue[] values = mAdvertisementParser.parse(result.getScanRecord(), timestamp);
+            if (values != null) {
+                listener.onGadgetValuesAdvertised(gadget, values);
+            }
+        }
+
+        void notifyGadgetLost(final ScanResult result) {
+            final DiscoveredGadget lostGadget;
+            synchronized (this) {
+                lostGadget = mDiscoveredGadgets.remove(result.getDevice().getAddress());
+            }
+            if (lostGadget != null && lostGadget.mReported) {
+                mGadgetManagerListener.onGadgetLost(lostGadget.mGadget);
+            }
+        }
+
+        /**
+         * Reports the gadgets updated since the last update interval.
+         */
+        @Override
+        public void run() {
+            final List<DiscoveredGadget> updatedGadgets = new ArrayList<>();
+            final List<Integer> rssis = new ArrayList<>();
+            synchronized (this) {
+                mUpdatePosted = false;
+                for (final DiscoveredGadget discoveredGadget : mDiscoveredGadgets.values()) {
+                    if (discoveredGadget.mUpdated) {
+                        discoveredGadget.mUpdated = false;
+                        updatedGadgets.add(discoveredGadget);
+                        rssis.add(discoveredGadget.mRssi);
+                    }
+                }
+            }
+            for (int i = 0; i < updatedGadgets.size(); i++) {
+                mGadgetManagerListener.onGadgetDiscovered(updatedGadgets.get(i).mGadget, rssis.get(i));
+            }
+        }
+
+        /**
+         * The gadget connected through the manager is reused, it is the one its listeners know.
+         */
+        private SmartGadget getGadget(final ScanResult result) {
+            final String address = result.getDevice().getAddress();
+            final BleConnectorCallback gadgetOfInterest = mGadgetsOfInterest.get(address);
+            if (gadgetOfInterest instanceof SmartGadget) {
+                return (SmartGadget) gadgetOfInterest;
+            }
+            return new SmartGadget(SmartGadgetManager.this, mGadgetServiceFactory,
+                    result.getDevice().getName(), address);
+        }
+    }
+
+    private class CallbackDispatcher implements GadgetLostCallback {
+        @Override
+        public void onGadgetManagerInitialized() {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    callback.onGadgetManagerInitialized();
+                }
+            });
+        }
+
+        @Override
+        public void onGadgetManagerInitializationFailed() {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    callback.onGadgetManagerInitializationFailed();
+                }
+            });
+        }
+
+        @Override
+        public void onGadgetDiscovered(final Gadget gadget, final int rssi) {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    callback.onGadgetDiscovered(gadget, rssi);
+                }
+            });
+        }
+
+        @Override
+        public void onGadgetLost(final Gadget gadget) {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    if (callback instanceof GadgetLostCallback) {
+                        ((GadgetLostCallback) callback).onGadgetLost(gadget);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onGadgetDiscoveryFailed() {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    callback.onGadgetDiscoveryFailed();
+                }
+            });
+        }
+
+        @Override
+        public void onGadgetDiscoveryFinished() {
+            mCallbacks.dispatch(new ListenerRegistry.Event<GadgetManagerCallback>() {
+                @Override
+                public void deliver(@NonNull final GadgetManagerCallback callback) {
+                    callback.onGadgetDiscoveryFinished();
+                }
+            });
+        }
+    }
+
+    private static class DiscoveredGadget {
+        final SmartGadget mGadget;
+        int mRssi;
+        long mLastSeenMs;
+        boolean mReported;
+        boolean mUpdated;
+
+        DiscoveredGadget(@NonNull final SmartGadget gadget) {
+            mGadget = gadget;
         }
     }
 
@@ -5,18 +5,15 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.sensirion.libble.UuidRegistry;
+import com.sensirion.libble.action.ActionPriority;
 import com.sensirion.libsmartgadget.GadgetNotificationService;
 import com.sensirion.libsmartgadget.GadgetValue;
 import com.sensirion.libsmartgadget.utils.LittleEndianExtractor;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.BitSet;
 
-public abstract class SmartGadgetNotificationService implements GadgetNotificationService, BleConnectorCallback {
+public abstract class SmartGadgetNotificationService implements GadgetNotificationService, CharacteristicHandler {
     private static final String TAG = SmartGadgetNotificationService.class.getSimpleName();
     protected static final String NOTIFICATION_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805f9b34fb";
 
@@ -25,9 +22,12 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
     protected final String mDeviceAddress;
 
     protected final String mNotificationsUuid;
+    protected final int mNotificationsId;
     protected final String mUnit;
 
-    protected final Set<String> mSupportedUuids;
+    protected final BitSet mSupportedIds;
+    // Reused for every notification, see handleLiveValue
+    protected final LiveValues mLiveValues;
     protected GadgetValue[] mLastValues;
     protected boolean mSubscribed;
 
@@ -44,14 +44,16 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
         mBleConnector = bleConnector;
         mDeviceAddress = deviceAddress;
         mNotificationsUuid = notificationsUuid;
+        mNotificationsId = UuidRegistry.getId(notificationsUuid);
         mUnit = unit;
+        mLiveValues = new LiveValues();
         mLastValues = new GadgetValue[0];
         mSubscribed = false;
 
-        mSupportedUuids = new HashSet<>();
-        mSupportedUuids.add(serviceUuid);
-        mSupportedUuids.add(mNotificationsUuid);
-        mSupportedUuids.add(NOTIFICATION_DESCRIPTOR_UUID);
+        mSupportedIds = new BitSet();
+        mSupportedIds.set(UuidRegistry.getId(serviceUuid));
+        mSupportedIds.set(mNotificationsId);
+        mSupportedIds.set(UuidRegistry.getId(NOTIFICATION_DESCRIPTOR_UUID));
     }
 
     /**
@@ -59,10 +61,7 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      */
     @Override
     public void subscribe() {
-        final Map<String, BluetoothGattCharacteristic> characteristics =
-                mBleConnector.getCharacteristics(mDeviceAddress, Collections.singletonList(mNotificationsUuid));
-
-        subscribeNotifications(mDeviceAddress, characteristics.get(mNotificationsUuid), true);
+        subscribeNotifications(mDeviceAddress, true);
         mSubscribed = true;
     }
 
@@ -71,10 +70,7 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      */
     @Override
     public void unsubscribe() {
-        final Map<String, BluetoothGattCharacteristic> characteristics =
-                mBleConnector.getCharacteristics(mDeviceAddress, Collections.singletonList(mNotificationsUuid));
-
-        subscribeNotifications(mDeviceAddress, characteristics.get(mNotificationsUuid), false);
+        subscribeNotifications(mDeviceAddress, false);
         mSubscribed = false;
     }
 
@@ -91,7 +87,7 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      */
     @Override
     public void requestValueUpdate() {
-        mBleConnector.readCharacteristic(mDeviceAddress, mNotificationsUuid);
+        mBleConnector.readCharacteristic(mDeviceAddress, mNotificationsUuid, ActionPriority.INTERACTIVE);
     }
 
     /**
@@ -99,6 +95,9 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      */
     @Override
     public GadgetValue[] getLastValues() {
+        if (mLiveValues.size() > 0) {
+            return mLiveValues.toGadgetValues();
+        }
         return mLastValues;
     }
 
@@ -106,8 +105,8 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      * Implementation of {@link BleConnectorCallback}
      */
     @Override
-    public void onDataReceived(final String characteristicUuid, final byte[] rawData) {
-        if (isUuidSupported(characteristicUuid)) {
+    public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        if (isUuidSupported(characteristicId)) {
             if (rawData.length <= 8) {
                 handleLiveValue(rawData);
             }
@@ -115,23 +114,29 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
     }
 
     @Override
-    public void onDataWritten(final String characteristicUuid) {
+    public void onDataWritten(final int characteristicId) {
         // ignore ... nothing written here
     }
 
+    @NonNull
+    @Override
+    public BitSet getHandledCharacteristicIds() {
+        return (BitSet) mSupportedIds.clone();
+    }
+
     @Override
     public void onConnectionStateChanged(final boolean connected) {
         // ignore ... nothing to do here for the service
     }
 
     @Override
-    public void onFail(final String characteristicUuid, final byte[] data, final boolean isWriteFailure) {
-        if (!isUuidSupported(characteristicUuid)) {
+    public void onFail(final int characteristicId, final byte[] data, final boolean isWriteFailure) {
+        if (!isUuidSupported(characteristicId)) {
             return;
         }
 
         // TODO think about limiting the retires
-        if (characteristicUuid.equals(mNotificationsUuid)) {
+        if (characteristicId == mNotificationsId) {
             if (isSubscribed()) {
                 subscribe(); // failed to subscribe... retry
             } else {
@@ -145,26 +150,31 @@ public abstract class SmartGadgetNotificationService implements GadgetNotificati
      */
 
     private synchronized void subscribeNotifications(@NonNull final String deviceAddress,
-                                                     @NonNull final BluetoothGattCharacteristic characteristic,
                                                      final boolean enable) {
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                UUID.fromString(NOTIFICATION_DESCRIPTOR_UUID));
-        if (descriptor == null) {
-            Log.w(TAG, "Null Descriptor when subscribing gadget " + deviceAddress);
+        final BluetoothGattCharacteristic characteristic =
+                mBleConnector.getCharacteristic(deviceAddress, mNotificationsUuid);
+        final BluetoothGattDescriptor descriptor = mBleConnector.getDescriptor(deviceAddress,
+                mNotificationsUuid, NOTIFICATION_DESCRIPTOR_UUID);
+        if (characteristic == null || descriptor == null) {
+            Log.w(TAG, "Null Characteristic or Descriptor when subscribing gadget " + deviceAddress);
             return;
         }
         descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
         mBleConnector.setCharacteristicNotification(deviceAddress, characteristic, descriptor, enable);
     }
 
+    /**
+     * Reports the values of a notification. Subclasses fill {@link #mLiveValues} with the parsed
+     * values instead of allocating {@link GadgetValue}s, to keep the path to the listeners free of
+     * allocations.
+     */
     protected void handleLiveValue(final byte[] rawData) {
-        final float value = LittleEndianExtractor.extractFloat(rawData, 0);
-        mLastValues = new GadgetValue[]{new SmartGadgetValue(new Date(), value, mUnit)};
-        mServiceListener.onGadgetValuesReceived(this, mLastValues);
+        mLiveValues.set(System.currentTimeMillis(), LittleEndianExtractor.extractFloat(rawData, 0), mUnit);
+        mServiceListener.onGadgetLiveValuesReceived(this, mLiveValues);
     }
 
-    protected boolean isUuidSupported(final String characteristicUuid) {
-        return mSupportedUuids.contains(characteristicUuid);
+    protected boolean isUuidSupported(final int characteristicId) {
+        return mSupportedIds.get(characteristicId);
     }
 
 }
@@ -78,11 +78,32 @@ public final class LittleEndianExtractor {
      * @return {@link Float} with the extracted value.
      */
     public static float extractFloat(@NonNull final byte[] value, final int offset) {
-        final float[] wrappedFloatValue = new float[1];
-        final byte[] valueBuffer = new byte[4];
-        System.arraycopy(value, offset, valueBuffer, 0, 4);
-        ByteBuffer.wrap(valueBuffer).order(LITTLE_ENDIAN).asFloatBuffer().get(wrappedFloatValue);
-        return wrappedFloatValue[0];
+        return Float.intBitsToFloat(extractInteger(value, offset));
+    }
+
+    /**
+     * Extracts a Little Endian integer from a byte array without allocating.
+     *
+     * @param value  value that contains the little endian integer.
+     * @param offset of the integer value inside the byte array.
+     * @return the extracted integer.
+     */
+    public static int extractInteger(@NonNull final byte[] value, final int offset) {
+        return (value[offset] & 0xFF)
+                | (value[offset + 1] & 0xFF) << 8
+                | (value[offset + 2] & 0xFF) << 16
+                | (value[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Extracts a signed Little Endian short from a byte array without allocating.
+     *
+     * @param value  value that contains the little endian short.
+     * @param offset of the short value inside the byte array.
+     * @return the extracted short.
+     */
+    public static short extractShort(@NonNull final byte[] value, final int offset) {
+        return (short) ((value[offset] & 0xFF) | (value[offset + 1] & 0xFF) << 8);
     }
 
     /**
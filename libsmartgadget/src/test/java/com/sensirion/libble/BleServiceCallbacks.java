@@ -0,0 +1,15 @@
+package com.sensirion.libble;
+
+import android.bluetooth.BluetoothGattCallback;
+import android.support.annotation.NonNull;
+
+/**
+ * Gives the tests of the modules built on libble access to the gatt callback of a
+ * {@link BleService}, which is internal to its package.
+ */
+public class BleServiceCallbacks {
+    @NonNull
+    public static BluetoothGattCallback getGattCallback(@NonNull final BleService service) {
+        return service.new BleCallback();
+    }
+}
@@ -0,0 +1,53 @@
+package com.sensirion.libsmartgadget;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SampleBatchTest {
+    private static final float DELTA = 0.001f;
+    private static final String[] UNITS = {"°C", "%"};
+
+    @Test
+    public void samplesAreKeptInColumns() throws Exception {
+        final SampleBatch batch = new SampleBatch(UNITS, 4);
+        batch.add(1000L, 21.5f, 0);
+        batch.add(1000L, 45.25f, 1);
+        batch.add(2000L, 21.75f, 0);
+
+        assertEquals(3, batch.size());
+        assertEquals(2000L, batch.getTimestamp(2));
+        assertEquals(45.25f, batch.getValue(1), DELTA);
+        assertEquals(1, batch.getChannel(1));
+        assertEquals("%", batch.getUnit(1));
+        assertEquals(2, batch.getChannelCount());
+    }
+
+    @Test
+    public void gadgetValuesAdaptTheSamplesInOrder() throws Exception {
+        final SampleBatch batch = new SampleBatch(UNITS, 2);
+        batch.add(1000L, 21.5f, 0);
+        batch.add(1000L, 45.25f, 1);
+
+        final GadgetValue[] values = batch.toGadgetValues();
+        assertEquals(2, values.length);
+        assertEquals(1000L, values[1].getTimestamp().getTime());
+        assertEquals(45.25f, values[1].getValue().floatValue(), DELTA);
+        assertEquals("%", values[1].getUnit());
+        assertEquals("°C", values[0].getUnit());
+        assertSame(values, batch.toGadgetValues());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addRejectsSamplesBeyondTheCapacity() throws Exception {
+        final SampleBatch batch = new SampleBatch(UNITS, 1);
+        batch.add(1000L, 21.5f, 0);
+        batch.add(2000L, 21.5f, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addRejectsUnknownChannels() throws Exception {
+        new SampleBatch(UNITS, 1).add(1000L, 21.5f, 2);
+    }
+}
@@ -0,0 +1,140 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import com.sensirion.libsmartgadget.GadgetNotificationService;
+import com.sensirion.libsmartgadget.GadgetService;
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GadgetServiceIndexTest {
+    private final TestService mServiceA = new TestService(1, 2);
+    private final TestService mServiceB = new TestService(2, 5);
+    private final UnroutedService mUnrouted = new UnroutedService();
+
+    @Test
+    public void dataIsRoutedToTheHandlersOfTheCharacteristic() throws Exception {
+        final GadgetServiceIndex index = new GadgetServiceIndex(
+                Arrays.<GadgetService>asList(mServiceA, mServiceB));
+
+        assertArrayEquals(new BleConnectorCallback[]{mServiceA}, index.getCallbacks(1));
+        assertArrayEquals(new BleConnectorCallback[]{mServiceA, mServiceB}, index.getCallbacks(2));
+        assertArrayEquals(new BleConnectorCallback[]{mServiceB}, index.getCallbacks(5));
+        assertEquals(0, index.getCallbacks(3).length);
+        assertEquals(0, index.getCallbacks(42).length);
+    }
+
+    @Test
+    public void callbacksWithoutDeclaredCharacteristicsReceiveEverything() throws Exception {
+        final GadgetServiceIndex index = new GadgetServiceIndex(
+                Arrays.<GadgetService>asList(mServiceA, mUnrouted));
+
+        assertArrayEquals(new BleConnectorCallback[]{mServiceA, mUnrouted}, index.getCallbacks(1));
+        assertArrayEquals(new BleConnectorCallback[]{mUnrouted}, index.getCallbacks(3));
+        assertArrayEquals(new BleConnectorCallback[]{mServiceA, mUnrouted}, index.getCallbacks());
+    }
+
+    @Test
+    public void servicesAreIndexedByEveryType() throws Exception {
+        final GadgetServiceIndex index = new GadgetServiceIndex(
+                Arrays.<GadgetService>asList(mServiceA, mUnrouted, mServiceB));
+
+        assertEquals(Arrays.<GadgetService>asList(mServiceA, mUnrouted, mServiceB),
+                index.getServicesOfType(GadgetService.class));
+        assertEquals(Arrays.<GadgetService>asList(mServiceA, mServiceB),
+                index.getServicesOfType(TestService.class));
+        assertEquals(Collections.<GadgetService>singletonList(mUnrouted),
+                index.getServicesOfType(GadgetNotificationService.class));
+        assertTrue(GadgetServiceIndex.EMPTY.getServicesOfType(GadgetService.class).isEmpty());
+    }
+
+    private static class TestService implements GadgetService, CharacteristicHandler {
+        private final BitSet mIds = new BitSet();
+
+        TestService(final int... ids) {
+            for (final int id : ids) {
+                mIds.set(id);
+            }
+        }
+
+        @NonNull
+        @Override
+        public BitSet getHandledCharacteristicIds() {
+            return mIds;
+        }
+
+        @Override
+        public void requestValueUpdate() {
+        }
+
+        @Override
+        public GadgetValue[] getLastValues() {
+            return new GadgetValue[0];
+        }
+
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+        }
+
+        @Override
+        public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        }
+
+        @Override
+        public void onDataWritten(final int characteristicId) {
+        }
+
+        @Override
+        public void onFail(final int characteristicId, final byte[] data, final boolean isWriteFailure) {
+        }
+    }
+
+    private static class UnroutedService implements GadgetNotificationService, BleConnectorCallback {
+        @Override
+        public void subscribe() {
+        }
+
+        @Override
+        public void unsubscribe() {
+        }
+
+        @Override
+        public boolean isSubscribed() {
+            return false;
+        }
+
+        @Override
+        public void requestValueUpdate() {
+        }
+
+        @Override
+        public GadgetValue[] getLastValues() {
+            return new GadgetValue[0];
+        }
+
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+        }
+
+        @Override
+        public void onDataReceived(final int characteristicId, final byte[] rawData) {
+        }
+
+        @Override
+        public void onDataWritten(final int characteristicId) {
+        }
+
+        @Override
+        public void onFail(final int characteristicId, final byte[] data, final boolean isWriteFailure) {
+        }
+    }
+}
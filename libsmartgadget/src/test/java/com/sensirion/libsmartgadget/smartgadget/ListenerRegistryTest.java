@@ -0,0 +1,68 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ListenerRegistryTest {
+    private static final int EVENTS = 1000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final ListenerRegistry<List<Integer>> mRegistry = new ListenerRegistry<>();
+
+    private void dispatch(final int value) {
+        mRegistry.dispatch(new ListenerRegistry.Event<List<Integer>>() {
+            @Override
+            public void deliver(@NonNull final List<Integer> listener) {
+                listener.add(value);
+            }
+        });
+    }
+
+    @Test
+    public void directListenerIsCalledOnTheDispatchingThread() throws Exception {
+        final List<Integer> listener = new ArrayList<>();
+        mRegistry.add(listener);
+        mRegistry.add(listener);
+
+        dispatch(1);
+        assertEquals(Collections.singletonList(1), listener);
+
+        mRegistry.remove(listener);
+        dispatch(2);
+        assertEquals(Collections.singletonList(1), listener);
+    }
+
+    @Test
+    public void executorListenerReceivesTheEventsInOrder() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Integer> listenerA = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> listenerB = Collections.synchronizedList(new ArrayList<Integer>());
+        mRegistry.add(listenerA, pool);
+        mRegistry.add(listenerB, pool);
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            dispatch(i);
+            expected.add(i);
+        }
+        // The queues hand their next event to the pool only once the previous one is delivered
+        final long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((listenerA.size() < EVENTS || listenerB.size() < EVENTS)
+                && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        pool.shutdown();
+
+        assertEquals(expected, listenerA);
+        assertEquals(expected, listenerB);
+    }
+}
@@ -0,0 +1,347 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.NonNull;
+
+import com.sensirion.libble.BleListener;
+import com.sensirion.libble.BleService;
+import com.sensirion.libble.BleServiceCallbacks;
+import com.sensirion.libble.action.ActionPriority;
+import com.sensirion.libsmartgadget.Gadget;
+import com.sensirion.libsmartgadget.GadgetDownloadService;
+import com.sensirion.libsmartgadget.GadgetLiveValueListener;
+import com.sensirion.libsmartgadget.GadgetService;
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the memory allocated on the path from the gatt callback of the {@link BleService} to a
+ * live value listener once the JIT has settled. Requires a JVM able to count the allocated bytes
+ * per thread.
+ */
+public class LiveValueAllocationTest {
+    private static final String SHTC1_RHT_CHARACTERISTIC_UUID = "0000aa21-0000-1000-8000-00805f9b34fb";
+    private static final int WARM_UP_NOTIFICATIONS = 50000;
+    private static final int MEASURED_NOTIFICATIONS = 10000;
+
+    // 25 °C as little endian float
+    private final byte[] mSht3xData = {0x00, 0x00, (byte) 0xC8, 0x41};
+    // 25 °C and 50 % in hundredths as little endian shorts
+    private final byte[] mShtc1Data = {(byte) 0xC4, 0x09, (byte) 0x88, 0x13};
+
+    private static final String GADGET_ADDRESS = "00:11:22:33:44:55";
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+    private SmartGadget mGadget;
+    private CountingListener mListener;
+    private BluetoothGattCallback mGattCallback;
+    private BluetoothGatt mGatt;
+    private BluetoothGattCharacteristic mSht3xCharacteristic;
+    private BluetoothGattCharacteristic mShtc1Characteristic;
+
+    @Before
+    public void setUp() throws Exception {
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final FakeConnector connector = new FakeConnector(Arrays.asList(
+                getServiceMock(SHT3xTemperatureService.SERVICE_UUID),
+                getServiceMock(SHTC1TemperatureAndHumidityService.SERVICE_UUID)));
+        mGadget = new SmartGadget(connector, new GadgetServiceFactory(connector), "Gadget",
+                GADGET_ADDRESS);
+        mListener = new CountingListener();
+        mGadget.addListener(mListener);
+        mGadget.onConnectionStateChanged(true);
+
+        final BleService bleService = new BleService();
+        bleService.addListener(new GadgetForwarder(mGadget), new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        });
+        mGattCallback = BleServiceCallbacks.getGattCallback(bleService);
+        // Mocks recording their invocations would allocate for every notification
+        mGatt = Mockito.mock(BluetoothGatt.class, Mockito.withSettings().stubOnly());
+        final BluetoothDevice device = Mockito.mock(BluetoothDevice.class, Mockito.withSettings().stubOnly());
+        Mockito.when(mGatt.getDevice()).thenReturn(device);
+        Mockito.when(device.getAddress()).thenReturn(GADGET_ADDRESS);
+        mSht3xCharacteristic = new FakeCharacteristic(SHT3xTemperatureService.NOTIFICATIONS_UUID, mSht3xData);
+        mShtc1Characteristic = new FakeCharacteristic(SHTC1_RHT_CHARACTERISTIC_UUID, mShtc1Data);
+    }
+
+    private BluetoothGattService getServiceMock(final String uuid) {
+        final BluetoothGattService service = PowerMockito.mock(BluetoothGattService.class);
+        Mockito.when(service.getUuid()).thenReturn(UUID.fromString(uuid));
+        return service;
+    }
+
+    private void notifyValues(final int notifications) {
+        for (int i = 0; i < notifications; i++) {
+            mGattCallback.onCharacteristicChanged(mGatt, mSht3xCharacteristic);
+            mGattCallback.onCharacteristicChanged(mGatt, mShtc1Characteristic);
+        }
+    }
+
+    private void lookUpDevices(final int notifications) {
+        for (int i = 0; i < notifications; i++) {
+            mGatt.getDevice().getAddress();
+            mGatt.getDevice().getAddress();
+        }
+    }
+
+    @Test
+    public void liveValuesReachTheListener() throws Exception {
+        notifyValues(1);
+
+        assertEquals(3, mListener.mValueCount);
+        assertEquals(25f + 25f + 50f, mListener.mValueSum, 0.01f);
+        assertEquals(25f, mGadget.getServicesOfType(SHT3xTemperatureService.class).get(0)
+                .getLastValues()[0].getValue().floatValue(), 0.01f);
+    }
+
+    @Test
+    public void liveValuesAreDeliveredWithoutAllocating() throws Exception {
+        notifyValues(WARM_UP_NOTIFICATIONS);
+        lookUpDevices(WARM_UP_NOTIFICATIONS);
+
+        final long threadId = Thread.currentThread().getId();
+        // The mocks of the gatt and its device allocate, unlike the ones of the stack
+        long startBytes = mThreadBean.getThreadAllocatedBytes(threadId);
+        lookUpDevices(MEASURED_NOTIFICATIONS);
+        final long mockBytes = mThreadBean.getThreadAllocatedBytes(threadId) - startBytes;
+        startBytes = mThreadBean.getThreadAllocatedBytes(threadId);
+        notifyValues(MEASURED_NOTIFICATIONS);
+        final long allocatedBytes = mThreadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        // Rare one-off allocations of the JVM, e.g. by the JIT, stay below a byte per notification
+        assertEquals(0, (allocatedBytes - mockBytes) / MEASURED_NOTIFICATIONS);
+        assertEquals(3 * (WARM_UP_NOTIFICATIONS + MEASURED_NOTIFICATIONS), mListener.mValueCount);
+    }
+
+    private static class FakeCharacteristic extends BluetoothGattCharacteristic {
+        private final UUID mUuid;
+        private final byte[] mValue;
+
+        FakeCharacteristic(@NonNull final String uuid, @NonNull final byte[] value) {
+            super(UUID.fromString(uuid), PROPERTY_NOTIFY, 0);
+            mUuid = UUID.fromString(uuid);
+            mValue = value;
+        }
+
+        @Override
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Forwards the data of libble to the gadget, like the {@link SmartGadgetManager}.
+     */
+    private static class GadgetForwarder implements BleListener {
+        private final SmartGadget mGadget;
+
+        GadgetForwarder(@NonNull final SmartGadget gadget) {
+            mGadget = gadget;
+        }
+
+        @Override
+        public void onDeviceConnected(@NonNull final String deviceAddress) {
+        }
+
+        @Override
+        public void onServicesDiscovered(@NonNull final String deviceAddress) {
+        }
+
+        @Override
+        public void onDeviceDisconnected(@NonNull final String deviceAddress) {
+        }
+
+        @Override
+        public void onDataAvailable(@NonNull final String deviceAddress, final int characteristicId,
+                                    final byte[] value) {
+            mGadget.onDataReceived(characteristicId, value);
+        }
+
+        @Override
+        public void onCharacteristicWritten(@NonNull final String deviceAddress,
+                                            final int characteristicId) {
+        }
+
+        @Override
+        public void onFailure(@NonNull final String deviceAddress, final int characteristicId,
+                              final byte[] value, final boolean isWriteFailure) {
+        }
+    }
+
+    private static class CountingListener implements GadgetLiveValueListener {
+        int mValueCount;
+        float mValueSum;
+
+        @Override
+        public void onGadgetLiveValueReceived(@NonNull final Gadget gadget,
+                                              @NonNull final GadgetService service,
+                                              final long timestampMs, final float value,
+                                              @NonNull final String unit) {
+            mValueCount++;
+            mValueSum += value;
+        }
+
+        @Override
+        public void onGadgetConnected(@NonNull final Gadget gadget) {
+        }
+
+        @Override
+        public void onGadgetDisconnected(@NonNull final Gadget gadget) {
+        }
+
+        @Override
+        public void onGadgetValuesReceived(@NonNull final Gadget gadget,
+                                           @NonNull final GadgetService service,
+                                           @NonNull final GadgetValue[] values) {
+            throw new AssertionError("Live values must not be delivered as GadgetValue");
+        }
+
+        @Override
+        public void onGadgetDownloadDataReceived(@NonNull final Gadget gadget,
+                                                 @NonNull final GadgetDownloadService service,
+                                                 @NonNull final GadgetValue[] values,
+                                                 final int progress) {
+        }
+
+        @Override
+        public void onSetGadgetLoggingEnabledFailed(@NonNull final Gadget gadget,
+                                                    @NonNull final GadgetDownloadService service) {
+        }
+
+        @Override
+        public void onSetLoggerIntervalFailed(@NonNull final Gadget gadget,
+                                              @NonNull final GadgetDownloadService service) {
+        }
+
+        @Override
+        public void onSetLoggerIntervalSuccess(@NonNull final Gadget gadget) {
+        }
+
+        @Override
+        public void onDownloadFailed(@NonNull final Gadget gadget,
+                                     @NonNull final GadgetDownloadService service) {
+        }
+
+        @Override
+        public void onDownloadCompleted(@NonNull final Gadget gadget,
+                                        @NonNull final GadgetDownloadService service) {
+        }
+
+        @Override
+        public void onDownloadNoData(@NonNull final Gadget gadget,
+                                     @NonNull final GadgetDownloadService service) {
+        }
+    }
+
+    /**
+     * Provides the services of the gadget, everything else is a no-op.
+     */
+    private static class FakeConnector implements BleConnector {
+        private final List<BluetoothGattService> mServices;
+
+        FakeConnector(@NonNull final List<BluetoothGattService> services) {
+            mServices = services;
+        }
+
+        @Override
+        public boolean connect(final SmartGadget gadget) {
+            return true;
+        }
+
+        @Override
+        public void disconnect(final SmartGadget gadget) {
+        }
+
+        @NonNull
+        @Override
+        public List<BluetoothGattService> getServices(final SmartGadget gadget) {
+            return mServices;
+        }
+
+        @NonNull
+        @Override
+        public Map<String, BluetoothGattCharacteristic> getCharacteristics(
+                @NonNull final String deviceAddress, final List<String> uuids) {
+            return new HashMap<>();
+        }
+
+        @Override
+        public BluetoothGattCharacteristic getCharacteristic(@NonNull final String deviceAddress,
+                                                             @NonNull final String characteristicUuid) {
+            return null;
+        }
+
+        @Override
+        public BluetoothGattDescriptor getDescriptor(@NonNull final String deviceAddress,
+                                                     @NonNull final String characteristicUuid,
+                                                     @NonNull final String descriptorUuid) {
+            return null;
+        }
+
+        @Override
+        public void readCharacteristic(@NonNull final String deviceAddress,
+                                       final String characteristicUuid) {
+        }
+
+        @Override
+        public void readCharacteristic(@NonNull final String deviceAddress,
+                                       final String characteristicUuid,
+                                       @NonNull final ActionPriority priority) {
+        }
+
+        @Override
+        public void writeCharacteristic(@NonNull final String deviceAddress,
+                                        final BluetoothGattCharacteristic characteristic) {
+        }
+
+        @Override
+        public boolean acquireHighConnectionPriority(@NonNull final String deviceAddress) {
+            return true;
+        }
+
+        @Override
+        public void releaseHighConnectionPriority(@NonNull final String deviceAddress) {
+        }
+
+        @Override
+        public void setCharacteristicNotification(@NonNull final String deviceAddress,
+                                                  final BluetoothGattCharacteristic characteristic,
+                                                  final BluetoothGattDescriptor descriptor,
+                                                  final boolean enabled) {
+        }
+    }
+}
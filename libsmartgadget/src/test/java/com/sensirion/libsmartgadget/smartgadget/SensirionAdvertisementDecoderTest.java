@@ -0,0 +1,44 @@
+package com.sensirion.libsmartgadget.smartgadget;
+
+import com.sensirion.libsmartgadget.GadgetValue;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SensirionAdvertisementDecoderTest {
+    private static final float DELTA = 0.01f;
+
+    private final SensirionAdvertisementDecoder mDecoder = new SensirionAdvertisementDecoder();
+
+    @Test
+    public void decodeTemperatureAndHumidity() throws Exception {
+        // 0x6666 ticks: 25 °C, 0x8000 ticks: 50 %
+        final byte[] data = {0x00, 0x04, 0x12, 0x34, 0x66, 0x66, 0x00, (byte) 0x80};
+        final Date timestamp = new Date();
+
+        final GadgetValue[] values = mDecoder.decode(data, timestamp);
+
+        assertEquals(2, values.length);
+        assertEquals(25f, values[0].getValue().floatValue(), DELTA);
+        assertEquals(SHT3xTemperatureService.UNIT, values[0].getUnit());
+        assertEquals(50f, values[1].getValue().floatValue(), DELTA);
+        assertEquals(SHT3xHumidityService.UNIT, values[1].getUnit());
+        assertEquals(timestamp, values[1].getTimestamp());
+    }
+
+    @Test
+    public void decodeIgnoresUnknownSampleTypes() throws Exception {
+        final byte[] data = {0x00, 0x07, 0x12, 0x34, 0x66, 0x66, 0x00, (byte) 0x80};
+        assertNull(mDecoder.decode(data, new Date()));
+    }
+
+    @Test
+    public void decodeIgnoresTruncatedData() throws Exception {
+        final byte[] data = {0x00, 0x04, 0x12, 0x34, 0x66, 0x66};
+        assertNull(mDecoder.decode(data, new Date()));
+    }
+}